@@ -0,0 +1,205 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPRequestAuthenticator;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeUtils;
+
+/**
+ * Caches the outcome of an (expensive) authenticator.
+ * The cache key is a hash of the context, the method, the target and the headers already present in the request, we never keep the raw credentials as key.
+ * By default all the headers are part of the key, you can limit the key to the headers the authenticator actually uses (for a better hit rate) but they must include everything it bases its decision on.
+ * Because authenticators can add headers to the request (e.g. an authorization header), we remember those and replay them on a cache hit.
+ *
+ * Positive and negative outcomes have their own ttl, the cache is bounded with LRU eviction.
+ * Concurrent requests for the same key wait for the first one instead of all hitting the backend, a nested check on the same thread is not cached.
+ * A refresh or a trigger response (a previous attempt failed) always bypasses the cache.
+ */
+public class CachingHTTPRequestAuthenticator implements HTTPRequestAuthenticator {
+
+	private HTTPRequestAuthenticator authenticator;
+	// null means all headers
+	private String [] credentialHeaders;
+	private long positiveTtl, negativeTtl;
+	private Map<String, Result> results;
+	private Map<String, Inflight> inflight = new ConcurrentHashMap<String, Inflight>();
+
+	public CachingHTTPRequestAuthenticator(HTTPRequestAuthenticator authenticator, long positiveTtl, long negativeTtl, int maxSize) {
+		this(authenticator, positiveTtl, negativeTtl, maxSize, (String []) null);
+	}
+
+	/**
+	 * Only the given headers (e.g. "Host", "Authorization", "Cookie", "X-API-Key") are part of the cache key, if a request differs in any other header the cached outcome is used.
+	 * Any header the authenticator looks at that is not in this list allows one client to reuse the outcome of another, if no headers are given, all of them are used.
+	 */
+	@SuppressWarnings("serial")
+	public CachingHTTPRequestAuthenticator(HTTPRequestAuthenticator authenticator, long positiveTtl, long negativeTtl, final int maxSize, String...credentialHeaders) {
+		this.authenticator = authenticator;
+		this.credentialHeaders = credentialHeaders == null || credentialHeaders.length == 0 ? null : credentialHeaders.clone();
+		this.positiveTtl = positiveTtl;
+		this.negativeTtl = negativeTtl;
+		this.results = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	@Override
+	public boolean authenticate(HTTPRequest request, String context, HTTPResponse trigger, boolean refresh) {
+		if (request.getContent() == null) {
+			return authenticator.authenticate(request, context, trigger, refresh);
+		}
+		String key = getKey(request, context);
+		if (refresh || trigger != null) {
+			synchronized(results) {
+				results.remove(key);
+			}
+			return authenticator.authenticate(request, context, trigger, refresh);
+		}
+		Result result;
+		synchronized(results) {
+			result = results.get(key);
+		}
+		if (result == null || result.expires < System.currentTimeMillis()) {
+			Inflight future = new Inflight();
+			Inflight existing = inflight.putIfAbsent(key, future);
+			// the authenticator itself checks the same credentials again (e.g. through a nested call), waiting for ourselves would never end
+			if (existing != null && existing.owner == Thread.currentThread()) {
+				return authenticator.authenticate(request, context, trigger, refresh);
+			}
+			else if (existing != null) {
+				// someone else is already checking the same credentials
+				result = existing.join();
+			}
+			else {
+				try {
+					// the previous check may have finished between our lookup and claiming the key
+					synchronized(results) {
+						result = results.get(key);
+					}
+					if (result == null || result.expires < System.currentTimeMillis()) {
+						Header [] before = request.getContent().getHeaders();
+						boolean authenticated = authenticator.authenticate(request, context, trigger, refresh);
+						result = new Result(authenticated, HTTPUtils.getAddedHeaders(before, request.getContent().getHeaders()),
+							System.currentTimeMillis() + (authenticated ? positiveTtl : negativeTtl));
+						// the result must be stored before the key is released so no one starts a new check in between
+						synchronized(results) {
+							results.put(key, result);
+						}
+						future.complete(result);
+						// the headers were already added by the authenticator itself
+						return authenticated;
+					}
+					future.complete(result);
+				}
+				catch (RuntimeException e) {
+					future.completeExceptionally(e);
+					throw e;
+				}
+				finally {
+					inflight.remove(key, future);
+				}
+			}
+		}
+		for (Header header : result.headers) {
+			request.getContent().setHeader(header);
+		}
+		return result.authenticated;
+	}
+
+	private String getKey(HTTPRequest request, String context) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			if (context != null) {
+				digest.update(context.getBytes(StandardCharsets.UTF_8));
+			}
+			// the authenticator may decide based on what is requested, not only on who is asking
+			digest.update((byte) 0);
+			digest.update(String.valueOf(request.getMethod()).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(String.valueOf(request.getTarget()).getBytes(StandardCharsets.UTF_8));
+			Header [] headers = request.getContent().getHeaders();
+			if (headers == null) {
+				headers = new Header[0];
+			}
+			if (credentialHeaders == null) {
+				for (Header header : headers) {
+					// separators so different header combinations can't produce the same input
+					digest.update((byte) 0);
+					digest.update(header.getName().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+					digest.update((byte) 0);
+					digest.update(MimeUtils.getFullHeaderValue(header).getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			else {
+				for (String name : credentialHeaders) {
+					digest.update((byte) 0);
+					// every occurrence counts, a second header with the same name must not go unnoticed
+					for (Header header : MimeUtils.getHeaders(name, headers)) {
+						digest.update((byte) 1);
+						digest.update(MimeUtils.getFullHeaderValue(header).getBytes(StandardCharsets.UTF_8));
+					}
+				}
+			}
+			StringBuilder builder = new StringBuilder();
+			for (byte single : digest.digest()) {
+				builder.append(Character.forDigit((single >> 4) & 0xf, 16)).append(Character.forDigit(single & 0xf, 16));
+			}
+			return builder.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void clear() {
+		synchronized(results) {
+			results.clear();
+		}
+	}
+
+	private static class Inflight extends CompletableFuture<Result> {
+		private Thread owner = Thread.currentThread();
+	}
+
+	private static class Result {
+		private boolean authenticated;
+		private Header [] headers;
+		private long expires;
+
+		public Result(boolean authenticated, Header [] headers, long expires) {
+			this.authenticated = authenticated;
+			this.headers = headers;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPRequestAuthenticator;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.api.server.AuthenticationHeader;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.ModifiableHeader;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+
+/**
+ * Tries the authenticators in order until one succeeds.
+ * 
+ * If an executor is set, all authenticators are started at the same time, each on a copy of the request headers.
+ * The priority order is respected: the first authenticator (in order) that succeeds within its deadline wins, the others are cancelled.
+ * If the winner added, removed or changed headers on its copy, its headers replace those of the actual request.
+ */
+public class CompositeHTTPRequestAuthenticator implements HTTPRequestAuthenticator {
+
+	private HTTPRequestAuthenticator [] authenticators;
+	private ExecutorService executor;
+	private long timeout;
+
+	public CompositeHTTPRequestAuthenticator(List<HTTPRequestAuthenticator> authenticators) {
+		this(authenticators, null, 0);
+	}
+	
+	/**
+	 * @param executor Preferably a bounded executor, the authenticators it rejects are evaluated sequentially after the ones it accepted
+	 * @param timeout The deadline (in ms) for each authenticator, counted from the moment they were all started, zero or less means no deadline
+	 */
+	public CompositeHTTPRequestAuthenticator(List<HTTPRequestAuthenticator> authenticators, ExecutorService executor, long timeout) {
+		this.authenticators = authenticators.toArray(new HTTPRequestAuthenticator[authenticators.size()]);
+		this.executor = executor;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public boolean authenticate(HTTPRequest request, String context, HTTPResponse trigger, boolean refresh) {
+		if (executor != null && authenticators.length > 1 && request.getContent() != null) {
+			return authenticateInParallel(request, context, trigger, refresh);
+		}
+		for (HTTPRequestAuthenticator authenticator : authenticators) {
+			if (authenticator.authenticate(request, context, trigger, refresh)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private boolean authenticateInParallel(final HTTPRequest request, final String context, final HTTPResponse trigger, final boolean refresh) {
+		final Header [] original = request.getContent().getHeaders();
+		List<HTTPRequest> copies = new ArrayList<HTTPRequest>();
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		try {
+			for (final HTTPRequestAuthenticator authenticator : authenticators) {
+				final HTTPRequest copy = new DefaultHTTPRequest(request.getProtocol(), request.getMethod(), request.getTarget(), new PlainMimeEmptyPart(null, copy(original)), request.getVersion());
+				try {
+					futures.add(executor.submit(new Callable<Boolean>() {
+						@Override
+						public Boolean call() {
+							return authenticator.authenticate(copy, context, trigger, refresh);
+						}
+					}));
+				}
+				catch (RejectedExecutionException e) {
+					// the executor is full, the authenticators that were started still get their chance, the rest is evaluated sequentially
+					break;
+				}
+				copies.add(copy);
+			}
+			long deadline = System.currentTimeMillis() + timeout;
+			for (int i = 0; i < futures.size(); i++) {
+				boolean authenticated = false;
+				try {
+					// without a timeout we wait as long as it takes
+					authenticated = timeout <= 0 ? futures.get(i).get() : futures.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				}
+				catch (TimeoutException | ExecutionException e) {
+					// counts as failed
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				if (authenticated) {
+					apply(request, original, copies.get(i).getContent().getHeaders());
+					return true;
+				}
+			}
+			for (int i = futures.size(); i < authenticators.length; i++) {
+				if (authenticators[i].authenticate(request, context, trigger, refresh)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		finally {
+			for (Future<Boolean> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+	
+	// modifiable headers are copied so an authenticator can not change the actual request (or the copies of the others) in place
+	private static Header [] copy(Header...headers) {
+		Header [] copy = new Header[headers.length];
+		for (int i = 0; i < headers.length; i++) {
+			if (headers[i] instanceof ModifiableHeader && !(headers[i] instanceof AuthenticationHeader)) {
+				copy[i] = new MimeHeader(headers[i].getName(), headers[i].getValue(), headers[i].getComments() == null ? new String[0] : headers[i].getComments().clone());
+			}
+			else {
+				copy[i] = headers[i];
+			}
+		}
+		return copy;
+	}
+	
+	// the winner may have added, removed or changed headers, if anything is different its headers replace the original ones
+	private static void apply(HTTPRequest request, Header [] original, Header [] result) {
+		if (isSame(original, result)) {
+			return;
+		}
+		Set<String> names = new LinkedHashSet<String>();
+		for (Header header : original) {
+			names.add(header.getName());
+		}
+		request.getContent().removeHeader(names.toArray(new String[names.size()]));
+		request.getContent().setHeader(result);
+	}
+	
+	private static boolean isSame(Header [] original, Header [] result) {
+		if (original.length != result.length) {
+			return false;
+		}
+		for (int i = 0; i < original.length; i++) {
+			if (original[i] != result[i] && (!original[i].getName().equalsIgnoreCase(result[i].getName())
+					|| !Objects.equals(original[i].getValue(), result[i].getValue())
+					|| !Arrays.equals(original[i].getComments(), result[i].getComments()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public HTTPRequestAuthenticator [] getAuthenticators() {
+		return authenticators;
+	}
+}
@@ -0,0 +1,278 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.LocatableResource;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.TimestampedResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+
+/**
+ * Keeps the compressed representation of frequently requested resources so they don't have to be compressed for every response.
+ * Entries are keyed on the uri of the resource and the encoding, they are only valid for the version of the resource they were created for.
+ * The version consists of the last modified, the size and the ETag (if one is given in the response headers), a change within the resolution of the timestamp is usually caught by one of the others.
+ * Resources without a last modified or a strong ETag are not cached, there is no reliable way to tell that they changed.
+ * The cache has a budget in bytes and evicts the least recently used entries, the compressed data can optionally be kept off heap.
+ * Concurrent misses for the same version wait for the first one to compress it instead of all compressing it.
+ */
+public class CompressedResourceCache {
+
+	private long budget, size, minimumSize = ContentEncodingNegotiator.DEFAULT_MINIMUM_SIZE;
+	private boolean offHeap;
+	private long hits, misses;
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	// the compressions that are in progress, keyed on the entry and the version
+	private Map<String, CompletableFuture<Entry>> compressing = new HashMap<String, CompletableFuture<Entry>>();
+
+	public CompressedResourceCache(long budget) {
+		this(budget, false);
+	}
+
+	public CompressedResourceCache(long budget, boolean offHeap) {
+		this.budget = budget;
+		this.offHeap = offHeap;
+	}
+
+	/**
+	 * Returns the encoded content for the resource if the client accepts an encoding and the resource is a good candidate, null otherwise.
+	 * The part has an exact content length so it does not need to be chunked.
+	 */
+	public EncodedContentPart getContent(ReadableResource resource, Header [] requestHeaders, Header...headers) throws IOException {
+		if (!(resource instanceof FiniteResource) || !(resource instanceof LocatableResource) || !MimeUtils.isDeflatable(resource.getContentType())) {
+			return null;
+		}
+		long resourceSize = ((FiniteResource) resource).getSize();
+		URI uri = ((LocatableResource) resource).getUri();
+		// too small to be worth it or too big to cache
+		if (uri == null || resourceSize < minimumSize || resourceSize > budget) {
+			return null;
+		}
+		String encoding = ContentEncodingNegotiator.negotiate(requestHeaders);
+		if (encoding == null) {
+			return null;
+		}
+		Date lastModified = resource instanceof TimestampedResource ? ((TimestampedResource) resource).getLastModified() : null;
+		Header etagHeader = MimeUtils.getHeader("ETag", headers);
+		String etag = etagHeader == null ? null : MimeUtils.getFullHeaderValue(etagHeader).trim();
+		// without a last modified or a strong etag we can't tell when the resource changes
+		if (lastModified == null && (etag == null || etag.startsWith("W/"))) {
+			return null;
+		}
+		String key = encoding + ":" + uri;
+		String version = (lastModified == null ? "" : lastModified.getTime()) + ":" + resourceSize + (etag == null ? "" : ":" + etag);
+		String flight = key + "@" + version;
+		Entry entry;
+		CompletableFuture<Entry> future = null, existing = null;
+		synchronized(this) {
+			entry = entries.get(key);
+			if (entry != null && !entry.version.equals(version)) {
+				remove(key);
+				entry = null;
+			}
+			if (entry != null) {
+				hits++;
+			}
+			else {
+				misses++;
+				existing = compressing.get(flight);
+				if (existing == null) {
+					future = new CompletableFuture<Entry>();
+					compressing.put(flight, future);
+				}
+			}
+		}
+		if (entry == null) {
+			// someone else is already compressing this version, we wait for the result
+			if (existing != null) {
+				entry = existing.join();
+			}
+			else {
+				try {
+					entry = compress(resource, encoding, version);
+					// the entry must be in the cache before the flight is removed so no one starts compressing it again
+					if (entry != null) {
+						put(key, entry);
+					}
+				}
+				finally {
+					synchronized(this) {
+						compressing.remove(flight);
+					}
+					// the others fall back to uncompressed content if the compression failed
+					future.complete(entry);
+				}
+			}
+			if (entry == null) {
+				return null;
+			}
+		}
+		List<Header> allHeaders = new ArrayList<Header>(Arrays.asList(headers));
+		if (MimeUtils.getHeader("Content-Type", headers) == null) {
+			allHeaders.add(new MimeHeader("Content-Type", resource.getContentType()));
+		}
+		allHeaders.add(new MimeHeader("Content-Encoding", encoding));
+		allHeaders.add(new MimeHeader("Content-Length", Long.toString(entry.getSize())));
+		EncodedContentPart part = new EncodedContentPart(null, entry.getReadable(), allHeaders.toArray(new Header[allHeaders.size()]));
+		// the caller may already vary on other headers
+		HTTPUtils.setVary(part, "Accept-Encoding");
+		return part;
+	}
+
+	private Entry compress(ReadableResource resource, String encoding, String version) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		OutputStream output = CompressionPool.getInstance().encode(compressed, encoding);
+		ReadableContainer<be.nabu.utils.io.api.ByteBuffer> readable = resource.getReadable();
+		try {
+			// stream it through the deflater, the uncompressed resource is never in memory as a whole
+			WritableContainer<be.nabu.utils.io.api.ByteBuffer> target = IOUtils.wrap(output);
+			IOUtils.copyBytes(readable, target);
+			target.flush();
+		}
+		finally {
+			readable.close();
+			output.close();
+		}
+		// if it does not fit in the cache, it is pointless to keep it
+		if (compressed.size() > budget) {
+			return null;
+		}
+		byte [] bytes = compressed.toByteArray();
+		if (offHeap) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+			buffer.put(bytes);
+			return new Entry(version, null, buffer);
+		}
+		return new Entry(version, bytes, null);
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		remove(key);
+		entries.put(key, entry);
+		size += entry.getSize();
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (size > budget && iterator.hasNext()) {
+			Entry eldest = iterator.next().getValue();
+			size -= eldest.getSize();
+			iterator.remove();
+		}
+	}
+
+	private void remove(String key) {
+		Entry removed = entries.remove(key);
+		if (removed != null) {
+			size -= removed.getSize();
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	public long getMinimumSize() {
+		return minimumSize;
+	}
+
+	public void setMinimumSize(long minimumSize) {
+		this.minimumSize = minimumSize;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private static class Entry {
+		private String version;
+		private byte [] bytes;
+		private ByteBuffer buffer;
+
+		public Entry(String version, byte [] bytes, ByteBuffer buffer) {
+			this.version = version;
+			this.bytes = bytes;
+			this.buffer = buffer;
+		}
+
+		public long getSize() {
+			return bytes == null ? buffer.capacity() : bytes.length;
+		}
+
+		public ReadableContainer<be.nabu.utils.io.api.ByteBuffer> getReadable() {
+			if (bytes != null) {
+				return IOUtils.wrap(bytes, true);
+			}
+			// every reader gets its own view on the shared off heap data
+			final ByteBuffer view = buffer.duplicate();
+			// cast for java 8 compatibility
+			((Buffer) view).rewind();
+			return IOUtils.wrap(new InputStream() {
+				@Override
+				public int read() {
+					return view.hasRemaining() ? view.get() & 0xff : -1;
+				}
+				@Override
+				public int read(byte [] bytes, int offset, int length) {
+					if (!view.hasRemaining()) {
+						return -1;
+					}
+					int amount = Math.min(length, view.remaining());
+					view.get(bytes, offset, amount);
+					return amount;
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,425 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reuses deflaters and inflaters, their native zlib state is expensive to create and is only freed when they are ended (or garbage collected).
+ * There is a bounded pool per compression level (and format), instances are reset when they are returned and ended when the pool is full or they have been idle for too long.
+ *
+ * The gzip streams are built on raw (nowrap) deflaters and inflaters with our own header and trailer, the JDK gzip streams always create a new instance.
+ */
+public class CompressionPool {
+
+	private static final byte [] GZIP_HEADER = new byte [] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+	private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+	private static volatile CompressionPool instance;
+	// static so the scheduled task does not keep the pool alive
+	private static final Evictor.Eviction<CompressionPool> EVICTION = new Evictor.Eviction<CompressionPool>() {
+		@Override
+		public void evict(CompressionPool pool) {
+			pool.evictIdle();
+		}
+	};
+
+	private Map<Integer, Pool<Deflater>> deflaters = new ConcurrentHashMap<Integer, Pool<Deflater>>();
+	private Map<Boolean, Pool<Inflater>> inflaters = new ConcurrentHashMap<Boolean, Pool<Inflater>>();
+	private int maxPoolSize;
+	private long maxIdle;
+	private int level = Deflater.DEFAULT_COMPRESSION;
+
+	public CompressionPool() {
+		this(Runtime.getRuntime().availableProcessors() * 2, 60000);
+	}
+
+	public CompressionPool(int maxPoolSize, long maxIdle) {
+		this.maxPoolSize = maxPoolSize;
+		this.maxIdle = maxIdle;
+		if (maxIdle > 0) {
+			Evictor.schedule(this, EVICTION, maxIdle);
+		}
+	}
+
+	public static CompressionPool getInstance() {
+		if (instance == null) {
+			synchronized(CompressionPool.class) {
+				if (instance == null) {
+					instance = new CompressionPool();
+				}
+			}
+		}
+		return instance;
+	}
+
+	public Deflater borrowDeflater(int level, boolean nowrap) {
+		Deflater deflater = getDeflaterPool(level, nowrap).borrow();
+		return deflater == null ? new Deflater(level, nowrap) : deflater;
+	}
+
+	/**
+	 * The level and nowrap must be the same as when it was borrowed
+	 */
+	public void release(Deflater deflater, int level, boolean nowrap) {
+		deflater.reset();
+		if (!getDeflaterPool(level, nowrap).release(deflater)) {
+			deflater.end();
+		}
+	}
+
+	public Inflater borrowInflater(boolean nowrap) {
+		Inflater inflater = getInflaterPool(nowrap).borrow();
+		return inflater == null ? new Inflater(nowrap) : inflater;
+	}
+
+	public void release(Inflater inflater, boolean nowrap) {
+		inflater.reset();
+		if (!getInflaterPool(nowrap).release(inflater)) {
+			inflater.end();
+		}
+	}
+
+	private Pool<Deflater> getDeflaterPool(int level, boolean nowrap) {
+		// levels go from -1 to 9
+		Integer key = ((level + 1) * 2) + (nowrap ? 1 : 0);
+		Pool<Deflater> pool = deflaters.get(key);
+		if (pool == null) {
+			deflaters.putIfAbsent(key, new Pool<Deflater>());
+			pool = deflaters.get(key);
+		}
+		return pool;
+	}
+
+	private Pool<Inflater> getInflaterPool(boolean nowrap) {
+		Pool<Inflater> pool = inflaters.get(nowrap);
+		if (pool == null) {
+			inflaters.putIfAbsent(nowrap, new Pool<Inflater>());
+			pool = inflaters.get(nowrap);
+		}
+		return pool;
+	}
+
+	/**
+	 * Wraps the output in the given content encoding (gzip or deflate), the pooled deflater is returned when the stream is closed
+	 */
+	public OutputStream encode(OutputStream output, String encoding) throws IOException {
+		if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+			return new PooledGZIPOutputStream(output, level);
+		}
+		else if ("deflate".equalsIgnoreCase(encoding)) {
+			return new PooledDeflaterOutputStream(output, level, false);
+		}
+		throw new IllegalArgumentException("Unsupported content encoding: " + encoding);
+	}
+
+	/**
+	 * Decodes the input (e.g. a request body) with the given content encoding, the pooled inflater is returned when the stream is closed
+	 */
+	public InputStream decode(InputStream input, String encoding) throws IOException {
+		if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+			return new PooledGZIPInputStream(input);
+		}
+		else if ("deflate".equalsIgnoreCase(encoding)) {
+			return new PooledInflaterInputStream(input, false);
+		}
+		throw new IllegalArgumentException("Unsupported content encoding: " + encoding);
+	}
+
+	/**
+	 * Ends all the instances that have not been used for longer than the max idle time
+	 */
+	public void evictIdle() {
+		long threshold = System.currentTimeMillis() - maxIdle;
+		for (Pool<Deflater> pool : deflaters.values()) {
+			Deflater deflater;
+			while ((deflater = pool.evict(threshold)) != null) {
+				deflater.end();
+			}
+		}
+		for (Pool<Inflater> pool : inflaters.values()) {
+			Inflater inflater;
+			while ((inflater = pool.evict(threshold)) != null) {
+				inflater.end();
+			}
+		}
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * The compression level used for the encoding streams
+	 */
+	public void setLevel(int level) {
+		if (level < -1 || level > 9) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.level = level;
+	}
+
+	public int getMaxPoolSize() {
+		return maxPoolSize;
+	}
+
+	public long getMaxIdle() {
+		return maxIdle;
+	}
+
+	private static class Idle<T> {
+		private T instance;
+		private long since;
+
+		public Idle(T instance, long since) {
+			this.instance = instance;
+			this.since = since;
+		}
+	}
+
+	// the most recently returned instance is reused first, the ones at the end are the idle ones
+	private class Pool<T> {
+		private ConcurrentLinkedDeque<Idle<T>> idle = new ConcurrentLinkedDeque<Idle<T>>();
+		private AtomicInteger size = new AtomicInteger();
+
+		public T borrow() {
+			Idle<T> entry = idle.pollFirst();
+			if (entry == null) {
+				return null;
+			}
+			size.decrementAndGet();
+			return entry.instance;
+		}
+
+		public boolean release(T instance) {
+			if (size.incrementAndGet() > maxPoolSize) {
+				size.decrementAndGet();
+				return false;
+			}
+			idle.offerFirst(new Idle<T>(instance, System.currentTimeMillis()));
+			return true;
+		}
+
+		public T evict(long threshold) {
+			Idle<T> entry = idle.peekLast();
+			if (entry == null || entry.since > threshold || !idle.removeLastOccurrence(entry)) {
+				return null;
+			}
+			size.decrementAndGet();
+			return entry.instance;
+		}
+	}
+
+	private class PooledDeflaterOutputStream extends DeflaterOutputStream {
+		private int level;
+		private boolean nowrap, closed;
+
+		public PooledDeflaterOutputStream(OutputStream output, int level, boolean nowrap) {
+			super(output, borrowDeflater(level, nowrap), 8192);
+			this.level = level;
+			this.nowrap = nowrap;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try {
+					super.close();
+				}
+				finally {
+					release(def, level, nowrap);
+				}
+			}
+		}
+	}
+
+	private class PooledGZIPOutputStream extends PooledDeflaterOutputStream {
+		private CRC32 crc = new CRC32();
+		private boolean finished;
+
+		public PooledGZIPOutputStream(OutputStream output, int level) throws IOException {
+			super(output, level, true);
+			output.write(GZIP_HEADER);
+		}
+
+		@Override
+		public void write(byte [] bytes, int offset, int length) throws IOException {
+			super.write(bytes, offset, length);
+			crc.update(bytes, offset, length);
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (!finished) {
+				finished = true;
+				super.finish();
+				byte [] trailer = new byte[8];
+				writeInt(trailer, 0, (int) crc.getValue());
+				writeInt(trailer, 4, (int) def.getBytesRead());
+				out.write(trailer);
+			}
+		}
+
+		private void writeInt(byte [] bytes, int offset, int value) {
+			bytes[offset] = (byte) value;
+			bytes[offset + 1] = (byte) (value >> 8);
+			bytes[offset + 2] = (byte) (value >> 16);
+			bytes[offset + 3] = (byte) (value >> 24);
+		}
+	}
+
+	private class PooledInflaterInputStream extends InflaterInputStream {
+		private boolean nowrap, closed;
+
+		public PooledInflaterInputStream(InputStream input, boolean nowrap) {
+			super(input, borrowInflater(nowrap), 8192);
+			this.nowrap = nowrap;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try {
+					super.close();
+				}
+				finally {
+					release(inf, nowrap);
+				}
+			}
+		}
+	}
+
+	private class PooledGZIPInputStream extends PooledInflaterInputStream {
+		private CRC32 crc = new CRC32();
+		private boolean trailerRead;
+
+		public PooledGZIPInputStream(InputStream input) throws IOException {
+			super(input, true);
+			try {
+				readHeader();
+			}
+			// the caller never gets the stream so it can not close it
+			catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		private void readHeader() throws IOException {
+			if (readByte() != 0x1f || readByte() != 0x8b) {
+				throw new ZipException("Not in gzip format");
+			}
+			if (readByte() != Deflater.DEFLATED) {
+				throw new ZipException("Unsupported compression method");
+			}
+			int flags = readByte();
+			// modification time, extra flags and os
+			skip(6);
+			if ((flags & FEXTRA) != 0) {
+				skip(readByte() | (readByte() << 8));
+			}
+			if ((flags & FNAME) != 0) {
+				while (readByte() != 0);
+			}
+			if ((flags & FCOMMENT) != 0) {
+				while (readByte() != 0);
+			}
+			if ((flags & FHCRC) != 0) {
+				skip(2);
+			}
+		}
+
+		private void skip(int amount) throws IOException {
+			for (int i = 0; i < amount; i++) {
+				readByte();
+			}
+		}
+
+		private int readByte() throws IOException {
+			int read = in.read();
+			if (read < 0) {
+				throw new EOFException("Unexpected end of gzip stream");
+			}
+			return read;
+		}
+
+		@Override
+		public int read(byte [] bytes, int offset, int length) throws IOException {
+			if (trailerRead) {
+				return -1;
+			}
+			int read = super.read(bytes, offset, length);
+			if (read > 0) {
+				crc.update(bytes, offset, read);
+			}
+			else if (read < 0) {
+				readTrailer();
+			}
+			return read;
+		}
+
+		// the trailer starts in the part of the buffer the inflater did not use
+		private void readTrailer() throws IOException {
+			trailerRead = true;
+			byte [] trailer = new byte[8];
+			int remaining = Math.min(inf.getRemaining(), trailer.length);
+			System.arraycopy(buf, len - inf.getRemaining(), trailer, 0, remaining);
+			for (int i = remaining; i < trailer.length; i++) {
+				trailer[i] = (byte) readByte();
+			}
+			if (readInt(trailer, 0) != (int) crc.getValue() || readInt(trailer, 4) != (int) inf.getBytesWritten()) {
+				throw new ZipException("Corrupt gzip trailer");
+			}
+		}
+
+		private int readInt(byte [] bytes, int offset) {
+			return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8) | ((bytes[offset + 2] & 0xff) << 16) | ((bytes[offset + 3] & 0xff) << 24);
+		}
+	}
+
+	/**
+	 * Compresses the bytes in one go with a pooled deflater, this is useful for content that is already in memory
+	 */
+	public byte [] compress(byte [] bytes, String encoding) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, bytes.length / 2));
+		OutputStream encoded = encode(output, encoding);
+		try {
+			encoded.write(bytes);
+		}
+		finally {
+			encoded.close();
+		}
+		return output.toByteArray();
+	}
+}
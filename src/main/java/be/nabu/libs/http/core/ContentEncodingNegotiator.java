@@ -0,0 +1,176 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.util.Date;
+
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.TimestampedResource;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeUtils;
+
+/**
+ * Picks the content encoding based on the Accept-Encoding of the request, see https://tools.ietf.org/html/rfc7231#section-5.3.4
+ * The q-values are honoured: an encoding with q=0 is never used and the identity encoding can be explicitly preferred.
+ * If multiple encodings have the same weight, the order of the available encodings (our preference) decides.
+ */
+public class ContentEncodingNegotiator {
+
+	// compressing very small payloads costs more than it saves
+	public static final long DEFAULT_MINIMUM_SIZE = 1024;
+
+	private static final String [] SUPPORTED = new String [] { "gzip", "deflate" };
+
+	/**
+	 * Returns the encoding to use or null if the content should not be encoded
+	 */
+	public static String negotiate(Header...requestHeaders) {
+		return negotiate(SUPPORTED, requestHeaders);
+	}
+
+	public static String negotiate(String [] available, Header...requestHeaders) {
+		Preferences preferences = new Preferences(available, requestHeaders);
+		// if the client does not mention any encoding, we don't encode
+		if (!preferences.mentioned) {
+			return null;
+		}
+		String best = null;
+		double bestWeight = 0;
+		for (int i = 0; i < available.length; i++) {
+			double weight = preferences.explicit[i] ? preferences.weights[i] : Math.max(preferences.wildcard, 0);
+			if (weight > bestWeight) {
+				best = available[i];
+				bestWeight = weight;
+			}
+		}
+		// only if the client explicitly prefers identity do we skip the encoding
+		if (best != null && preferences.identity > bestWeight) {
+			return null;
+		}
+		return best;
+	}
+
+	/**
+	 * The unencoded content is acceptable unless the client excludes it with "identity;q=0" or with "*;q=0" without mentioning identity
+	 */
+	public static boolean isIdentityAcceptable(Header...requestHeaders) {
+		Preferences preferences = new Preferences(new String[0], requestHeaders);
+		if (preferences.identity >= 0) {
+			return preferences.identity > 0;
+		}
+		return preferences.wildcard != 0;
+	}
+
+	private static class Preferences {
+		private double [] weights;
+		private boolean [] explicit;
+		// -1 means not mentioned
+		private double wildcard = -1, identity = -1;
+		private boolean mentioned;
+
+		private Preferences(String [] available, Header...requestHeaders) {
+			weights = new double[available.length];
+			explicit = new boolean[available.length];
+			Header [] acceptEncoding = MimeUtils.getHeaders("Accept-Encoding", requestHeaders);
+			if (acceptEncoding == null) {
+				return;
+			}
+			for (Header header : acceptEncoding) {
+				String value = MimeUtils.getFullHeaderValue(header);
+				if (value == null) {
+					continue;
+				}
+				mentioned = true;
+				int start = 0;
+				while (start < value.length()) {
+					int end = value.indexOf(',', start);
+					if (end < 0) {
+						end = value.length();
+					}
+					int parameters = value.indexOf(';', start);
+					String coding = value.substring(start, parameters >= 0 && parameters < end ? parameters : end).trim();
+					double weight = parameters >= 0 && parameters < end ? getWeight(value.substring(parameters + 1, end)) : 1;
+					start = end + 1;
+					if (coding.isEmpty()) {
+						continue;
+					}
+					if (coding.equals("*")) {
+						wildcard = weight;
+					}
+					else if (coding.equalsIgnoreCase("identity")) {
+						identity = weight;
+					}
+					else {
+						for (int i = 0; i < available.length; i++) {
+							if (coding.equalsIgnoreCase(available[i]) || (available[i].equals("gzip") && coding.equalsIgnoreCase("x-gzip"))) {
+								weights[i] = weight;
+								explicit[i] = true;
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// parses the parameters of a coding, e.g. "q=0.5"
+	private static double getWeight(String parameters) {
+		for (String parameter : parameters.split(";")) {
+			int index = parameter.indexOf('=');
+			if (index > 0 && parameter.substring(0, index).trim().equalsIgnoreCase("q")) {
+				try {
+					double weight = Double.parseDouble(parameter.substring(index + 1).trim());
+					return weight < 0 ? 0 : Math.min(weight, 1);
+				}
+				catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Looks for a precompressed version of the resource next to it (e.g. "app.js.gz" for "app.js") that the client accepts.
+	 * A sibling that is older than the resource itself is considered stale and ignored.
+	 */
+	public static ReadableResource getPrecompressed(ReadableResource resource, Header...requestHeaders) {
+		if (!(resource instanceof FiniteResource) || resource.getParent() == null) {
+			return null;
+		}
+		if (!"gzip".equals(negotiate(new String [] { "gzip" }, requestHeaders))) {
+			return null;
+		}
+		ResourceContainer<?> parent = resource.getParent();
+		Resource sibling = parent.getChild(resource.getName() + ".gz");
+		if (!(sibling instanceof ReadableResource) || !(sibling instanceof FiniteResource)) {
+			return null;
+		}
+		if (resource instanceof TimestampedResource && sibling instanceof TimestampedResource) {
+			Date modified = ((TimestampedResource) resource).getLastModified();
+			Date siblingModified = ((TimestampedResource) sibling).getLastModified();
+			if (modified != null && siblingModified != null && siblingModified.before(modified)) {
+				return null;
+			}
+		}
+		return (ReadableResource) sibling;
+	}
+}
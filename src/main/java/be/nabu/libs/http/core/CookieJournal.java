@@ -0,0 +1,309 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An append-only file that records the changes to a cookie store so it can be restored after a restart.
+ * Upon loading the file is memory mapped and replayed, it is compacted once it contains a lot of superseded records.
+ *
+ * Each record is: [operation (1 byte)][length (4 bytes)][payload]
+ *
+ * Note that the journal contains the cookie values in plain text, these are often credentials (e.g. session ids).
+ * The file is created readable and writable by its owner only (on file systems that support posix permissions), it should not be placed in a shared location.
+ */
+public class CookieJournal {
+
+	private static final byte ADD = 1, REMOVE = 2;
+
+	private File file;
+	private FileChannel channel;
+	// the amount of records written since the last compaction
+	private int records;
+	private int compactionThreshold = 1000;
+
+	public CookieJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Replays the journal and returns the cookies that are still valid (with their remaining max age) in the order they were added
+	 */
+	public synchronized Collection<JournalEntry> load() throws IOException {
+		Map<JournalEntry, JournalEntry> result = new LinkedHashMap<JournalEntry, JournalEntry>();
+		// we count what is in the file, not what was counted in a previous load
+		records = 0;
+		if (!file.exists() || file.length() == 0) {
+			return result.values();
+		}
+		long now = System.currentTimeMillis();
+		try (FileChannel readChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+			while (buffer.remaining() >= 5) {
+				byte operation = buffer.get();
+				int length = buffer.getInt();
+				// a partially written record at the end (e.g. a crash during writing), ignore it
+				if (length < 0 || length > buffer.remaining()) {
+					break;
+				}
+				int end = buffer.position() + length;
+				records++;
+				try {
+					URI uri = readURI(buffer);
+					String name = readString(buffer);
+					String value = readString(buffer);
+					String domain = readString(buffer);
+					String path = readString(buffer);
+					HttpCookie cookie = new HttpCookie(name, value == null ? "" : value);
+					cookie.setDomain(domain);
+					cookie.setPath(path);
+					JournalEntry entry = new JournalEntry(uri, cookie, now);
+					// a new version replaces the previous one, also in order
+					result.remove(entry);
+					if (operation == ADD) {
+						long expires = buffer.getLong();
+						cookie.setSecure(buffer.get() == 1);
+						cookie.setHttpOnly(buffer.get() == 1);
+						cookie.setVersion(buffer.getInt());
+						if (expires >= 0) {
+							long remaining = (expires - now) / 1000;
+							if (remaining <= 0) {
+								continue;
+							}
+							cookie.setMaxAge(remaining);
+						}
+						result.put(entry, entry);
+					}
+				}
+				catch (IllegalArgumentException | BufferUnderflowException e) {
+					// invalid cookie or corrupt record, skip it
+				}
+				finally {
+					// cast for java 8 compatibility
+					((Buffer) buffer).position(end);
+				}
+			}
+		}
+		return result.values();
+	}
+
+	/**
+	 * The max age of a cookie is relative to when it was created so we need that timestamp to calculate the expiration
+	 */
+	public synchronized void add(URI uri, HttpCookie cookie, long created) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		writeKey(output, uri, cookie);
+		output.writeLong(cookie.getMaxAge() < 0 ? -1 : created + (cookie.getMaxAge() * 1000));
+		output.writeByte(cookie.getSecure() ? 1 : 0);
+		output.writeByte(cookie.isHttpOnly() ? 1 : 0);
+		output.writeInt(cookie.getVersion());
+		write(ADD, bytes.toByteArray());
+	}
+
+	public synchronized void remove(URI uri, HttpCookie cookie) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeKey(new DataOutputStream(bytes), uri, cookie);
+		write(REMOVE, bytes.toByteArray());
+	}
+
+	public synchronized void clear() throws IOException {
+		close();
+		Files.deleteIfExists(file.toPath());
+		records = 0;
+	}
+
+	public boolean isCompactionNeeded(int liveCookies) {
+		return records > compactionThreshold && records > liveCookies * 2;
+	}
+
+	/**
+	 * Rewrites the journal with only the given cookies, the new file atomically replaces the old one
+	 */
+	public synchronized void compact(Collection<JournalEntry> entries) throws IOException {
+		close();
+		File temporary = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".compact");
+		// a leftover from an interrupted compaction must not end up in the new journal
+		Files.deleteIfExists(temporary.toPath());
+		CookieJournal compacted = new CookieJournal(temporary);
+		try {
+			for (JournalEntry entry : entries) {
+				if (!entry.getCookie().hasExpired()) {
+					compacted.add(entry.getUri(), entry.getCookie(), entry.getCreated());
+				}
+			}
+		}
+		finally {
+			compacted.close();
+		}
+		if (temporary.exists()) {
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		else {
+			Files.deleteIfExists(file.toPath());
+		}
+		records = compacted.records;
+	}
+
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	private void write(byte operation, byte [] payload) throws IOException {
+		if (channel == null) {
+			create(file.toPath());
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(payload.length + 5);
+		buffer.put(operation);
+		buffer.putInt(payload.length);
+		buffer.put(payload);
+		((Buffer) buffer).flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		records++;
+	}
+
+	// the journal holds credentials, only the owner may read it
+	private static void create(Path path) throws IOException {
+		if (Files.exists(path)) {
+			return;
+		}
+		try {
+			if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+				Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+			}
+			else {
+				Files.createFile(path);
+				File file = path.toFile();
+				file.setReadable(false, false);
+				file.setWritable(false, false);
+				file.setReadable(true, true);
+				file.setWritable(true, true);
+			}
+		}
+		catch (FileAlreadyExistsException e) {
+			// created in the meantime
+		}
+	}
+
+	private static void writeKey(DataOutputStream output, URI uri, HttpCookie cookie) throws IOException {
+		writeString(output, uri == null ? null : uri.toString());
+		writeString(output, cookie.getName());
+		writeString(output, cookie.getValue());
+		writeString(output, cookie.getDomain());
+		writeString(output, cookie.getPath());
+	}
+
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		if (value == null) {
+			output.writeInt(-1);
+		}
+		else {
+			byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+			output.writeInt(bytes.length);
+			output.write(bytes);
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte [] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static URI readURI(ByteBuffer buffer) {
+		String value = readString(buffer);
+		return value == null ? null : URI.create(value);
+	}
+
+	public int getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	public void setCompactionThreshold(int compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Cookies are identified by their name, domain and path (like {@link HttpCookie#equals(Object)}), the uri is only kept as data.
+	 * This means a remove from one uri cancels an add from another.
+	 */
+	public static class JournalEntry {
+		private URI uri;
+		private HttpCookie cookie;
+		private long created;
+
+		public JournalEntry(URI uri, HttpCookie cookie, long created) {
+			this.uri = uri;
+			this.cookie = cookie;
+			this.created = created;
+		}
+
+		public URI getUri() {
+			return uri;
+		}
+
+		public HttpCookie getCookie() {
+			return cookie;
+		}
+
+		public long getCreated() {
+			return created;
+		}
+
+		@Override
+		public int hashCode() {
+			return cookie.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			return object instanceof JournalEntry && cookie.equals(((JournalEntry) object).cookie);
+		}
+	}
+}
@@ -17,64 +17,377 @@
 
 package be.nabu.libs.http.core;
 
+import java.io.IOException;
 import java.net.CookieStore;
 import java.net.HttpCookie;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Without a cookiestore, the cookiemanager stores _nothing_
+ *
+ * The cookies are indexed per registrable domain, reads work on an immutable snapshot and writes lock only the domain they affect.
+ * Expired cookies are evicted in the background and the amount of cookies per domain is capped (the oldest are dropped first).
+ * 
+ * Optionally the cookies can be persisted in a journal, it is loaded upon first use of the store.
  */
 public class CustomCookieStore implements CookieStore {
 
-	private Map<URI, List<HttpCookie>> store = new HashMap<URI, List<HttpCookie>>();
+	// static so the scheduled task does not keep the store alive
+	private static final Evictor.Eviction<CustomCookieStore> EVICTION = new Evictor.Eviction<CustomCookieStore>() {
+		@Override
+		public void evict(CustomCookieStore store) {
+			store.evictExpired();
+		}
+	};
+
+	private Map<String, Domain> domains = new ConcurrentHashMap<String, Domain>();
+	private int maxCookiesPerDomain;
+	private CookieJournal journal;
+	private volatile boolean loaded;
+
+	public CustomCookieStore() {
+		this(50, 60000);
+	}
+
+	public CustomCookieStore(int maxCookiesPerDomain, long evictionInterval) {
+		this(null, maxCookiesPerDomain, evictionInterval);
+	}
+	
+	public CustomCookieStore(CookieJournal journal) {
+		this(journal, 50, 60000);
+	}
 	
+	public CustomCookieStore(CookieJournal journal, int maxCookiesPerDomain, long evictionInterval) {
+		this.journal = journal;
+		this.maxCookiesPerDomain = maxCookiesPerDomain;
+		this.loaded = journal == null;
+		if (evictionInterval > 0) {
+			Evictor.schedule(this, EVICTION, evictionInterval);
+		}
+	}
+
 	@Override
 	public void add(URI uri, HttpCookie cookie) {
 		// force a path to be set for the cookie due to strange logic in CookieManager.pathMatches()
 		if (cookie.getPath() == null)
 			cookie.setPath("/");
-		if (!store.containsKey(uri))
-			store.put(uri, new ArrayList<HttpCookie>());
-		if (!store.get(uri).contains(cookie))
-			store.get(uri).add(cookie);
+		load();
+		long created = System.currentTimeMillis();
+		store(uri, cookie, created);
+		if (journal != null) {
+			try {
+				if (cookie.hasExpired()) {
+					journal.remove(uri, cookie);
+				}
+				else {
+					journal.add(uri, cookie, created);
+				}
+			}
+			catch (IOException e) {
+				// the in-memory store is still valid, we only lose persistence
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void store(URI uri, HttpCookie cookie, long created) {
+		String key = getKey(uri, cookie);
+		while (true) {
+			Domain domain = domains.get(key);
+			if (domain == null) {
+				Domain newDomain = new Domain();
+				domain = domains.putIfAbsent(key, newDomain);
+				if (domain == null) {
+					domain = newDomain;
+				}
+			}
+			// if the domain was discarded in the meantime, we try again with a new one
+			if (domain.add(uri, cookie, created, maxCookiesPerDomain)) {
+				removeIfEmpty(key, domain);
+				break;
+			}
+		}
+	}
+	
+	// empty domains are dropped so the index does not keep growing
+	private void removeIfEmpty(String key, Domain domain) {
+		synchronized(domain) {
+			if (domain.entries.length == 0) {
+				domain.discarded = true;
+				domains.remove(key, domain);
+			}
+		}
+	}
+	
+	/**
+	 * The cookie manager gives cookies without a domain of a host without dots (e.g. localhost) the domain "host.local", we index them on the host itself.
+	 */
+	private static String getKey(URI uri, HttpCookie cookie) {
+		String host = uri == null ? null : uri.getHost();
+		String domain = cookie.getDomain();
+		if (domain == null || (host != null && host.indexOf('.') < 0 && domain.equalsIgnoreCase(host + ".local"))) {
+			return getRegistrableDomain(host);
+		}
+		return getRegistrableDomain(domain);
+	}
+	
+	// the journal is only replayed when the store is first used, not when it is created
+	private void load() {
+		if (!loaded) {
+			synchronized(this) {
+				if (!loaded) {
+					try {
+						for (CookieJournal.JournalEntry entry : journal.load()) {
+							store(entry.getUri(), entry.getCookie(), entry.getCreated());
+						}
+					}
+					catch (IOException e) {
+						e.printStackTrace();
+					}
+					loaded = true;
+				}
+			}
+		}
 	}
 
 	@Override
 	public List<HttpCookie> get(URI uri) {
-		return store.containsKey(uri) ? store.get(uri) : new ArrayList<HttpCookie>();
+		load();
+		List<HttpCookie> result = new ArrayList<HttpCookie>();
+		String host = uri == null ? null : uri.getHost();
+		Domain domain = domains.get(getRegistrableDomain(host));
+		if (domain != null) {
+			for (Entry entry : domain.entries) {
+				if (entry.cookie.hasExpired()) {
+					continue;
+				}
+				boolean matches = entry.cookie.getDomain() == null
+					? (entry.uri != null && host != null && host.equalsIgnoreCase(entry.uri.getHost()))
+					: host != null && HttpCookie.domainMatches(entry.cookie.getDomain(), host);
+				if (matches) {
+					result.add(entry.cookie);
+				}
+			}
+		}
+		return result;
 	}
 
 	@Override
 	public List<HttpCookie> getCookies() {
+		load();
 		List<HttpCookie> result = new ArrayList<HttpCookie>();
-		for (List<HttpCookie> list : store.values())
-			result.addAll(list);
+		for (Domain domain : domains.values()) {
+			for (Entry entry : domain.entries) {
+				if (!entry.cookie.hasExpired()) {
+					result.add(entry.cookie);
+				}
+			}
+		}
 		return result;
 	}
 
 	@Override
 	public List<URI> getURIs() {
-		return new ArrayList<URI>(store.keySet());
+		load();
+		Set<URI> result = new LinkedHashSet<URI>();
+		for (Domain domain : domains.values()) {
+			for (Entry entry : domain.entries) {
+				if (entry.uri != null) {
+					result.add(entry.uri);
+				}
+			}
+		}
+		return new ArrayList<URI>(result);
 	}
 
 	@Override
 	public boolean remove(URI uri, HttpCookie cookie) {
-		if (store.containsKey(uri)) {
-			store.get(uri).remove(cookie);
-			return true;
+		String key = getKey(uri, cookie);
+		load();
+		Domain domain = domains.get(key);
+		boolean removed = domain != null && domain.remove(cookie);
+		if (removed) {
+			removeIfEmpty(key, domain);
 		}
-		else
-			return false;
+		if (removed && journal != null) {
+			try {
+				journal.remove(uri, cookie);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return removed;
 	}
 
 	@Override
 	public boolean removeAll() {
-		store.clear();
+		// no need to load the journal, we are clearing it anyway
+		loaded = true;
+		domains.clear();
+		if (journal != null) {
+			try {
+				journal.clear();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		return true;
 	}
 
+	/**
+	 * Removes all expired cookies, this is done periodically in the background but can be triggered manually
+	 */
+	public void evictExpired() {
+		int live = 0;
+		for (Map.Entry<String, Domain> domain : domains.entrySet()) {
+			domain.getValue().evictExpired();
+			live += domain.getValue().entries.length;
+			removeIfEmpty(domain.getKey(), domain.getValue());
+		}
+		if (journal != null && loaded && journal.isCompactionNeeded(live)) {
+			compact();
+		}
+	}
+	
+	/**
+	 * Rewrites the journal so it only contains the current cookies
+	 */
+	public void compact() {
+		if (journal != null) {
+			load();
+			// we hold the journal lock while taking the snapshot so no changes can be appended in between
+			synchronized(journal) {
+				List<CookieJournal.JournalEntry> entries = new ArrayList<CookieJournal.JournalEntry>();
+				for (Domain domain : domains.values()) {
+					for (Entry entry : domain.entries) {
+						entries.add(new CookieJournal.JournalEntry(entry.uri, entry.cookie, entry.created));
+					}
+				}
+				try {
+					journal.compact(entries);
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Without a public suffix list we approximate the registrable domain as the last two labels, ip addresses are used as is.
+	 * This is only used for indexing, the actual matching is done on the full domain.
+	 */
+	static String getRegistrableDomain(String host) {
+		if (host == null) {
+			return "";
+		}
+		host = host.toLowerCase();
+		if (host.startsWith(".")) {
+			host = host.substring(1);
+		}
+		// ipv6 or ipv4
+		if (host.indexOf(':') >= 0 || isIPv4(host)) {
+			return host;
+		}
+		int last = host.lastIndexOf('.');
+		if (last <= 0) {
+			return host;
+		}
+		int secondToLast = host.lastIndexOf('.', last - 1);
+		return secondToLast < 0 ? host : host.substring(secondToLast + 1);
+	}
+
+	private static boolean isIPv4(String host) {
+		for (int i = 0; i < host.length(); i++) {
+			char character = host.charAt(i);
+			if (character != '.' && (character < '0' || character > '9')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getMaxCookiesPerDomain() {
+		return maxCookiesPerDomain;
+	}
+	
+	// the amount of domains in the index
+	int getDomainCount() {
+		return domains.size();
+	}
+
+	private static class Entry {
+		private URI uri;
+		private HttpCookie cookie;
+		private long created;
+
+		public Entry(URI uri, HttpCookie cookie, long created) {
+			this.uri = uri;
+			this.cookie = cookie;
+			this.created = created;
+		}
+	}
+
+	private static class Domain {
+		// copy on write, readers always see a consistent snapshot
+		private volatile Entry [] entries = new Entry[0];
+		// set when the empty domain is removed from the index, it can no longer be added to
+		private boolean discarded;
+
+		public synchronized boolean add(URI uri, HttpCookie cookie, long created, int max) {
+			if (discarded) {
+				return false;
+			}
+			List<Entry> list = new ArrayList<Entry>(entries.length + 1);
+			for (Entry entry : entries) {
+				// a new version of the cookie replaces the old one
+				if (!entry.cookie.equals(cookie) && !entry.cookie.hasExpired()) {
+					list.add(entry);
+				}
+			}
+			// a max age of 0 means the cookie should be removed
+			if (!cookie.hasExpired()) {
+				list.add(new Entry(uri, cookie, created));
+			}
+			// drop the oldest cookies if we have too many
+			while (max > 0 && list.size() > max) {
+				list.remove(0);
+			}
+			entries = list.toArray(new Entry[list.size()]);
+			return true;
+		}
+
+		public synchronized boolean remove(HttpCookie cookie) {
+			for (int i = 0; i < entries.length; i++) {
+				if (entries[i].cookie.equals(cookie)) {
+					Entry [] result = Arrays.copyOf(entries, entries.length - 1);
+					System.arraycopy(entries, i + 1, result, i, entries.length - i - 1);
+					entries = result;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public synchronized void evictExpired() {
+			List<Entry> list = new ArrayList<Entry>(entries.length);
+			for (Entry entry : entries) {
+				if (!entry.cookie.hasExpired()) {
+					list.add(entry);
+				}
+			}
+			if (list.size() != entries.length) {
+				entries = list.toArray(new Entry[list.size()]);
+			}
+		}
+	}
 }
@@ -26,6 +26,8 @@ import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.Container;
 import be.nabu.utils.mime.api.ModifiablePart;
 import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
 
 public class DefaultHTTPRequest implements HTTPRequest {
 	
@@ -82,10 +84,12 @@ public class DefaultHTTPRequest implements HTTPRequest {
 
 	@Override
 	public String toString() {
-		HTTPFormatter formatter = new HTTPFormatter();
+		HTTPFormatter formatter = HTTPFormatterConfiguration.DEFAULT.getFormatter();
 		Container<ByteBuffer> target = IOUtils.newByteBuffer();
 		try {
-			formatter.formatRequest(this, target);
+			// only a description, the content is only included if it can be read again
+			HTTPRequest request = content == null || MimeUtils.isReopenable(content) ? this : new DefaultHTTPRequest(protocol, method, this.target, new PlainMimeEmptyPart(null, content.getHeaders()), version);
+			formatter.formatRequest(request, target);
 			return new String(IOUtils.toBytes(target), "UTF-8");
 		}
 		catch (Exception e) {
@@ -20,11 +20,14 @@ package be.nabu.libs.http.core;
 import java.util.Date;
 
 import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
 import be.nabu.libs.http.api.LinkableHTTPResponse;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.Container;
 import be.nabu.utils.mime.api.ModifiablePart;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
 
 public class DefaultHTTPResponse implements LinkableHTTPResponse {
 	private int code;
@@ -75,10 +78,12 @@ public class DefaultHTTPResponse implements LinkableHTTPResponse {
 	}
 	@Override
 	public String toString() {
-		HTTPFormatter formatter = new HTTPFormatter();
+		HTTPFormatter formatter = HTTPFormatterConfiguration.DEFAULT.getFormatter();
 		Container<ByteBuffer> target = IOUtils.newByteBuffer();
 		try {
-			formatter.formatResponse(this, target);
+			// only a description, the content is only included if it can be read again (formatting spilled content would delete it)
+			HTTPResponse response = content == null || (MimeUtils.isReopenable(content) && !(content instanceof TemporaryFileContentPart)) ? this : new DefaultHTTPResponse(protocol, request, code, message, new PlainMimeEmptyPart(null, content.getHeaders()), version);
+			formatter.formatResponse(response, target);
 			return new String(IOUtils.toBytes(target), "UTF-8");
 		}
 		catch (Exception e) {
@@ -0,0 +1,35 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.MultiPart;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+
+/**
+ * Content that is already in the form described by its headers (e.g. a precompressed gzip file with the matching Content-Encoding).
+ * The HTTPFormatter writes it as is instead of letting the mime formatter apply the content encoding again.
+ */
+public class EncodedContentPart extends PlainMimeContentPart {
+
+	public EncodedContentPart(MultiPart parent, ReadableContainer<ByteBuffer> content, Header...headers) {
+		super(parent, content, headers);
+	}
+}
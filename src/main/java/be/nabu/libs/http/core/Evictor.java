@@ -0,0 +1,69 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs periodic evictions (e.g. expired cookies or idle compressors) on a single shared daemon thread.
+ * The scheduled task only holds a weak reference to its target, once the target is garbage collected it is no longer rescheduled.
+ */
+class Evictor {
+
+	private static ScheduledExecutorService executor;
+
+	interface Eviction<T> {
+		public void evict(T target);
+	}
+
+	/**
+	 * The eviction should not hold on to the target itself (e.g. create it in a static context)
+	 */
+	static synchronized <T> void schedule(T target, final Eviction<T> eviction, final long interval) {
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "http-core-evictor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		final ScheduledExecutorService executor = Evictor.executor;
+		final WeakReference<T> reference = new WeakReference<T>(target);
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				T target = reference.get();
+				if (target != null) {
+					try {
+						eviction.evict(target);
+					}
+					finally {
+						executor.schedule(this, interval, TimeUnit.MILLISECONDS);
+					}
+				}
+			}
+		}, interval, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,56 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.File;
+
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.MultiPart;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+
+/**
+ * Content that is (a region of) a file on the local file system.
+ * If the content is sent as is, the HTTPFormatter copies it straight from the file to the output without going through the readable.
+ * The readable is still used when the content has to be transformed, e.g. compressed.
+ */
+public class FileContentPart extends PlainMimeContentPart {
+
+	private File file;
+	private long offset, length;
+
+	public FileContentPart(MultiPart parent, ReadableContainer<ByteBuffer> content, File file, long offset, long length, Header...headers) {
+		super(parent, content, headers);
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getLength() {
+		return length;
+	}
+}
@@ -0,0 +1,169 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.utils.mime.api.Header;
+
+/**
+ * A parsed view on the cookies in a set of headers, it is remembered with the cookie headers it was parsed from.
+ */
+public class HTTPCookies {
+
+	private Reference<Header> [] cookieHeaders;
+	private String [] names, values;
+	private int size;
+
+	private HTTPCookies(Header [] cookieHeaders) {
+		this.cookieHeaders = HeaderViews.refer(cookieHeaders);
+		this.names = new String[8];
+		this.values = new String[8];
+		for (Header header : cookieHeaders) {
+			add(header.getValue());
+			if (header.getComments() != null) {
+				for (String comment : header.getComments()) {
+					add(comment);
+				}
+			}
+		}
+	}
+
+	public static HTTPCookies of(Header...headers) {
+		Header anchor = null;
+		for (Header header : headers) {
+			if (header.getName().equalsIgnoreCase("Cookie")) {
+				anchor = header;
+				break;
+			}
+		}
+		// nothing to remember
+		if (anchor == null) {
+			return new HTTPCookies(new Header[0]);
+		}
+		HeaderViews views = HeaderViews.get(anchor);
+		HTTPCookies cookies = views.cookies;
+		if (cookies == null || !cookies.isFor(headers)) {
+			int amount = 0;
+			for (Header header : headers) {
+				if (header.getName().equalsIgnoreCase("Cookie")) {
+					amount++;
+				}
+			}
+			Header [] cookieHeaders = new Header[amount];
+			amount = 0;
+			for (Header header : headers) {
+				if (header.getName().equalsIgnoreCase("Cookie")) {
+					cookieHeaders[amount++] = header;
+				}
+			}
+			cookies = new HTTPCookies(cookieHeaders);
+			views.cookies = cookies;
+		}
+		return cookies;
+	}
+
+	// checks that the cookie headers are the exact same instances we parsed
+	private boolean isFor(Header...headers) {
+		int index = 0;
+		for (Header header : headers) {
+			if (header.getName().equalsIgnoreCase("Cookie")) {
+				if (index >= cookieHeaders.length || cookieHeaders[index].get() != header) {
+					return false;
+				}
+				index++;
+			}
+		}
+		return index == cookieHeaders.length;
+	}
+
+	private void add(String cookie) {
+		if (cookie == null) {
+			return;
+		}
+		int index = cookie.indexOf('=');
+		if (index > 0) {
+			if (size == names.length) {
+				names = Arrays.copyOf(names, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			names[size] = cookie.substring(0, index).trim();
+			values[size++] = cookie.substring(index + 1).trim();
+		}
+	}
+
+	/**
+	 * Returns the first non-empty value for the cookie with the given name
+	 */
+	public String getFirst(String name) {
+		for (int i = 0; i < size; i++) {
+			if (names[i].equals(name) && !values[i].isEmpty()) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the first non-empty value of a cookie whose name starts with the given prefix (case insensitive)
+	 */
+	public String getFirstWithPrefix(String prefix) {
+		for (int i = 0; i < size; i++) {
+			if (names[i].regionMatches(true, 0, prefix, 0, prefix.length()) && !values[i].isEmpty()) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+
+	public boolean contains(String name) {
+		for (int i = 0; i < size; i++) {
+			if (names[i].equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Builds a new map with all the cookies, empty values are not added but the name is registered
+	 */
+	public Map<String, List<String>> toMap() {
+		Map<String, List<String>> result = new HashMap<String, List<String>>();
+		for (int i = 0; i < size; i++) {
+			List<String> list = result.get(names[i]);
+			if (list == null) {
+				list = new ArrayList<String>();
+				result.put(names[i], list);
+			}
+			if (!values[i].isEmpty()) {
+				list.add(values[i]);
+			}
+		}
+		return result;
+	}
+
+	public int size() {
+		return size;
+	}
+}
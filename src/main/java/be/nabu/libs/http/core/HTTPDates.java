@@ -0,0 +1,227 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.text.ParseException;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Date;
+
+/**
+ * Formats and parses http dates without SimpleDateFormat.
+ *
+ * Formatting always uses the IMF-fixdate format (e.g. "Sun, 06 Nov 1994 08:49:37 GMT"), the result is cached per second as most dates are "now".
+ * Parsing supports the three formats of RFC 7231:
+ * - IMF-fixdate: Sun, 06 Nov 1994 08:49:37 GMT
+ * - RFC 850: Sunday, 06-Nov-94 08:49:37 GMT
+ * - asctime: Sun Nov  6 08:49:37 1994
+ * The last parsed value is remembered, conditional requests tend to send the same value over and over.
+ */
+public class HTTPDates {
+
+	private static final String [] DAYS = new String [] { "Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun" };
+	private static final String [] MONTHS = new String [] { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+	private static volatile CachedDate lastFormatted, lastParsed;
+
+	public static String format(Date date) {
+		long second = Math.floorDiv(date.getTime(), 1000);
+		CachedDate cached = lastFormatted;
+		if (cached == null || cached.second != second) {
+			cached = new CachedDate(format(second, ' '), second);
+			lastFormatted = cached;
+		}
+		return cached.value;
+	}
+
+	/**
+	 * The date format used in the expires of a cookie, e.g. "Sun, 06-Nov-1994 08:49:37 GMT"
+	 */
+	public static String formatCookie(Date date) {
+		return format(Math.floorDiv(date.getTime(), 1000), '-');
+	}
+
+	private static String format(long second, char separator) {
+		LocalDateTime time = LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC);
+		StringBuilder builder = new StringBuilder(29);
+		builder.append(DAYS[time.getDayOfWeek().getValue() - 1]).append(", ");
+		pad(builder, time.getDayOfMonth(), 2).append(separator);
+		builder.append(MONTHS[time.getMonthValue() - 1]).append(separator);
+		pad(builder, time.getYear(), 4).append(' ');
+		pad(builder, time.getHour(), 2).append(':');
+		pad(builder, time.getMinute(), 2).append(':');
+		pad(builder, time.getSecond(), 2).append(" GMT");
+		return builder.toString();
+	}
+
+	private static StringBuilder pad(StringBuilder builder, int value, int length) {
+		for (int i = Integer.toString(value).length(); i < length; i++) {
+			builder.append('0');
+		}
+		return builder.append(value);
+	}
+
+	public static Date parse(String value) throws ParseException {
+		CachedDate cached = lastParsed;
+		if (cached != null && cached.value.equals(value)) {
+			return new Date(cached.second * 1000);
+		}
+		long second = new DateParser(value).parse();
+		lastParsed = new CachedDate(value, second);
+		return new Date(second * 1000);
+	}
+
+	private static class CachedDate {
+		private String value;
+		private long second;
+
+		public CachedDate(String value, long second) {
+			this.value = value;
+			this.second = second;
+		}
+	}
+
+	private static class DateParser {
+		private String value;
+		private int position;
+
+		public DateParser(String value) {
+			this.value = value;
+		}
+
+		public long parse() throws ParseException {
+			int year, month, day, hour, minute, second, offset = 0;
+			skipWhitespace();
+			// the weekday is not validated, it is redundant
+			skipLetters();
+			if (position < value.length() && value.charAt(position) == ',') {
+				position++;
+				skipWhitespace();
+				// IMF-fixdate or RFC 850, they only differ in separator and year
+				day = number(1, 2);
+				separator();
+				month = month();
+				separator();
+				int start = position;
+				year = number(2, 4);
+				if (position - start == 2) {
+					year += year < 70 ? 2000 : 1900;
+				}
+				skipWhitespace();
+				hour = number(2, 2);
+				expect(':');
+				minute = number(2, 2);
+				expect(':');
+				second = number(2, 2);
+				skipWhitespace();
+				offset = zone();
+			}
+			else {
+				// asctime
+				skipWhitespace();
+				month = month();
+				skipWhitespace();
+				day = number(1, 2);
+				skipWhitespace();
+				hour = number(2, 2);
+				expect(':');
+				minute = number(2, 2);
+				expect(':');
+				second = number(2, 2);
+				skipWhitespace();
+				year = number(4, 4);
+			}
+			skipWhitespace();
+			if (position != value.length()) {
+				throw new ParseException("Unexpected content in date: " + value, position);
+			}
+			try {
+				return LocalDateTime.of(year, month, day, hour, minute, second).toEpochSecond(ZoneOffset.UTC) - offset;
+			}
+			catch (DateTimeException e) {
+				throw new ParseException("Invalid date: " + value, 0);
+			}
+		}
+
+		private void skipWhitespace() {
+			while (position < value.length() && value.charAt(position) == ' ') {
+				position++;
+			}
+		}
+
+		private void skipLetters() {
+			while (position < value.length() && Character.isLetter(value.charAt(position))) {
+				position++;
+			}
+		}
+
+		private void separator() throws ParseException {
+			if (position >= value.length() || (value.charAt(position) != ' ' && value.charAt(position) != '-')) {
+				throw new ParseException("Expected a separator in date: " + value, position);
+			}
+			position++;
+		}
+
+		private void expect(char character) throws ParseException {
+			if (position >= value.length() || value.charAt(position) != character) {
+				throw new ParseException("Expected '" + character + "' in date: " + value, position);
+			}
+			position++;
+		}
+
+		private int number(int minLength, int maxLength) throws ParseException {
+			int start = position, result = 0;
+			while (position < value.length() && position - start < maxLength && value.charAt(position) >= '0' && value.charAt(position) <= '9') {
+				result = (result * 10) + (value.charAt(position++) - '0');
+			}
+			if (position - start < minLength) {
+				throw new ParseException("Expected a number in date: " + value, position);
+			}
+			return result;
+		}
+
+		private int month() throws ParseException {
+			if (position + 3 <= value.length()) {
+				for (int i = 0; i < MONTHS.length; i++) {
+					if (value.regionMatches(true, position, MONTHS[i], 0, 3)) {
+						position += 3;
+						return i + 1;
+					}
+				}
+			}
+			throw new ParseException("Expected a month in date: " + value, position);
+		}
+
+		// http dates are always in GMT, we also allow UTC and numeric offsets, the result is the offset in seconds
+		private int zone() throws ParseException {
+			for (String zone : new String [] { "GMT", "UTC", "Z" }) {
+				if (value.regionMatches(true, position, zone, 0, zone.length())) {
+					position += zone.length();
+					return 0;
+				}
+			}
+			if (position < value.length() && (value.charAt(position) == '+' || value.charAt(position) == '-')) {
+				int sign = value.charAt(position++) == '-' ? -1 : 1;
+				int offset = number(4, 4);
+				return sign * (((offset / 100) * 3600) + ((offset % 100) * 60));
+			}
+			throw new ParseException("Unsupported time zone in date: " + value, position);
+		}
+	}
+}
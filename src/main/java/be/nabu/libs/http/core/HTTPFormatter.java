@@ -18,22 +18,63 @@
 package be.nabu.libs.http.core;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import be.nabu.libs.http.api.HTTPRequest;
 import be.nabu.libs.http.api.HTTPResponse;
 import be.nabu.libs.resources.URIUtils;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
 import be.nabu.utils.io.api.WritableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.ModifiablePart;
+import be.nabu.utils.mime.api.Part;
 import be.nabu.utils.mime.impl.FormatException;
 import be.nabu.utils.mime.impl.HeaderEncoding;
 import be.nabu.utils.mime.impl.MimeFormatter;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
 
 public class HTTPFormatter {
 	
+	private static final byte [] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+	
+	// one cached status line per code, a different protocol, version or message replaces it so custom messages can never lock out the common ones
+	private static final StatusLine [] statusLines = new StatusLine[600];
+	
+	// the amount of encoded targets we keep for targets that are not already in encoded form
+	private static final int MAX_ENCODED_TARGETS = 1024;
+	@SuppressWarnings("serial")
+	private static Map<String, String> encodedTargets = Collections.synchronizedMap(new LinkedHashMap<String, String>(MAX_ENCODED_TARGETS, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_ENCODED_TARGETS;
+		}
+	});
+	
+	// the maximum size of content that is written in the same buffer as the headers
+	private static final int MAX_GATHERED_CONTENT = 16384;
+	private static ThreadLocal<ByteBuffer> pooledBuffers = new ThreadLocal<ByteBuffer>();
+	
+	// reused to copy files when we can't transfer to a channel
+	private static ThreadLocal<byte[]> copyBuffers = new ThreadLocal<byte[]>();
+	
 	private MimeFormatter formatter;
+	private boolean ignoreInternalHeaders, cacheEncodedTargets, gatheringWrites, directFileTransfer, pooledCompression;
+	// formatters that are shared through a configuration can not be modified
+	private boolean locked;
 	
 	public HTTPFormatter() {
 		this(true);
@@ -46,8 +87,9 @@ public class HTTPFormatter {
 		this.formatter.setAllowBinary(true);
 		// don't fold the header, IE does not support this
 		this.formatter.setFoldHeader(false);
+		this.ignoreInternalHeaders = ignoreInternalHeaders;
 		if (ignoreInternalHeaders) {
-			// ignore internal headers
+			// the parts nested in a multipart are written by the mime formatter itself, it needs to know which headers to skip
 			for (ServerHeader serverHeader : ServerHeader.values()) {
 				this.formatter.ignoreHeaders(serverHeader.getName());
 			}
@@ -55,47 +97,536 @@ public class HTTPFormatter {
 	}
 	
 	private void formatRequestLine(HTTPRequest request, WritableContainer<ByteBuffer> output) throws IOException {
-		try {
-			String firstLine = request.getMethod() + " " + new URI(URIUtils.encodeURI(request.getTarget(), false)).toASCIIString() + " " + request.getProtocol() + "/" + request.getVersion() + "\r\n";
-			//		String firstLine = request.getMethod() + " " + URIUtils.encodeURI(request.getTarget(), false) + " " + request.getProtocol() + "/" + request.getVersion() + "\r\n";
-			output.write(IOUtils.wrap(firstLine.getBytes("ASCII"), true));
+		String target = request.getTarget();
+		// most targets are plain ascii that is already encoded, no need to go through a full uri parse for those
+		if (!isEncoded(target)) {
+			String encoded = cacheEncodedTargets ? encodedTargets.get(target) : null;
+			if (encoded == null) {
+				try {
+					encoded = new URI(URIUtils.encodeURI(target, false)).toASCIIString();
+				}
+				catch (URISyntaxException e) {
+					throw new IOException(e);
+				}
+				if (cacheEncodedTargets) {
+					encodedTargets.put(target, encoded);
+				}
+			}
+			target = encoded;
 		}
-		catch (URISyntaxException e) {
-			throw new IOException(e);
+		String method = request.getMethod();
+		String protocol = request.getProtocol();
+		String version = formatVersion(request.getVersion());
+		byte [] firstLine = new byte[method.length() + target.length() + protocol.length() + version.length() + 5];
+		int offset = write(method, firstLine, 0);
+		firstLine[offset++] = ' ';
+		offset = write(target, firstLine, offset);
+		firstLine[offset++] = ' ';
+		offset = write(protocol, firstLine, offset);
+		firstLine[offset++] = '/';
+		offset = write(version, firstLine, offset);
+		firstLine[offset++] = '\r';
+		firstLine[offset++] = '\n';
+		output.write(IOUtils.wrap(firstLine, true));
+	}
+	
+	// only valid for ascii content
+	private static int write(String string, byte [] bytes, int offset) {
+		for (int i = 0; i < string.length(); i++) {
+			bytes[offset++] = (byte) string.charAt(i);
+		}
+		return offset;
+	}
+	
+	private static String formatVersion(double version) {
+		if (version == 1.1) {
+			return "1.1";
+		}
+		else if (version == 1.0) {
+			return "1.0";
+		}
+		return Double.toString(version);
+	}
+	
+	/**
+	 * Checks that the target only contains unreserved and reserved characters (except for the ones the uri parser treats specially) and valid percent-encodings
+	 */
+	static boolean isEncoded(String target) {
+		for (int i = 0; i < target.length(); i++) {
+			char character = target.charAt(i);
+			if ((character >= 'a' && character <= 'z') || (character >= 'A' && character <= 'Z') || (character >= '0' && character <= '9')) {
+				continue;
+			}
+			switch (character) {
+				case '-': case '.': case '_': case '~':
+				case ':': case '/': case '?': case '@':
+				case '!': case '$': case '&': case '\'': case '(': case ')': case '*': case '+': case ',': case ';': case '=':
+				break;
+				case '%':
+					if (i + 2 >= target.length() || Character.digit(target.charAt(i + 1), 16) < 0 || Character.digit(target.charAt(i + 2), 16) < 0) {
+						return false;
+					}
+					i += 2;
+				break;
+				default:
+					return false;
+			}
 		}
+		return true;
 	}
 	
 	public void formatRequestHeaders(HTTPRequest request, WritableContainer<ByteBuffer> output) throws IOException, FormatException {
 		formatRequestLine(request, output);
 		if (request.getContent() == null)
-			output.write(IOUtils.wrap("\r\n".getBytes(), true));
+			output.write(IOUtils.wrap(CRLF, true));
 		else
-			formatter.formatHeaders(request.getContent(), output);
+			formatHeaders(request.getContent(), output);
 	}
 	public void formatRequestContent(HTTPRequest request, WritableContainer<ByteBuffer> output) throws IOException, FormatException {
 		if (request.getContent() != null)
-			formatter.formatContent(request.getContent(), output);
+			formatContent(request.getContent(), output);
 	}
 	
 	public void formatRequest(HTTPRequest request, WritableContainer<ByteBuffer> output) throws IOException, FormatException {
-		formatRequestLine(request, output);
-		if (request.getContent() == null)
-			output.write(IOUtils.wrap("\r\n".getBytes(), true));
-		else
-			formatter.format(request.getContent(), output);
+		if (gatheringWrites) {
+			ByteBuffer buffer = getPooledBuffer();
+			try {
+				formatRequestLine(request, buffer);
+				formatGathered(request.getContent(), buffer, output);
+			}
+			finally {
+				release(buffer);
+			}
+		}
+		else {
+			formatRequestLine(request, output);
+			if (request.getContent() == null)
+				output.write(IOUtils.wrap(CRLF, true));
+			else
+				format(request.getContent(), output);
+		}
 	}
 	
 	public void formatResponse(HTTPResponse response, WritableContainer<ByteBuffer> output) throws IOException, FormatException {
-		String firstLine = response.getProtocol() + "/" + response.getVersion() + " " + response.getCode() + " " + response.getMessage() + "\r\n";
-		output.write(IOUtils.wrap(firstLine.getBytes("ASCII"), true));
-		if (response.getContent() == null)
-			output.write(IOUtils.wrap("\r\n".getBytes(), true));
-		else
-			formatter.format(response.getContent(), output);
+		if (gatheringWrites) {
+			ByteBuffer buffer = getPooledBuffer();
+			try {
+				buffer.write(getStatusLine(response));
+				formatGathered(response.getContent(), buffer, output);
+			}
+			finally {
+				release(buffer);
+			}
+		}
+		else {
+			output.write(IOUtils.wrap(getStatusLine(response), true));
+			if (response.getContent() == null)
+				output.write(IOUtils.wrap(CRLF, true));
+			else
+				format(response.getContent(), output);
+		}
+		// spilled content is only sent once, there is no need to wait for the garbage collector to remove the file
+		if (response.getContent() instanceof TemporaryFileContentPart) {
+			((TemporaryFileContentPart) response.getContent()).release();
+		}
+	}
+	
+	/**
+	 * The start line is already in the buffer, we add the header block and, if it is small enough, the content so it can be written in one go
+	 */
+	private void formatGathered(ModifiablePart content, ByteBuffer buffer, WritableContainer<ByteBuffer> output) throws IOException, FormatException {
+		if (content == null) {
+			buffer.write(CRLF);
+			flush(buffer, output);
+		}
+		else if (isGatherable(content)) {
+			format(content, buffer);
+			flush(buffer, output);
+		}
+		else {
+			formatHeaders(content, buffer);
+			flush(buffer, output);
+			formatContent(content, output);
+		}
+	}
+	
+	private void format(ModifiablePart content, WritableContainer<ByteBuffer> output) throws IOException, FormatException {
+		Part visible = getVisible(content);
+		if (visible != content || content instanceof EncodedContentPart || isDirectFile(content) || isPooledCompression(content)) {
+			formatter.formatHeaders(visible, output);
+			formatContent(content, output);
+		}
+		else {
+			formatter.format(content, output);
+		}
+	}
+	
+	// encoded content is copied as is, the mime formatter would apply the content encoding again
+	private void formatContent(ModifiablePart content, WritableContainer<ByteBuffer> output) throws IOException, FormatException {
+		if (isDirectFile(content)) {
+			writeFile((FileContentPart) content, output);
+		}
+		else if (content instanceof EncodedContentPart) {
+			ReadableContainer<ByteBuffer> readable = ((EncodedContentPart) content).getReadable();
+			if (readable != null) {
+				try {
+					IOUtils.copyBytes(readable, output);
+				}
+				finally {
+					readable.close();
+				}
+			}
+		}
+		else if (isPooledCompression(content)) {
+			compress((ContentPart) content, output);
+		}
+		else {
+			formatter.formatContent(content, output);
+		}
+	}
+	
+	// we only take over the simple cases: no known length and either chunked or delimited by the end of the connection
+	private boolean isPooledCompression(ModifiablePart content) {
+		if (!pooledCompression || !(content instanceof ContentPart) || content instanceof EncodedContentPart) {
+			return false;
+		}
+		Header[] headers = content.getHeaders();
+		Header contentEncoding = MimeUtils.getHeader("Content-Encoding", headers);
+		Header transferEncoding = MimeUtils.getHeader("Transfer-Encoding", headers);
+		if (contentEncoding == null || MimeUtils.getHeader("Content-Length", headers) != null) {
+			return false;
+		}
+		if (transferEncoding != null && !"chunked".equalsIgnoreCase(MimeUtils.getFullHeaderValue(transferEncoding).trim())) {
+			return false;
+		}
+		String encoding = MimeUtils.getFullHeaderValue(contentEncoding).trim();
+		return "gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding) || "deflate".equalsIgnoreCase(encoding);
+	}
+	
+	private static void compress(ContentPart content, WritableContainer<ByteBuffer> output) throws IOException {
+		Header[] headers = content.getHeaders();
+		ContainerOutputStream stream = new ContainerOutputStream(output, MimeUtils.getHeader("Transfer-Encoding", headers) != null);
+		OutputStream encoded = CompressionPool.getInstance().encode(stream, MimeUtils.getFullHeaderValue(MimeUtils.getHeader("Content-Encoding", headers)).trim());
+		ReadableContainer<ByteBuffer> readable = content.getReadable();
+		boolean finished = false;
+		try {
+			if (readable != null) {
+				IOUtils.copyBytes(readable, IOUtils.wrap(encoded));
+			}
+			encoded.close();
+			stream.end();
+			finished = true;
+		}
+		finally {
+			// return the deflater without writing anything else to the output
+			if (!finished) {
+				stream.discard();
+				encoded.close();
+			}
+			if (readable != null) {
+				readable.close();
+			}
+		}
+	}
+	
+	// a file can only be copied directly if it does not need to be encoded
+	private boolean isDirectFile(ModifiablePart content) {
+		if (!directFileTransfer || !(content instanceof FileContentPart)) {
+			return false;
+		}
+		Header[] headers = content.getHeaders();
+		return MimeUtils.getHeader("Content-Encoding", headers) == null && MimeUtils.getHeader("Transfer-Encoding", headers) == null;
+	}
+	
+	/**
+	 * If the output exposes its channel, the file is transferred to it directly (zero copy where the os supports it), that channel must be blocking.
+	 * Otherwise the file is read into a reusable buffer and copied to the output.
+	 */
+	private static void writeFile(FileContentPart content, WritableContainer<ByteBuffer> output) throws IOException {
+		try (FileChannel channel = FileChannel.open(content.getFile().toPath(), StandardOpenOption.READ)) {
+			long position = content.getOffset();
+			long end = position + content.getLength();
+			if (end > channel.size()) {
+				throw new IOException("The file '" + content.getFile() + "' is smaller than the expected " + end + " bytes");
+			}
+			WritableByteChannel target = output instanceof WritableChannelProvider ? ((WritableChannelProvider) output).getWritableChannel() : null;
+			if (target != null) {
+				// we can not resume a transfer later on, a partial write would corrupt the response
+				if (target instanceof SelectableChannel && !((SelectableChannel) target).isBlocking()) {
+					throw new IOException("The channel of a WritableChannelProvider must be blocking for direct file transfers");
+				}
+				// the headers may still be buffered, they have to go first
+				output.flush();
+				while (position < end) {
+					long transferred = channel.transferTo(position, end - position, target);
+					if (transferred <= 0) {
+						throw new IOException("The channel did not accept the file at position " + position + ", it must be blocking for direct file transfers");
+					}
+					position += transferred;
+				}
+			}
+			else {
+				byte [] bytes = copyBuffers.get();
+				if (bytes == null) {
+					bytes = new byte[65536];
+					copyBuffers.set(bytes);
+				}
+				java.nio.ByteBuffer read = java.nio.ByteBuffer.wrap(bytes);
+				ByteBuffer buffer = IOUtils.newByteBuffer(bytes.length, false);
+				while (position < end) {
+					read.clear();
+					read.limit((int) Math.min(bytes.length, end - position));
+					int amount = channel.read(read, position);
+					if (amount < 0) {
+						throw new IOException("The file '" + content.getFile() + "' ended before the expected " + end + " bytes");
+					}
+					buffer.write(bytes, 0, amount);
+					flush(buffer, output);
+					position += amount;
+				}
+			}
+		}
+	}
+	
+	private void formatHeaders(Part part, WritableContainer<ByteBuffer> output) throws IOException, FormatException {
+		formatter.formatHeaders(getVisible(part), output);
+	}
+	
+	/**
+	 * Internal headers are never sent, they are recognized through the header table in a single pass over the headers.
+	 * The part itself is never modified (it may be in use elsewhere), if it has internal headers we format the headers of a copy without them.
+	 */
+	private Part getVisible(Part part) {
+		if (!ignoreInternalHeaders) {
+			return part;
+		}
+		Header [] headers = part.getHeaders();
+		if (headers == null) {
+			return part;
+		}
+		int internal = 0;
+		for (Header header : headers) {
+			if (ServerHeader.isInternal(header.getName())) {
+				internal++;
+			}
+		}
+		if (internal == 0) {
+			return part;
+		}
+		Header [] visible = new Header[headers.length - internal];
+		int index = 0;
+		for (Header header : headers) {
+			if (!ServerHeader.isInternal(header.getName())) {
+				visible[index++] = header;
+			}
+		}
+		return new PlainMimeEmptyPart(null, visible);
+	}
+	
+	// only content with a known small size that is sent as-is can be gathered
+	private boolean isGatherable(ModifiablePart content) {
+		if (!(content instanceof ContentPart)) {
+			return false;
+		}
+		Header[] headers = content.getHeaders();
+		Long contentLength = MimeUtils.getContentLength(headers);
+		return contentLength != null && contentLength <= MAX_GATHERED_CONTENT
+			&& MimeUtils.getHeader("Content-Encoding", headers) == null
+			&& MimeUtils.getHeader("Transfer-Encoding", headers) == null;
+	}
+	
+	private static void flush(ByteBuffer buffer, WritableContainer<ByteBuffer> output) throws IOException {
+		while (buffer.remainingData() > 0) {
+			if (output.write(buffer) <= 0) {
+				throw new IOException("The output did not accept the formatted message, gathering writes, direct file transfers and pooled compression require a blocking or buffered output");
+			}
+		}
+	}
+	
+	// writes the compressed data to the output, optionally in chunks
+	private static class ContainerOutputStream extends OutputStream {
+		private WritableContainer<ByteBuffer> output;
+		private ByteBuffer buffer = IOUtils.newByteBuffer(8192, false);
+		private boolean chunked, discard;
+
+		public ContainerOutputStream(WritableContainer<ByteBuffer> output, boolean chunked) {
+			this.output = output;
+			this.chunked = chunked;
+		}
+
+		@Override
+		public void write(int value) throws IOException {
+			write(new byte [] { (byte) value }, 0, 1);
+		}
+
+		@Override
+		public void write(byte [] bytes, int offset, int length) throws IOException {
+			if (length == 0 || discard) {
+				return;
+			}
+			if (chunked) {
+				writeBytes((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+				writeBytes(bytes, offset, length);
+				writeBytes(CRLF);
+			}
+			else {
+				writeBytes(bytes, offset, length);
+			}
+		}
+
+		public void end() throws IOException {
+			if (chunked && !discard) {
+				writeBytes("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			}
+		}
+
+		public void discard() {
+			discard = true;
+		}
+
+		private void writeBytes(byte [] bytes) throws IOException {
+			writeBytes(bytes, 0, bytes.length);
+		}
+
+		private void writeBytes(byte [] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				int written = buffer.write(bytes, offset, length);
+				HTTPFormatter.flush(buffer, output);
+				offset += written;
+				length -= written;
+			}
+		}
+	}
+	
+	private static ByteBuffer getPooledBuffer() {
+		ByteBuffer buffer = pooledBuffers.get();
+		// if the pooled buffer is in use (e.g. reentrant formatting), we use a new one
+		if (buffer == null || buffer.remainingData() > 0) {
+			buffer = IOUtils.newByteBuffer();
+			if (pooledBuffers.get() == null) {
+				pooledBuffers.set(buffer);
+			}
+		}
+		return buffer;
+	}
+	
+	// make sure the pooled buffer is empty when it is reused, even if the formatting failed halfway
+	private static void release(ByteBuffer buffer) throws IOException {
+		if (buffer.remainingData() > 0) {
+			byte [] bytes = new byte[4096];
+			while (buffer.remainingData() > 0 && buffer.read(bytes) > 0) {
+				// discard
+			}
+		}
+	}
+
+	// a lookup does not allocate, the message is usually the same (constant) string so it is compared by identity first
+	private static byte [] getStatusLine(HTTPResponse response) {
+		int code = response.getCode();
+		StatusLine cached = code >= 0 && code < statusLines.length ? statusLines[code] : null;
+		if (cached != null && cached.matches(response.getProtocol(), response.getVersion(), response.getMessage())) {
+			return cached.bytes;
+		}
+		String firstLine = response.getProtocol() + "/" + response.getVersion() + " " + code + " " + response.getMessage() + "\r\n";
+		byte [] bytes = firstLine.getBytes(StandardCharsets.US_ASCII);
+		if (code >= 0 && code < statusLines.length) {
+			statusLines[code] = new StatusLine(response.getProtocol(), response.getVersion(), response.getMessage(), bytes);
+		}
+		return bytes;
 	}
 
+	// immutable so it can be shared between threads without synchronization
+	private static class StatusLine {
+		private final String protocol, message;
+		private final double version;
+		private final byte [] bytes;
+		
+		public StatusLine(String protocol, double version, String message, byte [] bytes) {
+			this.protocol = protocol;
+			this.version = version;
+			this.message = message;
+			this.bytes = bytes;
+		}
+		
+		public boolean matches(String protocol, double version, String message) {
+			return this.version == version
+				&& (this.message == message || (this.message != null && this.message.equals(message)))
+				&& (this.protocol == protocol || (this.protocol != null && this.protocol.equals(protocol)));
+		}
+	}
+
+	public boolean isCacheEncodedTargets() {
+		return cacheEncodedTargets;
+	}
+
+	/**
+	 * Keep a bounded cache of encoded targets, this is useful for clients that send to the same (non-ascii) endpoints over and over
+	 */
+	public void setCacheEncodedTargets(boolean cacheEncodedTargets) {
+		checkModifiable();
+		this.cacheEncodedTargets = cacheEncodedTargets;
+	}
+
+	public boolean isGatheringWrites() {
+		return gatheringWrites;
+	}
+
+	/**
+	 * Format the start line, the headers and (if it is small enough) the content into a pooled buffer that is written to the output at once.
+	 * This requires an output that accepts all the data in a single write (e.g. blocking or buffered).
+	 */
+	public void setGatheringWrites(boolean gatheringWrites) {
+		checkModifiable();
+		this.gatheringWrites = gatheringWrites;
+	}
+
+	public boolean isDirectFileTransfer() {
+		return directFileTransfer;
+	}
+
+	/**
+	 * Copy file content straight from the file to the output (or the channel behind it) instead of through the readable of the part.
+	 * If the output does not expose a channel, it must accept all the data it is given (e.g. blocking or buffered).
+	 */
+	public void setDirectFileTransfer(boolean directFileTransfer) {
+		checkModifiable();
+		this.directFileTransfer = directFileTransfer;
+	}
+
+	public boolean isPooledCompression() {
+		return pooledCompression;
+	}
+
+	/**
+	 * Compress content with a gzip or deflate Content-Encoding through the shared CompressionPool instead of the mime formatter.
+	 * This only applies to content without a Content-Length that is chunked or delimited by the end of the connection, other content is left to the mime formatter.
+	 * It should not be combined with disabled content encoding on the mime formatter.
+	 */
+	public void setPooledCompression(boolean pooledCompression) {
+		checkModifiable();
+		this.pooledCompression = pooledCompression;
+	}
+
+	/**
+	 * The mime formatter can not be made read only, so it is not available for locked formatters
+	 */
 	public MimeFormatter getFormatter() {
+		checkModifiable();
 		return formatter;
 	}
 	
+	void lock() {
+		this.locked = true;
+	}
+	
+	public boolean isLocked() {
+		return locked;
+	}
+	
+	private void checkModifiable() {
+		if (locked) {
+			throw new IllegalStateException("This formatter is shared by a configuration and can not be modified, use HTTPFormatterConfiguration.newFormatter() instead");
+		}
+	}
+	
 }
@@ -0,0 +1,146 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+/**
+ * An immutable formatter configuration that can be shared between threads.
+ * The formatters themselves are built once per thread and reused, they are locked so their settings can not be altered.
+ */
+public class HTTPFormatterConfiguration {
+
+	/**
+	 * The default formatter, internal headers are not sent
+	 */
+	public static final HTTPFormatterConfiguration DEFAULT = builder().build();
+
+	/**
+	 * For trace purposes we can't stream binary data, if you have for example gzip turned on, this would mess up most trace modes
+	 */
+	public static final HTTPFormatterConfiguration TRACE = builder().disableContentEncoding(true).build();
+
+	private boolean ignoreInternalHeaders, disableContentEncoding, cacheEncodedTargets, gatheringWrites, directFileTransfer, pooledCompression;
+
+	private ThreadLocal<HTTPFormatter> formatters = new ThreadLocal<HTTPFormatter>();
+
+	private HTTPFormatterConfiguration(Builder builder) {
+		this.ignoreInternalHeaders = builder.ignoreInternalHeaders;
+		this.disableContentEncoding = builder.disableContentEncoding;
+		this.cacheEncodedTargets = builder.cacheEncodedTargets;
+		this.gatheringWrites = builder.gatheringWrites;
+		this.directFileTransfer = builder.directFileTransfer;
+		this.pooledCompression = builder.pooledCompression;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Returns a formatter with this configuration that is bound to the current thread, it can not be modified
+	 */
+	public HTTPFormatter getFormatter() {
+		HTTPFormatter formatter = formatters.get();
+		if (formatter == null) {
+			formatter = newFormatter();
+			formatter.lock();
+			formatters.set(formatter);
+		}
+		return formatter;
+	}
+
+	/**
+	 * Creates a new formatter with this configuration that you can modify at will
+	 */
+	public HTTPFormatter newFormatter() {
+		HTTPFormatter formatter = new HTTPFormatter(ignoreInternalHeaders);
+		formatter.getFormatter().setDisableContentEncoding(disableContentEncoding);
+		formatter.setCacheEncodedTargets(cacheEncodedTargets);
+		formatter.setGatheringWrites(gatheringWrites);
+		formatter.setDirectFileTransfer(directFileTransfer);
+		// without content encoding the content is sent as is
+		formatter.setPooledCompression(pooledCompression && !disableContentEncoding);
+		return formatter;
+	}
+
+	public boolean isIgnoreInternalHeaders() {
+		return ignoreInternalHeaders;
+	}
+
+	public boolean isDisableContentEncoding() {
+		return disableContentEncoding;
+	}
+
+	public boolean isCacheEncodedTargets() {
+		return cacheEncodedTargets;
+	}
+
+	public boolean isGatheringWrites() {
+		return gatheringWrites;
+	}
+
+	public boolean isDirectFileTransfer() {
+		return directFileTransfer;
+	}
+
+	public boolean isPooledCompression() {
+		return pooledCompression;
+	}
+
+	public static class Builder {
+
+		private boolean ignoreInternalHeaders = true, disableContentEncoding, cacheEncodedTargets, gatheringWrites, directFileTransfer, pooledCompression;
+
+		private Builder() {
+			// use the static builder() method
+		}
+
+		public Builder ignoreInternalHeaders(boolean ignoreInternalHeaders) {
+			this.ignoreInternalHeaders = ignoreInternalHeaders;
+			return this;
+		}
+
+		public Builder disableContentEncoding(boolean disableContentEncoding) {
+			this.disableContentEncoding = disableContentEncoding;
+			return this;
+		}
+
+		public Builder cacheEncodedTargets(boolean cacheEncodedTargets) {
+			this.cacheEncodedTargets = cacheEncodedTargets;
+			return this;
+		}
+
+		public Builder gatheringWrites(boolean gatheringWrites) {
+			this.gatheringWrites = gatheringWrites;
+			return this;
+		}
+
+		public Builder directFileTransfer(boolean directFileTransfer) {
+			this.directFileTransfer = directFileTransfer;
+			return this;
+		}
+
+		public Builder pooledCompression(boolean pooledCompression) {
+			this.pooledCompression = pooledCompression;
+			return this;
+		}
+
+		public HTTPFormatterConfiguration build() {
+			return new HTTPFormatterConfiguration(this);
+		}
+	}
+}
@@ -0,0 +1,512 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeUtils;
+
+/**
+ * A parsed view on the proxy chain of a request, as described by the Forwarded header (https://tools.ietf.org/html/rfc7239) or the older X-Forwarded-For.
+ * The hops are in the order they were added: the first is the original client, the last is the proxy closest to us.
+ *
+ * Without trusted proxies, the first hop is considered the client (as before).
+ * With trusted proxies, we walk the chain from the back and the first address that is not a trusted proxy is the client, earlier hops can be spoofed.
+ */
+public class HTTPForwarded {
+
+	private static volatile TrustedProxy [] trustedProxies = new TrustedProxy[0];
+
+	private Reference<Header> [] forwardedHeaders;
+	private List<Hop> hops = new ArrayList<Hop>();
+	// the client is resolved lazily against the trusted proxies at that time
+	private TrustedProxy [] resolvedWith;
+	private Hop client;
+
+	private HTTPForwarded(Header [] forwardedHeaders) {
+		this.forwardedHeaders = HeaderViews.refer(forwardedHeaders);
+		for (Header header : forwardedHeaders) {
+			if (header.getName().equalsIgnoreCase("Forwarded")) {
+				parseForwarded(MimeUtils.getFullHeaderValue(header));
+			}
+		}
+		// only use the legacy header if there was no usable standard one
+		if (!hasAddress()) {
+			hops.clear();
+			for (Header header : forwardedHeaders) {
+				if (header.getName().equalsIgnoreCase("X-Forwarded-For")) {
+					parseForwardedFor(MimeUtils.getFullHeaderValue(header));
+				}
+			}
+		}
+	}
+
+	public static HTTPForwarded of(Header...headers) {
+		Header anchor = null;
+		for (Header header : headers) {
+			if (isForwardedHeader(header)) {
+				anchor = header;
+				break;
+			}
+		}
+		// nothing to remember
+		if (anchor == null) {
+			return new HTTPForwarded(new Header[0]);
+		}
+		HeaderViews views = HeaderViews.get(anchor);
+		HTTPForwarded forwarded = views.forwarded;
+		if (forwarded == null || !forwarded.isFor(headers)) {
+			List<Header> forwardedHeaders = new ArrayList<Header>();
+			for (Header header : headers) {
+				if (isForwardedHeader(header)) {
+					forwardedHeaders.add(header);
+				}
+			}
+			forwarded = new HTTPForwarded(forwardedHeaders.toArray(new Header[forwardedHeaders.size()]));
+			views.forwarded = forwarded;
+		}
+		return forwarded;
+	}
+
+	private static boolean isForwardedHeader(Header header) {
+		return header.getName().equalsIgnoreCase("Forwarded") || header.getName().equalsIgnoreCase("X-Forwarded-For");
+	}
+
+	// checks that the forwarding headers are the exact same instances we parsed
+	private boolean isFor(Header...headers) {
+		int index = 0;
+		for (Header header : headers) {
+			if (isForwardedHeader(header)) {
+				if (index >= forwardedHeaders.length || forwardedHeaders[index].get() != header) {
+					return false;
+				}
+				index++;
+			}
+		}
+		return index == forwardedHeaders.length;
+	}
+
+	private boolean hasAddress() {
+		for (Hop hop : hops) {
+			if (hop.address != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// e.g. Forwarded: for=192.0.2.60;proto=http;by=203.0.113.43, for="[2001:db8:cafe::17]:4711"
+	private void parseForwarded(String value) {
+		if (value == null) {
+			return;
+		}
+		Hop hop = new Hop();
+		int position = 0;
+		int length = value.length();
+		while (position < length) {
+			char character = value.charAt(position);
+			if (character == ' ' || character == '\t' || character == ';') {
+				position++;
+				continue;
+			}
+			if (character == ',') {
+				hops.add(hop);
+				hop = new Hop();
+				position++;
+				continue;
+			}
+			int keyStart = position;
+			while (position < length && "=;, \t".indexOf(value.charAt(position)) < 0) {
+				position++;
+			}
+			String key = value.substring(keyStart, position);
+			while (position < length && (value.charAt(position) == ' ' || value.charAt(position) == '\t')) {
+				position++;
+			}
+			String parameter = null;
+			if (position < length && value.charAt(position) == '=') {
+				position++;
+				while (position < length && (value.charAt(position) == ' ' || value.charAt(position) == '\t')) {
+					position++;
+				}
+				if (position < length && value.charAt(position) == '"') {
+					StringBuilder builder = new StringBuilder();
+					position++;
+					while (position < length && value.charAt(position) != '"') {
+						if (value.charAt(position) == '\\' && position + 1 < length) {
+							position++;
+						}
+						builder.append(value.charAt(position++));
+					}
+					// skip the closing quote
+					position++;
+					parameter = builder.toString();
+				}
+				else {
+					int valueStart = position;
+					while (position < length && ";, \t".indexOf(value.charAt(position)) < 0) {
+						position++;
+					}
+					parameter = value.substring(valueStart, position);
+				}
+			}
+			if (parameter != null) {
+				if (key.equalsIgnoreCase("for")) {
+					hop.setNode(parameter);
+				}
+				else if (key.equalsIgnoreCase("by")) {
+					hop.by = parameter;
+				}
+				else if (key.equalsIgnoreCase("proto")) {
+					hop.proto = parameter;
+				}
+				else if (key.equalsIgnoreCase("host")) {
+					hop.host = parameter;
+				}
+			}
+		}
+		hops.add(hop);
+	}
+
+	// e.g. X-Forwarded-For: client, proxy1, proxy2
+	private void parseForwardedFor(String value) {
+		if (value == null) {
+			return;
+		}
+		int start = 0;
+		while (start <= value.length()) {
+			int end = value.indexOf(',', start);
+			if (end < 0) {
+				end = value.length();
+			}
+			String node = value.substring(start, end).trim();
+			if (!node.isEmpty()) {
+				Hop hop = new Hop();
+				hop.setNode(node);
+				hops.add(hop);
+			}
+			start = end + 1;
+		}
+	}
+
+	public List<Hop> getHops() {
+		return hops;
+	}
+
+	/**
+	 * The original client according to the trusted proxies, this can be null if the chain contains no usable address
+	 */
+	public synchronized Hop getClient() {
+		TrustedProxy [] trusted = trustedProxies;
+		if (resolvedWith != trusted) {
+			client = resolve(trusted);
+			resolvedWith = trusted;
+		}
+		return client;
+	}
+
+	public String getClientAddress() {
+		Hop client = getClient();
+		return client == null ? null : client.address;
+	}
+
+	public Integer getClientPort() {
+		Hop client = getClient();
+		return client == null ? null : client.port;
+	}
+
+	private Hop resolve(TrustedProxy [] trusted) {
+		if (hops.isEmpty()) {
+			return null;
+		}
+		if (trusted.length == 0) {
+			return hops.get(0).address == null ? null : hops.get(0);
+		}
+		for (int i = hops.size() - 1; i >= 0; i--) {
+			Hop hop = hops.get(i);
+			if (hop.address == null) {
+				// unknown or obfuscated, we can't look beyond it
+				return null;
+			}
+			if (!isTrusted(trusted, hop.address)) {
+				return hop;
+			}
+		}
+		// everything is trusted, the first one is the best we have
+		return hops.get(0);
+	}
+
+	private static boolean isTrusted(TrustedProxy [] trusted, String address) {
+		byte [] bytes = null;
+		boolean parsed = false;
+		for (TrustedProxy proxy : trusted) {
+			if (proxy.address.equalsIgnoreCase(address)) {
+				return true;
+			}
+			if (proxy.network != null) {
+				if (!parsed) {
+					bytes = toBytes(address);
+					parsed = true;
+				}
+				if (bytes != null && proxy.contains(bytes)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// we only want literal ip addresses, they are parsed by hand so there is never a dns lookup
+	static byte [] toBytes(String address) {
+		if (address.indexOf(':') >= 0) {
+			byte [] bytes = toIPv6(address);
+			// an ipv4 mapped address is matched as ipv4
+			if (bytes != null && isIPv4Mapped(bytes)) {
+				byte [] ipv4 = new byte[4];
+				System.arraycopy(bytes, 12, ipv4, 0, 4);
+				return ipv4;
+			}
+			return bytes;
+		}
+		byte [] bytes = new byte[4];
+		return toIPv4(address, bytes, 0) ? bytes : null;
+	}
+
+	// exactly four decimal parts, each at most 255
+	private static boolean toIPv4(String address, byte [] bytes, int offset) {
+		String [] parts = address.split("\\.", -1);
+		if (parts.length != 4) {
+			return false;
+		}
+		for (int i = 0; i < parts.length; i++) {
+			if (parts[i].isEmpty() || parts[i].length() > 3) {
+				return false;
+			}
+			int value = 0;
+			for (int j = 0; j < parts[i].length(); j++) {
+				char character = parts[i].charAt(j);
+				if (character < '0' || character > '9') {
+					return false;
+				}
+				value = (value * 10) + (character - '0');
+			}
+			if (value > 255) {
+				return false;
+			}
+			bytes[offset + i] = (byte) value;
+		}
+		return true;
+	}
+
+	// groups of at most four hex digits, at most one "::" and optionally a dotted ipv4 address at the end
+	private static byte [] toIPv6(String address) {
+		int compressed = address.indexOf("::");
+		if (compressed >= 0 && address.indexOf("::", compressed + 1) >= 0) {
+			return null;
+		}
+		List<Integer> head = new ArrayList<Integer>();
+		List<Integer> tail = new ArrayList<Integer>();
+		if (compressed < 0) {
+			if (!toGroups(address, head, true)) {
+				return null;
+			}
+		}
+		else if (!toGroups(address.substring(0, compressed), head, false) || !toGroups(address.substring(compressed + 2), tail, true)) {
+			return null;
+		}
+		int groups = head.size() + tail.size();
+		if (compressed < 0 ? groups != 8 : groups > 7) {
+			return null;
+		}
+		byte [] bytes = new byte[16];
+		for (int i = 0; i < head.size(); i++) {
+			bytes[i * 2] = (byte) (head.get(i) >> 8);
+			bytes[(i * 2) + 1] = (byte) (int) head.get(i);
+		}
+		int offset = 16 - (tail.size() * 2);
+		for (int i = 0; i < tail.size(); i++) {
+			bytes[offset + (i * 2)] = (byte) (tail.get(i) >> 8);
+			bytes[offset + (i * 2) + 1] = (byte) (int) tail.get(i);
+		}
+		return bytes;
+	}
+
+	// only the last groups of the address can be a dotted ipv4 address
+	private static boolean toGroups(String value, List<Integer> groups, boolean last) {
+		if (value.isEmpty()) {
+			return true;
+		}
+		String [] parts = value.split(":", -1);
+		for (int i = 0; i < parts.length; i++) {
+			String part = parts[i];
+			if (last && i == parts.length - 1 && part.indexOf('.') >= 0) {
+				byte [] ipv4 = new byte[4];
+				if (!toIPv4(part, ipv4, 0)) {
+					return false;
+				}
+				groups.add(((ipv4[0] & 0xff) << 8) | (ipv4[1] & 0xff));
+				groups.add(((ipv4[2] & 0xff) << 8) | (ipv4[3] & 0xff));
+				continue;
+			}
+			if (part.isEmpty() || part.length() > 4) {
+				return false;
+			}
+			int group = 0;
+			for (int j = 0; j < part.length(); j++) {
+				char character = part.charAt(j);
+				// character.digit() would also accept non ascii digits
+				if ((character < '0' || character > '9') && (character < 'a' || character > 'f') && (character < 'A' || character > 'F')) {
+					return false;
+				}
+				group = (group << 4) | Character.digit(character, 16);
+			}
+			groups.add(group);
+		}
+		return true;
+	}
+
+	private static boolean isIPv4Mapped(byte [] bytes) {
+		for (int i = 0; i < 10; i++) {
+			if (bytes[i] != 0) {
+				return false;
+			}
+		}
+		return bytes[10] == (byte) 0xff && bytes[11] == (byte) 0xff;
+	}
+
+	/**
+	 * The proxies can be exact addresses or CIDR ranges, e.g. "10.0.0.0/8" or "2001:db8::/32"
+	 */
+	public static void setTrustedProxies(String...proxies) {
+		List<TrustedProxy> list = new ArrayList<TrustedProxy>();
+		if (proxies != null) {
+			for (String proxy : proxies) {
+				if (proxy != null && !proxy.trim().isEmpty()) {
+					list.add(new TrustedProxy(proxy.trim()));
+				}
+			}
+		}
+		trustedProxies = list.toArray(new TrustedProxy[list.size()]);
+	}
+
+	public static List<String> getTrustedProxies() {
+		List<String> result = new ArrayList<String>();
+		for (TrustedProxy proxy : trustedProxies) {
+			result.add(proxy.address + (proxy.network == null ? "" : "/" + proxy.prefix));
+		}
+		return result;
+	}
+
+	private static class TrustedProxy {
+		private String address;
+		private byte [] network;
+		private int prefix;
+
+		public TrustedProxy(String proxy) {
+			int index = proxy.indexOf('/');
+			this.address = index < 0 ? proxy : proxy.substring(0, index);
+			if (index >= 0) {
+				this.network = toBytes(address);
+				if (network == null) {
+					throw new IllegalArgumentException("Invalid network for trusted proxy: " + proxy);
+				}
+				this.prefix = Integer.parseInt(proxy.substring(index + 1));
+				if (prefix < 0 || prefix > network.length * 8) {
+					throw new IllegalArgumentException("Invalid prefix for trusted proxy: " + proxy);
+				}
+			}
+		}
+
+		public boolean contains(byte [] bytes) {
+			if (bytes.length != network.length) {
+				return false;
+			}
+			int full = prefix / 8;
+			for (int i = 0; i < full; i++) {
+				if (bytes[i] != network[i]) {
+					return false;
+				}
+			}
+			int remainder = prefix % 8;
+			if (remainder > 0) {
+				int mask = (0xff << (8 - remainder)) & 0xff;
+				return (bytes[full] & mask) == (network[full] & mask);
+			}
+			return true;
+		}
+	}
+
+	public static class Hop {
+		private String address, by, proto, host;
+		private Integer port;
+
+		// a node is an ip (v6 is between brackets), optionally with a port, or "unknown" or an obfuscated identifier starting with "_"
+		private void setNode(String node) {
+			node = node.trim();
+			String port = null;
+			if (node.startsWith("[")) {
+				int end = node.indexOf(']');
+				if (end < 0) {
+					return;
+				}
+				if (end + 1 < node.length() && node.charAt(end + 1) == ':') {
+					port = node.substring(end + 2);
+				}
+				node = node.substring(1, end);
+			}
+			else {
+				int index = node.indexOf(':');
+				// more than one colon is an ipv6 address without brackets (allowed in X-Forwarded-For)
+				if (index >= 0 && node.indexOf(':', index + 1) < 0) {
+					port = node.substring(index + 1);
+					node = node.substring(0, index);
+				}
+			}
+			if (!node.isEmpty() && !node.equalsIgnoreCase("unknown") && !node.startsWith("_")) {
+				this.address = node;
+			}
+			if (port != null && !port.isEmpty() && !port.startsWith("_")) {
+				try {
+					this.port = Integer.parseInt(port);
+				}
+				catch (NumberFormatException e) {
+					// invalid port, ignore it
+				}
+			}
+		}
+
+		public String getAddress() {
+			return address;
+		}
+		public Integer getPort() {
+			return port;
+		}
+		public String getBy() {
+			return by;
+		}
+		public String getProto() {
+			return proto;
+		}
+		public String getHost() {
+			return host;
+		}
+	}
+}
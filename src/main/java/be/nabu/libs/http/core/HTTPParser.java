@@ -19,8 +19,10 @@ package be.nabu.libs.http.core;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.Arrays;
 
 import be.nabu.libs.http.HTTPCodes;
+import be.nabu.libs.http.HTTPException;
 import be.nabu.libs.http.api.HTTPRequest;
 import be.nabu.libs.http.api.HTTPResponse;
 import be.nabu.libs.http.api.server.HTTPExpectContinueHandler;
@@ -34,14 +36,28 @@ import be.nabu.utils.io.api.CharBuffer;
 import be.nabu.utils.io.api.ReadableContainer;
 import be.nabu.utils.io.containers.chars.ReadableStraightByteToCharContainer;
 import be.nabu.utils.mime.api.ExpectContinueHandler;
+import be.nabu.utils.mime.api.Header;
 import be.nabu.utils.mime.api.ModifiablePart;
+import be.nabu.utils.mime.impl.MimeHeader;
 import be.nabu.utils.mime.impl.MimeParser;
 import be.nabu.utils.mime.impl.MimeUtils;
 
 public class HTTPParser {
 	
+	public static final int DEFAULT_MAX_REQUEST_LINE_LENGTH = 8192;
+	
 	private boolean isBlocking;
 	private DynamicResourceProvider dynamicResourceProvider;
+	// scan the request line straight from the bytes instead of going through a char container, string manipulation and regexes
+	private boolean byteLevelRequestLine;
+	// remove internal headers that were sent by the client, they can only be set by the server
+	private boolean stripInternalHeaders;
+	// the maximum length of a request line read at byte level, longer lines are rejected with a 414
+	private int maxRequestLineLength = DEFAULT_MAX_REQUEST_LINE_LENGTH;
+	
+	private static ThreadLocal<RequestLineBuffer> requestLineBuffers = new ThreadLocal<RequestLineBuffer>();
+	// a request line that is not complete yet
+	private volatile PendingLine pending;
 	
 	public HTTPParser(DynamicResourceProvider dynamicResourceProvider, boolean isBlocking) {
 		this.dynamicResourceProvider = dynamicResourceProvider;
@@ -60,8 +76,15 @@ public class HTTPParser {
 	 * @throws ParseException
 	 * @throws IOException
 	 */
-	@SuppressWarnings({ "unchecked", "resource" })
-	public HTTPRequest parseRequest(ReadableContainer<ByteBuffer> container, ExpectContinueHandler expectContinueHandler, String protocol) throws ParseException, IOException {		
+	@SuppressWarnings("resource")
+	public HTTPRequest parseRequest(ReadableContainer<ByteBuffer> container, ExpectContinueHandler expectContinueHandler, String protocol) throws ParseException, IOException {
+		if (byteLevelRequestLine) {
+			HTTPRequestLine requestLine = readRequestLine(container, protocol);
+			if (requestLine == null) {
+				return null;
+			}
+			return parseRequest(requestLine.getMethod(), requestLine.getTarget(), requestLine.getVersion(), container, expectContinueHandler, protocol);
+		}
 		ReadableContainer<CharBuffer> charContainer = new ReadableStraightByteToCharContainer(container);
 		charContainer = IOUtils.delimit(charContainer, "\n");
 		String request = IOUtils.toString(charContainer).trim();
@@ -76,7 +99,11 @@ public class HTTPParser {
 		// make sure multiple slashes are replaced by a single one
 		String target = request.substring(firstSpaceIndex + 1, protocolIndex).trim().replaceFirst("[/]{2,}", "/");
 		double version = new Double(request.substring(protocolIndex).replaceFirst(protocol + "/", "").trim());
-
+		return parseRequest(method, target, version, container, expectContinueHandler, protocol);
+	}
+	
+	@SuppressWarnings("unchecked")
+	HTTPRequest parseRequest(String method, String target, double version, ReadableContainer<ByteBuffer> container, ExpectContinueHandler expectContinueHandler, String protocol) throws ParseException, IOException {
 		MimeParser parser = new MimeParser();
 		// do NOT cleanup for blocking I/O, it may hang forever
 		parser.setCleanupWhitespaceBetweenBoundaries(!isBlocking);
@@ -92,11 +119,131 @@ public class HTTPParser {
 			? ((ContextualDynamicResourceProvider<String>) dynamicResourceProvider).createDynamicResource(target, container, protocol.toLowerCase() + "-request", "application/octet-stream", false)
 			: dynamicResourceProvider.createDynamicResource(container, protocol.toLowerCase() + "-request", "application/octet-stream", false);
 		ModifiablePart content = MimeUtils.wrapModifiable(parser.parse(dynamicResource));
-		if (dynamicResource instanceof LocatableResource) {
-			HTTPUtils.setHeader(content, ServerHeader.RESOURCE_URI, ((LocatableResource) dynamicResource).getUri().toString());
-		}
+		Header [] injected = dynamicResource instanceof LocatableResource
+			? new Header [] { new MimeHeader(ServerHeader.RESOURCE_URI.getName(), ((LocatableResource) dynamicResource).getUri().toString()) }
+			: new Header[0];
+		// strip the internal headers (if enabled) and index the rest for the lookups while handling the request
+		HeaderIndex.index(content, stripInternalHeaders, injected);
 		return new DefaultHTTPRequest(protocol, method, target, content, version);
 	}
+	
+	/**
+	 * Reads the request line byte by byte into a reusable buffer, we can't read ahead: everything after the linefeed belongs to the caller (e.g. the next request on a keep alive connection).
+	 * If a non blocking source has no data yet, we return null and keep the partial line, the next call with the same container continues where we left off.
+	 */
+	private HTTPRequestLine readRequestLine(ReadableContainer<ByteBuffer> container, String protocol) throws IOException, ParseException {
+		RequestLineBuffer buffer = requestLineBuffers.get();
+		if (buffer == null) {
+			buffer = new RequestLineBuffer();
+			requestLineBuffers.set(buffer);
+		}
+		int length = 0;
+		long consumed = 0;
+		if (pending != null && pending.container == container) {
+			if (pending.line.length > buffer.line.length) {
+				buffer.line = new byte[pending.line.length];
+			}
+			System.arraycopy(pending.line, 0, buffer.line, 0, pending.line.length);
+			length = pending.line.length;
+			consumed = pending.consumed;
+		}
+		pending = null;
+		boolean complete = false;
+		try {
+			long read;
+			while ((read = container.read(buffer.single)) > 0) {
+				buffer.single.read(buffer.singleBytes);
+				byte value = buffer.singleBytes[0];
+				// also bounds the amount of empty lines we are willing to skip
+				if (++consumed > maxRequestLineLength * 2l) {
+					throw new HTTPException(414, "The request line exceeds the maximum length of " + maxRequestLineLength);
+				}
+				if (value == '\n') {
+					// empty lines in front of the request line are ignored, see https://tools.ietf.org/html/rfc7230#section-3.5
+					if (isBlank(buffer.line, length)) {
+						length = 0;
+						continue;
+					}
+					complete = true;
+					break;
+				}
+				if (length >= maxRequestLineLength) {
+					throw new HTTPException(414, "The request line exceeds the maximum length of " + maxRequestLineLength);
+				}
+				if (length == buffer.line.length) {
+					buffer.line = Arrays.copyOf(buffer.line, Math.min(buffer.line.length * 2, maxRequestLineLength));
+				}
+				buffer.line[length++] = value;
+			}
+			// no data yet, this is not the end of the line
+			if (!complete && read == 0) {
+				if (consumed > 0) {
+					pending = new PendingLine(container, Arrays.copyOf(buffer.line, length), consumed);
+				}
+				return null;
+			}
+			return HTTPRequestLine.parse(buffer.line, 0, length, protocol);
+		}
+		finally {
+			// don't hold on to a large line for the lifetime of the thread
+			if (buffer.line.length > RequestLineBuffer.DEFAULT_SIZE) {
+				buffer.line = new byte[RequestLineBuffer.DEFAULT_SIZE];
+			}
+		}
+	}
+	
+	private static boolean isBlank(byte [] bytes, int length) {
+		for (int i = 0; i < length; i++) {
+			if (bytes[i] != ' ' && bytes[i] != '\r') {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static class RequestLineBuffer {
+		private static final int DEFAULT_SIZE = 256;
+		private ByteBuffer single = IOUtils.newByteBuffer(1, false);
+		private byte [] singleBytes = new byte[1];
+		private byte [] line = new byte[DEFAULT_SIZE];
+	}
+	
+	// the part of a request line we read before a non blocking source ran dry
+	private static class PendingLine {
+		private ReadableContainer<ByteBuffer> container;
+		private byte [] line;
+		private long consumed;
+		
+		public PendingLine(ReadableContainer<ByteBuffer> container, byte [] line, long consumed) {
+			this.container = container;
+			this.line = line;
+			this.consumed = consumed;
+		}
+	}
+
+	public boolean isByteLevelRequestLine() {
+		return byteLevelRequestLine;
+	}
+
+	public void setByteLevelRequestLine(boolean byteLevelRequestLine) {
+		this.byteLevelRequestLine = byteLevelRequestLine;
+	}
+
+	public int getMaxRequestLineLength() {
+		return maxRequestLineLength;
+	}
+
+	public void setMaxRequestLineLength(int maxRequestLineLength) {
+		this.maxRequestLineLength = maxRequestLineLength;
+	}
+
+	public boolean isStripInternalHeaders() {
+		return stripInternalHeaders;
+	}
+
+	public void setStripInternalHeaders(boolean stripInternalHeaders) {
+		this.stripInternalHeaders = stripInternalHeaders;
+	}
 
 	public boolean isBlocking() {
 		return isBlocking;
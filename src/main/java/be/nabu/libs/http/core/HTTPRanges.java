@@ -0,0 +1,381 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.TimestampedResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeUtils;
+
+/**
+ * Byte range requests, see https://tools.ietf.org/html/rfc7233
+ */
+public class HTTPRanges {
+
+	// more ranges than this is not a normal client, we send the full content instead
+	private static final int MAX_RANGES = 16;
+
+	/**
+	 * Parses the Range header for content of the given size.
+	 * Returns null if the header is absent, not a byte range or invalid (the full content should be sent), an empty list if none of the ranges can be satisfied.
+	 * Ranges that overlap or are adjacent are merged, the others keep the order in which they were requested.
+	 */
+	public static List<Range> parse(String value, long size) {
+		if (value == null) {
+			return null;
+		}
+		value = value.trim();
+		if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+			return null;
+		}
+		List<Range> ranges = new ArrayList<Range>();
+		int amount = 0;
+		for (String part : value.substring(6).split(",")) {
+			part = part.trim();
+			if (part.isEmpty()) {
+				continue;
+			}
+			if (++amount > MAX_RANGES) {
+				return null;
+			}
+			int index = part.indexOf('-');
+			if (index < 0) {
+				return null;
+			}
+			String first = part.substring(0, index).trim();
+			String last = part.substring(index + 1).trim();
+			long start, end;
+			try {
+				// suffix range: the last n bytes
+				if (first.isEmpty()) {
+					long suffix = Long.parseLong(last);
+					if (suffix < 0) {
+						return null;
+					}
+					if (suffix == 0 || size == 0) {
+						continue;
+					}
+					start = Math.max(0, size - suffix);
+					end = size - 1;
+				}
+				else {
+					start = Long.parseLong(first);
+					end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+					if (start < 0 || end < start) {
+						return null;
+					}
+					// unsatisfiable
+					if (start >= size) {
+						continue;
+					}
+					end = Math.min(end, size - 1);
+				}
+			}
+			catch (NumberFormatException e) {
+				return null;
+			}
+			ranges.add(new Range(start, end));
+		}
+		return amount == 0 ? null : merge(ranges);
+	}
+
+	// the union of a range with one it touches can only touch what either of them touched, so a single pass is enough
+	private static List<Range> merge(List<Range> ranges) {
+		List<Range> merged = new ArrayList<Range>();
+		for (Range range : ranges) {
+			int position = merged.size();
+			for (int i = merged.size() - 1; i >= 0; i--) {
+				Range other = merged.get(i);
+				if (range.start <= other.end + 1 && other.start <= range.end + 1) {
+					range = new Range(Math.min(range.start, other.start), Math.max(range.end, other.end));
+					merged.remove(i);
+					position = i;
+				}
+			}
+			merged.add(position, range);
+		}
+		return merged;
+	}
+
+	/**
+	 * Without an If-Range the ranges can always be applied, otherwise the validator has to match the current version of the resource.
+	 * The validator is either an entity tag (compared to the ETag of the response) or a date (compared to the last modified of the resource).
+	 */
+	public static boolean isRangeAllowed(ReadableResource resource, Header [] requestHeaders, Header...responseHeaders) {
+		Header ifRange = MimeUtils.getHeader("If-Range", requestHeaders);
+		if (ifRange == null) {
+			return true;
+		}
+		String value = MimeUtils.getFullHeaderValue(ifRange).trim();
+		if (value.startsWith("\"") || value.startsWith("W/")) {
+			Header etag = MimeUtils.getHeader("ETag", responseHeaders);
+			// weak entity tags can not be used for ranges
+			return etag != null && !value.startsWith("W/") && value.equals(MimeUtils.getFullHeaderValue(etag).trim());
+		}
+		if (resource instanceof TimestampedResource && ((TimestampedResource) resource).getLastModified() != null) {
+			try {
+				Date date = HTTPDates.parse(value);
+				// http dates have a precision of seconds
+				return date.getTime() / 1000 == ((TimestampedResource) resource).getLastModified().getTime() / 1000;
+			}
+			catch (ParseException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Opens the given region of the resource. Nothing is opened until it is read, so a response that is sent without its readable (e.g. a direct file transfer) does not hold on to a file.
+	 * For a file we position the channel so the data before the range is never read, other resources have to skip it.
+	 */
+	public static ReadableContainer<ByteBuffer> open(ReadableResource resource, File file, long offset, long length) {
+		return open(resource, file, Arrays.asList(new Range(offset, offset + length - 1)), Arrays.asList(new byte[0]), new byte[0]);
+	}
+
+	/**
+	 * Opens multiple ranges of the resource as a single readable, each range is preceded by its part header and the whole is followed by the trailer (as in multipart/byteranges).
+	 * Nothing is opened until it is read and the resource is only opened once: a file is positioned for every range, other resources are read forward and only reopened for a range that starts before the current position.
+	 */
+	public static ReadableContainer<ByteBuffer> open(ReadableResource resource, File file, List<Range> ranges, List<byte[]> partHeaders, byte [] trailer) {
+		return IOUtils.wrap(new RangesInputStream(resource, file, ranges, partHeaders, trailer));
+	}
+
+	public static class Range {
+		private long start, end;
+
+		public Range(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		// inclusive
+		public long getEnd() {
+			return end;
+		}
+
+		public long getLength() {
+			return end - start + 1;
+		}
+
+		public String toContentRange(long size) {
+			return "bytes " + start + "-" + end + "/" + size;
+		}
+	}
+
+	private static class LimitedInputStream extends InputStream {
+		private InputStream input;
+		private long remaining;
+
+		public LimitedInputStream(InputStream input, long length) {
+			this.input = input;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int read = input.read();
+			if (read >= 0) {
+				remaining--;
+			}
+			return read;
+		}
+
+		@Override
+		public int read(byte [] bytes, int offset, int length) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int read = input.read(bytes, offset, (int) Math.min(length, remaining));
+			if (read > 0) {
+				remaining -= read;
+			}
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			input.close();
+		}
+	}
+
+	private static class RangesInputStream extends InputStream {
+		private ReadableResource resource;
+		private File file;
+		private List<Range> ranges;
+		private List<byte[]> partHeaders;
+		private byte [] trailer;
+		private byte [] single = new byte[1];
+		// every range has two pieces (the part header and the data), the trailer is the last piece
+		private int piece = -1;
+		private InputStream current;
+		private LimitedInputStream range;
+		private FileChannel channel;
+		private InputStream source;
+		private long position;
+		private boolean closed;
+
+		public RangesInputStream(ReadableResource resource, File file, List<Range> ranges, List<byte[]> partHeaders, byte [] trailer) {
+			this.resource = resource;
+			this.file = file;
+			this.ranges = ranges;
+			this.partHeaders = partHeaders;
+			this.trailer = trailer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte [] bytes, int offset, int length) throws IOException {
+			if (closed) {
+				throw new IOException("The ranges are closed");
+			}
+			while (true) {
+				if (current == null && !next()) {
+					return -1;
+				}
+				int read = current.read(bytes, offset, length);
+				if (read >= 0) {
+					return read;
+				}
+				if (range != null && range.remaining > 0) {
+					throw new IOException("The resource ended before the requested range");
+				}
+				current = null;
+				range = null;
+			}
+		}
+
+		private boolean next() throws IOException {
+			piece++;
+			if (piece < ranges.size() * 2) {
+				if (piece % 2 == 0) {
+					current = new ByteArrayInputStream(partHeaders.get(piece / 2));
+				}
+				else {
+					Range next = ranges.get(piece / 2);
+					range = new LimitedInputStream(seek(next.getStart()), next.getLength());
+					current = range;
+					position = next.getEnd() + 1;
+				}
+				return true;
+			}
+			else if (piece == ranges.size() * 2) {
+				current = new ByteArrayInputStream(trailer);
+				return true;
+			}
+			return false;
+		}
+
+		// the limited stream is never closed, we close the source when we are done
+		private InputStream seek(long offset) throws IOException {
+			if (file != null) {
+				if (channel == null) {
+					channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				}
+				channel.position(offset);
+				return Channels.newInputStream(channel);
+			}
+			if (source == null || offset < position) {
+				if (source != null) {
+					source.close();
+				}
+				source = new ReadableInputStream(resource.getReadable());
+				position = 0;
+			}
+			while (position < offset) {
+				long skip = source.skip(offset - position);
+				if (skip <= 0) {
+					throw new IOException("The resource ended before the requested range");
+				}
+				position += skip;
+			}
+			return source;
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			}
+			finally {
+				if (source != null) {
+					source.close();
+				}
+			}
+		}
+	}
+
+	// reads a container as a stream so we can skip and limit it
+	private static class ReadableInputStream extends InputStream {
+		private ReadableContainer<ByteBuffer> container;
+		private ByteBuffer buffer = IOUtils.newByteBuffer(8192, false);
+		private byte [] single = new byte[1];
+
+		public ReadableInputStream(ReadableContainer<ByteBuffer> container) {
+			this.container = container;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte [] bytes, int offset, int length) throws IOException {
+			if (buffer.remainingData() == 0 && container.read(buffer) <= 0) {
+				return -1;
+			}
+			return buffer.read(bytes, offset, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			container.close();
+		}
+	}
+}
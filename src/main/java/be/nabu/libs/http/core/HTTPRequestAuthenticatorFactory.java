@@ -18,60 +18,128 @@
 package be.nabu.libs.http.core;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
-import be.nabu.libs.http.api.HTTPRequest;
 import be.nabu.libs.http.api.HTTPRequestAuthenticator;
 import be.nabu.libs.http.api.HTTPRequestAuthenticatorProvider;
-import be.nabu.libs.http.api.HTTPResponse;
 
+/**
+ * The registrations are kept in immutable snapshots that are replaced on every change (copy on write).
+ * The composite authenticator per name is built once and cached until the registrations change.
+ */
 public class HTTPRequestAuthenticatorFactory {
-	private static HTTPRequestAuthenticatorFactory instance;
+	private static volatile HTTPRequestAuthenticatorFactory instance;
 	
 	public static HTTPRequestAuthenticatorFactory getInstance() {
 		if (instance == null) {
-			instance = new HTTPRequestAuthenticatorFactory();
+			synchronized(HTTPRequestAuthenticatorFactory.class) {
+				if (instance == null) {
+					instance = new HTTPRequestAuthenticatorFactory();
+				}
+			}
 		}
 		return instance;
 	}
 	
-	private List<HTTPRequestAuthenticatorProvider> providers = new ArrayList<HTTPRequestAuthenticatorProvider>();
+	private volatile List<HTTPRequestAuthenticatorProvider> providers = Collections.emptyList();
+	
+	private volatile Map<String, List<HTTPRequestAuthenticator>> authenticators = Collections.emptyMap();
+	
+	// a concurrent map does not allow null keys, the unnamed composite is stored under a sentinel
+	private static final Object UNNAMED = new Object();
 	
-	private Map<String, List<HTTPRequestAuthenticator>> authenticators = new HashMap<String, List<HTTPRequestAuthenticator>>();
+	private Map<Object, HTTPRequestAuthenticator> composites = new ConcurrentHashMap<Object, HTTPRequestAuthenticator>();
+	
+	private ExecutorService executor;
+	private long timeout;
+	
+	// incremented on every change so we don't cache a composite that was built from an outdated snapshot
+	private volatile long generation;
 	
 	public Runnable register(final String name, final HTTPRequestAuthenticator authenticator) {
-		if (!authenticators.containsKey(name)) {
-			synchronized(this) {
-				if (!authenticators.containsKey(name)) {
-					authenticators.put(name, new ArrayList<HTTPRequestAuthenticator>());
-				}
-			}
+		synchronized(this) {
+			Map<String, List<HTTPRequestAuthenticator>> authenticators = new HashMap<String, List<HTTPRequestAuthenticator>>(this.authenticators);
+			List<HTTPRequestAuthenticator> list = authenticators.containsKey(name) ? new ArrayList<HTTPRequestAuthenticator>(authenticators.get(name)) : new ArrayList<HTTPRequestAuthenticator>();
+			list.add(authenticator);
+			authenticators.put(name, Collections.unmodifiableList(list));
+			this.authenticators = Collections.unmodifiableMap(authenticators);
+			changed();
 		}
-		authenticators.get(name).add(authenticator);
 		return new Runnable() {
 			@Override
 			public void run() {
-				authenticators.get(name).remove(authenticator);		
+				synchronized(HTTPRequestAuthenticatorFactory.this) {
+					List<HTTPRequestAuthenticator> current = authenticators.get(name);
+					if (current != null && current.contains(authenticator)) {
+						Map<String, List<HTTPRequestAuthenticator>> authenticators = new HashMap<String, List<HTTPRequestAuthenticator>>(HTTPRequestAuthenticatorFactory.this.authenticators);
+						List<HTTPRequestAuthenticator> list = new ArrayList<HTTPRequestAuthenticator>(current);
+						list.remove(authenticator);
+						if (list.isEmpty()) {
+							authenticators.remove(name);
+						}
+						else {
+							authenticators.put(name, Collections.unmodifiableList(list));
+						}
+						HTTPRequestAuthenticatorFactory.this.authenticators = Collections.unmodifiableMap(authenticators);
+						changed();
+					}
+				}
 			}
 		};
 	}
 	
 	public Runnable register(final HTTPRequestAuthenticatorProvider provider) {
-		providers.add(provider);
+		synchronized(this) {
+			List<HTTPRequestAuthenticatorProvider> providers = new ArrayList<HTTPRequestAuthenticatorProvider>(this.providers);
+			providers.add(provider);
+			this.providers = Collections.unmodifiableList(providers);
+			changed();
+		}
 		return new Runnable() {
 			@Override
 			public void run() {
-				providers.remove(provider);
+				synchronized(HTTPRequestAuthenticatorFactory.this) {
+					List<HTTPRequestAuthenticatorProvider> providers = new ArrayList<HTTPRequestAuthenticatorProvider>(HTTPRequestAuthenticatorFactory.this.providers);
+					if (providers.remove(provider)) {
+						HTTPRequestAuthenticatorFactory.this.providers = Collections.unmodifiableList(providers);
+						changed();
+					}
+				}
 			}
 		};
 	}
 	
+	// must be called while holding the lock
+	private void changed() {
+		generation++;
+		composites.clear();
+	}
+	
 	public HTTPRequestAuthenticator getAuthenticator(String name) {
+		Object key = name == null ? UNNAMED : name;
+		HTTPRequestAuthenticator composite = composites.get(key);
+		if (composite == null) {
+			long generation = this.generation;
+			composite = newAuthenticator(name);
+			synchronized(this) {
+				if (generation == this.generation) {
+					composites.put(key, composite);
+				}
+			}
+		}
+		return composite;
+	}
+	
+	private HTTPRequestAuthenticator newAuthenticator(String name) {
 		final List<HTTPRequestAuthenticator> authenticators = new ArrayList<HTTPRequestAuthenticator>();
-		if (this.authenticators.containsKey(name)) {
-			authenticators.addAll(this.authenticators.get(name));
+		List<HTTPRequestAuthenticator> registered = this.authenticators.get(name);
+		if (registered != null) {
+			authenticators.addAll(registered);
 		}
 		for (HTTPRequestAuthenticatorProvider provider : providers) {
 			HTTPRequestAuthenticator requestAuthenticator = provider.getRequestAuthenticator(name);
@@ -79,16 +147,18 @@ public class HTTPRequestAuthenticatorFactory {
 				authenticators.add(requestAuthenticator);
 			}
 		}
-		return new HTTPRequestAuthenticator() {
-			@Override
-			public boolean authenticate(HTTPRequest request, String context, HTTPResponse trigger, boolean refresh) {
-				for (HTTPRequestAuthenticator authenticator : authenticators) {
-					if (authenticator.authenticate(request, context, trigger, refresh)) {
-						return true;
-					}
-				}
-				return false;
-			}
-		};
+		return new CompositeHTTPRequestAuthenticator(authenticators, executor, timeout);
+	}
+	
+	/**
+	 * Evaluate the authenticators for a name in parallel on the given (preferably bounded) executor, each with the given deadline in ms (zero or less for none).
+	 * Pass in null to go back to sequential evaluation.
+	 */
+	public void setParallelEvaluation(ExecutorService executor, long timeout) {
+		synchronized(this) {
+			this.executor = executor;
+			this.timeout = timeout;
+			changed();
+		}
 	}
 }
@@ -0,0 +1,183 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * The parsed first line of a request, scanned straight from the bytes.
+ * Well known methods and versions are resolved to constants so the common requests do not allocate anything but the target.
+ */
+public class HTTPRequestLine {
+
+	private static final String [] METHODS = new String [] { "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "TRACE", "CONNECT" };
+
+	private String method, target;
+	private double version;
+
+	public HTTPRequestLine(String method, String target, double version) {
+		this.method = method;
+		this.target = target;
+		this.version = version;
+	}
+
+	/**
+	 * Parses a request line (without the trailing linefeed), for example "GET /index.html HTTP/1.1"
+	 * Returns null if the line only contains whitespace, this mimics the leniency of the string based parser.
+	 */
+	public static HTTPRequestLine parse(byte [] bytes, int offset, int length, String protocol) throws ParseException {
+		int start = offset, end = offset + length;
+		// trim
+		while (start < end && (bytes[start] & 0xff) <= ' ') {
+			start++;
+		}
+		while (end > start && (bytes[end - 1] & 0xff) <= ' ') {
+			end--;
+		}
+		if (start == end) {
+			return null;
+		}
+		// the first space delimits the method
+		int firstSpaceIndex = indexOf(bytes, start, end, (byte) ' ');
+		if (firstSpaceIndex < 0) {
+			throw new ParseException("Could not parse request line: " + new String(bytes, start, end - start, StandardCharsets.ISO_8859_1), 0);
+		}
+		int protocolIndex = lastIndexOf(bytes, firstSpaceIndex + 1, end, protocol);
+		if (protocolIndex < 0) {
+			throw new ParseException("Could not find protocol '" + protocol + "' in request line: " + new String(bytes, start, end - start, StandardCharsets.ISO_8859_1), firstSpaceIndex - offset);
+		}
+		String method = toMethod(bytes, start, firstSpaceIndex);
+
+		int targetStart = firstSpaceIndex + 1, targetEnd = protocolIndex;
+		while (targetStart < targetEnd && (bytes[targetStart] & 0xff) <= ' ') {
+			targetStart++;
+		}
+		while (targetEnd > targetStart && (bytes[targetEnd - 1] & 0xff) <= ' ') {
+			targetEnd--;
+		}
+		String target = toTarget(bytes, targetStart, targetEnd);
+
+		int versionStart = protocolIndex + protocol.length() + 1;
+		while (versionStart < end && (bytes[versionStart] & 0xff) <= ' ') {
+			versionStart++;
+		}
+		double version = toVersion(bytes, versionStart, end, start - offset);
+		return new HTTPRequestLine(method, target, version);
+	}
+
+	private static int indexOf(byte [] bytes, int start, int end, byte value) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// the protocol is followed by a "/", e.g. "HTTP/"
+	private static int lastIndexOf(byte [] bytes, int start, int end, String protocol) {
+		int length = protocol.length();
+		outer: for (int i = end - length - 1; i >= start; i--) {
+			if (bytes[i + length] != '/') {
+				continue;
+			}
+			for (int j = 0; j < length; j++) {
+				if (bytes[i + j] != protocol.charAt(j)) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static String toMethod(byte [] bytes, int start, int end) {
+		outer: for (String method : METHODS) {
+			if (method.length() == end - start) {
+				for (int i = 0; i < method.length(); i++) {
+					if (bytes[start + i] != method.charAt(i)) {
+						continue outer;
+					}
+				}
+				return method;
+			}
+		}
+		return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	// make sure multiple slashes are replaced by a single one, like the original parser this only collapses the first occurrence
+	private static String toTarget(byte [] bytes, int start, int end) {
+		int collapseStart = -1, collapseEnd = -1;
+		for (int i = start; i < end - 1; i++) {
+			if (bytes[i] == '/' && bytes[i + 1] == '/') {
+				collapseStart = i + 1;
+				collapseEnd = i + 2;
+				while (collapseEnd < end && bytes[collapseEnd] == '/') {
+					collapseEnd++;
+				}
+				break;
+			}
+		}
+		if (collapseStart < 0) {
+			return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+		}
+		char [] chars = new char[(end - start) - (collapseEnd - collapseStart)];
+		int index = 0;
+		for (int i = start; i < end; i++) {
+			if (i == collapseStart) {
+				i = collapseEnd - 1;
+				continue;
+			}
+			chars[index++] = (char) (bytes[i] & 0xff);
+		}
+		return new String(chars);
+	}
+
+	private static double toVersion(byte [] bytes, int start, int end, int errorOffset) throws ParseException {
+		if (end - start == 3 && bytes[start + 1] == '.') {
+			if (bytes[start] == '1' && bytes[start + 2] == '1') {
+				return 1.1;
+			}
+			else if (bytes[start] == '1' && bytes[start + 2] == '0') {
+				return 1.0;
+			}
+			else if (bytes[start] == '2' && bytes[start + 2] == '0') {
+				return 2.0;
+			}
+		}
+		try {
+			return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1));
+		}
+		catch (NumberFormatException e) {
+			throw new ParseException("Invalid version: " + new String(bytes, start, end - start, StandardCharsets.ISO_8859_1), errorOffset);
+		}
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public double getVersion() {
+		return version;
+	}
+}
@@ -0,0 +1,299 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import be.nabu.libs.http.api.HTTPEntity;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.api.LinkableHTTPResponse;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+
+/**
+ * Traces http messages in the background.
+ * The request thread only decides whether to sample and takes a snapshot of the headers, the formatting is done by a single background thread.
+ * The entries are handed over through a bounded lock-free ring buffer, if it is full the entry is dropped and counted.
+ * When there is nothing to trace, the background thread is parked until a producer hands over a new entry.
+ *
+ * A message is traced if:
+ * - it is a response with one of the configured status codes (these are always traced)
+ * - or it matches one of the routes (if any are configured) and it is selected by the sample rate
+ */
+public class HTTPTracer {
+
+	private Consumer<HttpMessage> consumer;
+	// the settings are read by the request threads and the consumer, they are replaced as a whole
+	private volatile double sampleRate = 1;
+	private volatile List<String> routes = Collections.emptyList();
+	private volatile Set<Integer> statusCodes = Collections.emptySet();
+	// the maximum amount of bytes we capture per message
+	private volatile int budget = 65536;
+
+	private AtomicReferenceArray<HTTPEntity> entries;
+	private int mask;
+	// the next slot a producer can claim
+	private AtomicLong tail = new AtomicLong();
+	// the next slot the consumer will read, only updated by the consumer
+	private volatile long head;
+	private AtomicLong dropped = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	// gets every failure of the consumer, without one only the first failure is printed
+	private volatile Consumer<Exception> errorHandler;
+	private volatile boolean reported;
+
+	private volatile boolean running;
+	// set by the consumer before it parks, a producer that sees it unparks the consumer
+	private volatile boolean waiting;
+	private volatile Thread thread;
+
+	public HTTPTracer(Consumer<HttpMessage> consumer, int capacity) {
+		this.consumer = consumer;
+		// round up to a power of two so we can mask the index
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.entries = new AtomicReferenceArray<HTTPEntity>(size);
+		this.mask = size - 1;
+	}
+
+	public synchronized void start() {
+		if (!running) {
+			running = true;
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			}, "http-tracer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the background thread and waits for it to finish the message it is formatting, so a subsequent start can never lead to two consumers
+	 */
+	public synchronized void stop() {
+		running = false;
+		Thread current = thread;
+		if (current != null) {
+			LockSupport.unpark(current);
+			if (current != Thread.currentThread()) {
+				boolean interrupted = false;
+				while (current.isAlive()) {
+					try {
+						current.join();
+					}
+					catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			thread = null;
+		}
+	}
+
+	/**
+	 * Offers an entity for tracing, returns true if it was accepted
+	 */
+	public boolean trace(HTTPEntity entity) {
+		if (!running || entity == null || entity.getContent() == null || !isSampled(entity)) {
+			return false;
+		}
+		HTTPEntity copy = copyHeaders(entity);
+		long slot;
+		do {
+			slot = tail.get();
+			if (slot - head >= entries.length()) {
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		while (!tail.compareAndSet(slot, slot + 1));
+		// a volatile write so the consumer either sees the entry or we see that it is waiting
+		entries.set((int) (slot & mask), copy);
+		if (waiting) {
+			Thread consumer = thread;
+			if (consumer != null) {
+				LockSupport.unpark(consumer);
+			}
+		}
+		return true;
+	}
+
+	private boolean isSampled(HTTPEntity entity) {
+		if (entity instanceof HTTPResponse && statusCodes.contains(((HTTPResponse) entity).getCode())) {
+			return true;
+		}
+		List<String> routes = this.routes;
+		if (!routes.isEmpty()) {
+			HTTPRequest request = entity instanceof HTTPRequest
+				? (HTTPRequest) entity
+				: (entity instanceof LinkableHTTPResponse ? ((LinkableHTTPResponse) entity).getRequest() : null);
+			if (request == null || request.getTarget() == null) {
+				return false;
+			}
+			boolean matches = false;
+			for (String route : routes) {
+				if (request.getTarget().startsWith(route)) {
+					matches = true;
+					break;
+				}
+			}
+			if (!matches) {
+				return false;
+			}
+		}
+		double sampleRate = this.sampleRate;
+		return sampleRate >= 1 || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+	}
+
+	// we only copy the header block, the content may no longer be available by the time we format it
+	private static HTTPEntity copyHeaders(HTTPEntity entity) {
+		if (entity instanceof HTTPRequest) {
+			HTTPRequest request = (HTTPRequest) entity;
+			return new DefaultHTTPRequest(request.getProtocol(), request.getMethod(), request.getTarget(), new PlainMimeEmptyPart(null, snapshot(request.getContent().getHeaders())), request.getVersion());
+		}
+		else {
+			HTTPResponse response = (HTTPResponse) entity;
+			return new DefaultHTTPResponse(response.getProtocol(), null, response.getCode(), response.getMessage(), new PlainMimeEmptyPart(null, snapshot(response.getContent().getHeaders())), response.getVersion());
+		}
+	}
+
+	// the headers can still be modified after they are traced, so we copy the values rather than the instances
+	private static Header [] snapshot(Header...headers) {
+		if (headers == null) {
+			return new Header[0];
+		}
+		Header [] copy = new Header[headers.length];
+		for (int i = 0; i < headers.length; i++) {
+			String [] comments = headers[i].getComments();
+			copy[i] = new MimeHeader(headers[i].getName(), headers[i].getValue(), comments == null ? new String[0] : comments.clone());
+		}
+		return copy;
+	}
+
+	private void drain() {
+		while (running) {
+			int index = (int) (head & mask);
+			HTTPEntity entity = entries.get(index);
+			// either nothing is queued or the producer has claimed the slot but not yet published it, the producer will wake us up
+			if (entity == null) {
+				waiting = true;
+				// check again in case the entry was published before the producer could see that we are waiting
+				if (entries.get(index) == null && running) {
+					LockSupport.park(this);
+				}
+				waiting = false;
+				continue;
+			}
+			entries.lazySet(index, null);
+			head++;
+			try {
+				consumer.accept(HTTPUtils.toMessage(entity, budget));
+			}
+			// tracing should never bring down the tracer
+			catch (Exception e) {
+				failed(e);
+			}
+		}
+	}
+
+	// a failing consumer fails for every message, we don't want to flood stderr on a hot path
+	private void failed(Exception exception) {
+		failed.incrementAndGet();
+		Consumer<Exception> errorHandler = this.errorHandler;
+		if (errorHandler != null) {
+			try {
+				errorHandler.accept(exception);
+			}
+			catch (Exception e) {
+				// the handler is on its own
+			}
+		}
+		else if (!reported) {
+			reported = true;
+			exception.printStackTrace();
+		}
+	}
+
+	/**
+	 * The amount of messages that could not be traced because the consumer failed
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public Consumer<Exception> getErrorHandler() {
+		return errorHandler;
+	}
+	/**
+	 * Receives every failure of the consumer, if there is none only the first failure is printed
+	 */
+	public void setErrorHandler(Consumer<Exception> errorHandler) {
+		this.errorHandler = errorHandler;
+	}
+
+	/**
+	 * The amount of messages that were sampled but dropped because the buffer was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public double getSampleRate() {
+		return sampleRate;
+	}
+	public void setSampleRate(double sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	public List<String> getRoutes() {
+		return routes;
+	}
+	public void setRoutes(List<String> routes) {
+		this.routes = routes == null ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<String>(routes));
+	}
+
+	public Set<Integer> getStatusCodes() {
+		return statusCodes;
+	}
+	public void setStatusCodes(Set<Integer> statusCodes) {
+		this.statusCodes = statusCodes == null ? Collections.<Integer>emptySet() : Collections.unmodifiableSet(new HashSet<Integer>(statusCodes));
+	}
+
+	public int getBudget() {
+		return budget;
+	}
+	public void setBudget(int budget) {
+		this.budget = budget;
+	}
+}
@@ -17,7 +17,13 @@
 
 package be.nabu.libs.http.core;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InterruptedIOException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
@@ -28,20 +34,18 @@ import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.security.Principal;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
 
 import be.nabu.libs.authentication.api.Device;
 import be.nabu.libs.authentication.api.Token;
 import be.nabu.libs.authentication.api.principals.DevicePrincipal;
 import be.nabu.libs.authentication.impl.DeviceImpl;
+import be.nabu.libs.http.HTTPCodes;
 import be.nabu.libs.http.HTTPException;
 import be.nabu.libs.http.api.HTTPEntity;
 import be.nabu.libs.http.api.HTTPRequest;
@@ -53,11 +57,13 @@ import be.nabu.libs.http.api.server.SecurityHeader;
 import be.nabu.libs.resources.ResourceReadableContainer;
 import be.nabu.libs.resources.URIUtils;
 import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.LocatableResource;
 import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.LimitedReadableContainer;
 import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
 import be.nabu.utils.mime.api.ContentPart;
 import be.nabu.utils.mime.api.Header;
 import be.nabu.utils.mime.api.ModifiableHeader;
@@ -77,49 +83,40 @@ public class HTTPUtils {
 	public static final String SERVER_AUTHENTICATE_REQUEST = "WWW-Authenticate";
 	public static final String SERVER_AUTHENTICATE_RESPONSE = "Authorization";
 	
-	private static ThreadLocal<SimpleDateFormat> formatter = new ThreadLocal<SimpleDateFormat>();
-
+	// content without a known length that is smaller than this is buffered in memory, larger content is streamed using chunked encoding
+	public static final int STREAMING_THRESHOLD = 64 * 1024;
+	// if we need a content length, content larger than this is spilled to a temporary file instead of being kept in memory
+	public static final int SPILL_THRESHOLD = 1024 * 1024;
+	// if we need a content length, this is how long we wait for a non blocking source that has no new data
+	private static volatile long contentTimeout = 30000;
+	
 	public static Device getDevice(String realm, Token token, boolean allowHeader, Header...headers) {
 		String deviceId = null;
 		if (allowHeader) {
-			Header header = MimeUtils.getHeader("Device-Id", headers);
+			Header header = getHeader("Device-Id", headers);
 			if (header != null) {
 				deviceId = header.getValue();
 			}
 		}
 		if (deviceId == null) {
-			Map<String, List<String>> cookies = HTTPUtils.getCookies(headers);
+			HTTPCookies cookies = HTTPCookies.of(headers);
 			// if we have a realm, we only want to check that realm specifically
 			if (realm != null) {
-				List<String> list = cookies.get("Device-" + realm);
-				if (list != null && !list.isEmpty()) {
-					deviceId = list.get(0);
-				}
+				deviceId = cookies.getFirst("Device-" + realm);
 			}
 			if (deviceId == null) {
 				// check generic device-id cookie
-				List<String> list = cookies.get("device-id");
-				if (list != null && !list.isEmpty()) {
-					deviceId = list.get(0);
-				}
+				deviceId = cookies.getFirst("device-id");
 				// if we didn't ask for a specific realm, check all 
-				else if (realm == null) {
-					for (String cookie : cookies.keySet()) {
-						if (cookie.toLowerCase().startsWith("device-")) {
-							list = cookies.get(cookie);
-							if (list != null && !list.isEmpty()) {
-								deviceId = list.get(0);
-								break;
-							}						
-						}
-					}
+				if (deviceId == null && realm == null) {
+					deviceId = cookies.getFirstWithPrefix("device-");
 				}
 			}
 		}
 		Device device = null;
 		if (deviceId != null) {
-			Header userAgent = MimeUtils.getHeader("User-Agent", headers);
-			Header remoteAddress = MimeUtils.getHeader(ServerHeader.REMOTE_ADDRESS.getName(), headers);
+			Header userAgent = getHeader("User-Agent", headers);
+			Header remoteAddress = getHeader(ServerHeader.REMOTE_ADDRESS.getName(), headers);
 			device = new DeviceImpl(deviceId, userAgent == null ? null : MimeUtils.getFullHeaderValue(userAgent), remoteAddress == null ? null : remoteAddress.getValue());
 		}
 		if (device == null && token != null) {
@@ -142,10 +139,10 @@ public class HTTPUtils {
 	
 	public static HTTPRequest get(URI target, Header...headers) {
 		List<Header> allHeaders = new ArrayList<Header>(Arrays.asList(headers));
-		if (MimeUtils.getHeader("Content-Length", headers) == null) {
+		if (getHeader("Content-Length", headers) == null) {
 			allHeaders.add(new MimeHeader("Content-Length", "0"));
 		}
-		if (MimeUtils.getHeader("Host", headers) == null) {
+		if (getHeader("Host", headers) == null) {
 			allHeaders.add(new MimeHeader("Host", target.getAuthority()));
 		}
 		return new DefaultHTTPRequest(
@@ -189,18 +186,12 @@ public class HTTPUtils {
 	
 	public static Integer getRemotePort(boolean proxied, Header...headers) {
 		Integer port = null;
-		Header header = MimeUtils.getHeader(ServerHeader.REMOTE_PORT.getName(), headers);
+		Header header = getHeader(ServerHeader.REMOTE_PORT.getName(), headers);
 		if (header != null && header.getValue() != null) {
 			port = Integer.parseInt(header.getValue());
 		}
 		if (port == null && proxied) {
-			String forwardedFor = getForwardedFor(true, headers);
-			if (forwardedFor != null) {
-				String[] split = forwardedFor.split(":");
-				if (split.length > 1) {
-					port = Integer.parseInt(split[1]);
-				}
-			}
+			port = HTTPForwarded.of(headers).getClientPort();
 		}
 		return port; 
 	}
@@ -209,13 +200,13 @@ public class HTTPUtils {
 		String address = null;
 		// our internal header takes precedence
 		if (address == null) {
-			Header internal = MimeUtils.getHeader(ServerHeader.REMOTE_ADDRESS.getName(), headers);
+			Header internal = getHeader(ServerHeader.REMOTE_ADDRESS.getName(), headers);
 			if (internal != null) {
 				address = internal.getValue();
 			}
 		}
 		if (address == null && proxied) {
-			address = getForwardedFor(headers);
+			address = HTTPForwarded.of(headers).getClientAddress();
 		}
 		return address;
 	}
@@ -224,7 +215,7 @@ public class HTTPUtils {
 		String host = null;
 		// our internal header takes precedence
 		if (host == null) {
-			Header internal = MimeUtils.getHeader(ServerHeader.REMOTE_HOST.getName(), headers);
+			Header internal = getHeader(ServerHeader.REMOTE_HOST.getName(), headers);
 			if (internal != null) {
 				host = internal.getValue();
 			}
@@ -236,54 +227,154 @@ public class HTTPUtils {
 	}
 	
 	public static String getForwardedFor(Header...headers) {
-		return getForwardedFor(false, headers);
-	}
-	
-	// retrofitted for dual use to get the port as well, not entirely clean
-	private static String getForwardedFor(boolean needPort, Header...headers) {
-		String ip = null;
 		// our internal header takes precedence (this is deprecated with two new utility methods above)
-		if (ip == null && !needPort) {
-			Header internal = MimeUtils.getHeader(ServerHeader.REMOTE_ADDRESS.getName(), headers);
-			if (internal != null) {
-				ip = internal.getValue();
-			}
+		Header internal = getHeader(ServerHeader.REMOTE_ADDRESS.getName(), headers);
+		if (internal != null) {
+			return internal.getValue();
 		}
-		if (ip == null) {
-			// https://tools.ietf.org/html/rfc7239#section-5
-			// e.g. Forwarded: for=192.0.2.60;proto=http;by=203.0.113.43
-			Header forwarded = MimeUtils.getHeader("Forwarded", headers);
-			if (forwarded != null && forwarded.getValue() != null && forwarded.getValue().trim().startsWith("for")) {
-				String[] split = forwarded.getValue().trim().split("[\\s]*=[\\s]*");
-				if (split.length == 2) {
-					ip = split[1];
+		return HTTPForwarded.of(headers).getClientAddress();
+	}
+	
+	public static HTTPResponse newResponse(HTTPRequest request, ReadableResource resource, Header...headers) throws IOException {
+		return newResponse(request, resource, null, headers);
+	}
+	
+	/**
+	 * If a cache is passed in, the compressed version of the resource is taken from (or added to) the cache
+	 */
+	public static HTTPResponse newResponse(HTTPRequest request, ReadableResource resource, CompressedResourceCache cache, Header...headers) throws IOException {
+		HTTPResponse partial = newPartialResponse(request, resource, headers);
+		if (partial != null) {
+			return partial;
+		}
+		// serve a precompressed sibling if there is one, there is no need to compress the same file over and over
+		if (request != null && request.getContent() != null && getHeader("Content-Encoding", headers) == null && getHeader("Content-Length", headers) == null) {
+			ReadableResource precompressed = ContentEncodingNegotiator.getPrecompressed(resource, request.getContent().getHeaders());
+			if (precompressed != null) {
+				List<Header> allHeaders = new ArrayList<Header>(Arrays.asList(headers));
+				allHeaders.add(new MimeHeader("Content-Encoding", "gzip"));
+				allHeaders.add(new MimeHeader("Content-Length", Long.toString(((FiniteResource) precompressed).getSize())));
+				if (getHeader("Content-Type", headers) == null && resource.getContentType() != null) {
+					allHeaders.add(new MimeHeader("Content-Type", resource.getContentType()));
+				}
+				EncodedContentPart part = new EncodedContentPart(null, new ResourceReadableContainer(precompressed), allHeaders.toArray(new Header[0]));
+				// the caller may already vary on other headers
+				setVary(part, "Accept-Encoding");
+				return new DefaultHTTPResponse(request, 200, "OK", part);
+			}
+			if (cache != null) {
+				EncodedContentPart cached = cache.getContent(resource, request.getContent().getHeaders(), headers);
+				if (cached != null) {
+					return new DefaultHTTPResponse(request, 200, "OK", cached);
 				}
 			}
 		}
-		if (ip == null) {
-			// there can be multiple comma separated addresses, see documentation for https://en.wikipedia.org/wiki/X-Forwarded-For
-			// e.g. X-Forwarded-For: client, proxy1, proxy2
-			Header forwardedFor = MimeUtils.getHeader("X-Forwarded-For", headers);
-			if (forwardedFor != null && forwardedFor.getValue().trim() != null) {
-				ip = forwardedFor.getValue().split("[\\s]*,[\\s]*")[0];
+		if (resource instanceof FiniteResource && getHeader("Content-Length", headers) == null) {
+			List<Header> allHeaders = new ArrayList<Header>(Arrays.asList(headers));
+			long size = ((FiniteResource) resource).getSize();
+			allHeaders.add(new MimeHeader("Content-Length", Long.toString(size)));
+			if (getHeader("Content-Type", headers) == null && resource.getContentType() != null) {
+				allHeaders.add(new MimeHeader("Content-Type", resource.getContentType()));
 			}
-		}
-		if (ip != null && !needPort) {
-			// it can contain a port, let's leave that out for now
-			int index = ip.indexOf(':');
-			if (index >= 0) {
-				ip = ip.substring(0, index);
+			if (getHeader("Accept-Ranges", headers) == null) {
+				allHeaders.add(new MimeHeader("Accept-Ranges", "bytes"));
 			}
+			// files on the local file system can be copied directly to the output by the formatter
+			File file = getFile(resource);
+			return new DefaultHTTPResponse(request, 200, "OK", file == null
+				? new PlainMimeContentPart(null, new ResourceReadableContainer(resource), allHeaders.toArray(new Header[0]))
+				: new FileContentPart(null, new ResourceReadableContainer(resource), file, 0, size, allHeaders.toArray(new Header[0])));
 		}
-		return ip;
+		return newResponse(request, resource.getContentType(), new ResourceReadableContainer(resource), headers);
 	}
 	
-	public static HTTPResponse newResponse(HTTPRequest request, ReadableResource resource, Header...headers) throws IOException {
-		HTTPResponse newResponse = newResponse(request, resource.getContentType(), new ResourceReadableContainer(resource), headers);
-		if (resource instanceof FiniteResource && MimeUtils.getHeader("Content-Length", newResponse.getContent().getHeaders()) == null) {
-			newResponse.getContent().setHeader(new MimeHeader("Content-Length", new Long(((FiniteResource) resource).getSize()).toString()));
+	/**
+	 * Answers a GET with a Range header with a 206 (multipart/byteranges if there are multiple ranges) or a 416 if none of the ranges can be satisfied.
+	 * Returns null if the full resource should be sent instead.
+	 */
+	private static HTTPResponse newPartialResponse(HTTPRequest request, ReadableResource resource, Header...headers) throws IOException {
+		if (request == null || request.getContent() == null || !"GET".equalsIgnoreCase(request.getMethod()) || !(resource instanceof FiniteResource)) {
+			return null;
+		}
+		// the caller has already decided on the content
+		if (getHeader("Content-Length", headers) != null || getHeader("Content-Encoding", headers) != null) {
+			return null;
+		}
+		Header [] requestHeaders = request.getContent().getHeaders();
+		Header range = getHeader("Range", requestHeaders);
+		if (range == null) {
+			return null;
+		}
+		long size = ((FiniteResource) resource).getSize();
+		List<HTTPRanges.Range> ranges = HTTPRanges.parse(MimeUtils.getFullHeaderValue(range), size);
+		if (ranges == null || !HTTPRanges.isRangeAllowed(resource, requestHeaders, headers)) {
+			return null;
+		}
+		List<Header> allHeaders = new ArrayList<Header>(Arrays.asList(headers));
+		if (ranges.isEmpty()) {
+			allHeaders.add(new MimeHeader("Content-Range", "bytes */" + size));
+			allHeaders.add(new MimeHeader("Content-Length", "0"));
+			return new DefaultHTTPResponse(request, 416, HTTPCodes.getMessage(416), new PlainMimeEmptyPart(null, allHeaders.toArray(new Header[0])));
+		}
+		String contentType = getHeader("Content-Type", headers) == null ? resource.getContentType() : MimeUtils.getContentType(subset("Content-Type", headers));
+		if (contentType == null) {
+			contentType = "application/octet-stream";
+		}
+		allHeaders.add(new MimeHeader("Accept-Ranges", "bytes"));
+		File file = getFile(resource);
+		if (ranges.size() == 1) {
+			HTTPRanges.Range single = ranges.get(0);
+			allHeaders.add(new MimeHeader("Content-Range", single.toContentRange(size)));
+			allHeaders.add(new MimeHeader("Content-Length", Long.toString(single.getLength())));
+			if (getHeader("Content-Type", headers) == null) {
+				allHeaders.add(new MimeHeader("Content-Type", contentType));
+			}
+			return new DefaultHTTPResponse(request, 206, HTTPCodes.getMessage(206), file == null
+				? new PlainMimeContentPart(null, HTTPRanges.open(resource, null, single.getStart(), single.getLength()), allHeaders.toArray(new Header[0]))
+				: new FileContentPart(null, HTTPRanges.open(resource, file, single.getStart(), single.getLength()), file, single.getStart(), single.getLength(), allHeaders.toArray(new Header[0])));
+		}
+		// every range gets its own part headers, the length of the whole is known up front
+		String boundary = Long.toHexString(Double.doubleToLongBits(Math.random()));
+		List<byte[]> partHeaders = new ArrayList<byte[]>();
+		long contentLength = 0;
+		for (int i = 0; i < ranges.size(); i++) {
+			HTTPRanges.Range current = ranges.get(i);
+			byte [] bytes = ((i == 0 ? "" : "\r\n") + "--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: " + current.toContentRange(size) + "\r\n\r\n").getBytes(Charset.forName("ASCII"));
+			partHeaders.add(bytes);
+			contentLength += bytes.length + current.getLength();
+		}
+		byte [] end = ("\r\n--" + boundary + "--\r\n").getBytes(Charset.forName("ASCII"));
+		contentLength += end.length;
+		// remove the content type of the resource, it is replaced by the multipart one
+		for (int i = allHeaders.size() - 1; i >= 0; i--) {
+			if (allHeaders.get(i).getName().equalsIgnoreCase("Content-Type")) {
+				allHeaders.remove(i);
+			}
+		}
+		allHeaders.add(new MimeHeader("Content-Type", "multipart/byteranges; boundary=" + boundary));
+		allHeaders.add(new MimeHeader("Content-Length", Long.toString(contentLength)));
+		// the ranges are read from a single stream of the resource
+		ReadableContainer<ByteBuffer> content = HTTPRanges.open(resource, file, ranges, partHeaders, end);
+		// the body is already in its final form, the formatter should not interpret it as a multipart
+		return new DefaultHTTPResponse(request, 206, HTTPCodes.getMessage(206), new EncodedContentPart(null, content, allHeaders.toArray(new Header[0])));
+	}
+
+	private static File getFile(ReadableResource resource) {
+		if (resource instanceof LocatableResource && resource instanceof FiniteResource) {
+			URI uri = ((LocatableResource) resource).getUri();
+			if (uri != null && "file".equalsIgnoreCase(uri.getScheme())) {
+				try {
+					File file = new File(uri);
+					if (file.isFile() && file.length() == ((FiniteResource) resource).getSize()) {
+						return file;
+					}
+				}
+				catch (IllegalArgumentException e) {
+					// not a hierarchical file uri
+				}
+			}
 		}
-		return newResponse;
+		return null;
 	}
 	
 	@Deprecated
@@ -306,37 +397,160 @@ public class HTTPUtils {
 	
 	public static HTTPResponse newResponse(HTTPRequest request, String contentType, ReadableContainer<ByteBuffer> content, Header...headers) throws IOException {
 		List<Header> allHeaders = new ArrayList<Header>(Arrays.asList(headers));
-		if (MimeUtils.getHeader("Content-Length", headers) == null) {
-			long size = 0;
+		if (getHeader("Content-Type", headers) == null && contentType != null) {
+			allHeaders.add(new MimeHeader("Content-Type", contentType));
+		}
+		if (getHeader("Content-Length", headers) == null) {
 			if (content instanceof LimitedReadableContainer) {
-				size = ((LimitedReadableContainer<ByteBuffer>) content).remainingData();
+				long size = ((LimitedReadableContainer<ByteBuffer>) content).remainingData();
+				allHeaders.add(new MimeHeader("Content-Length", new Long(size).toString()));
 			}
 			else {
-				byte [] bytes;
-				try {
-					bytes = IOUtils.toBytes(content);
-				}
-				finally {
-					content.close();
-				}
-				size = bytes.length;
-				content = IOUtils.wrap(bytes, true);
+				// we need the length, large content is spilled to disk rather than kept in memory
+				return new DefaultHTTPResponse(request, 200, "OK", buffer(content, SPILL_THRESHOLD, true, allHeaders));
 			}
-			allHeaders.add(new MimeHeader("Content-Length", new Long(size).toString()));
 		}
-		if (MimeUtils.getHeader("Content-Type", headers) == null && contentType != null) {
+		return new DefaultHTTPResponse(request, 200, "OK", new PlainMimeContentPart(null, content, allHeaders.toArray(new Header[0])));
+	}
+	
+	public static HTTPResponse newStreamingResponse(HTTPRequest request, String contentType, ReadableContainer<ByteBuffer> content, Header...headers) throws IOException {
+		return newStreamingResponse(request, contentType, content, STREAMING_THRESHOLD, headers);
+	}
+	
+	/**
+	 * Content up to the threshold is buffered so it can be sent with a content length, larger content is streamed using chunked encoding.
+	 * Chunked encoding is not available in HTTP/1.0, in that case larger content is spilled to a temporary file to calculate the length.
+	 */
+	public static HTTPResponse newStreamingResponse(HTTPRequest request, String contentType, ReadableContainer<ByteBuffer> content, int threshold, Header...headers) throws IOException {
+		List<Header> allHeaders = new ArrayList<Header>(Arrays.asList(headers));
+		if (getHeader("Content-Type", headers) == null && contentType != null) {
 			allHeaders.add(new MimeHeader("Content-Type", contentType));
 		}
+		if (getHeader("Content-Length", headers) == null && getHeader("Transfer-Encoding", headers) == null) {
+			if (content instanceof LimitedReadableContainer) {
+				long size = ((LimitedReadableContainer<ByteBuffer>) content).remainingData();
+				allHeaders.add(new MimeHeader("Content-Length", new Long(size).toString()));
+			}
+			else {
+				return new DefaultHTTPResponse(request, 200, "OK", buffer(content, threshold, request != null && request.getVersion() < 1.1, allHeaders));
+			}
+		}
 		return new DefaultHTTPResponse(request, 200, "OK", new PlainMimeContentPart(null, content, allHeaders.toArray(new Header[0])));
 	}
 	
+	/**
+	 * Reads the content up to the threshold, if it is complete we know the length. Otherwise we either switch to chunked or (if we need a length) spill to a temporary file.
+	 * If a non blocking source has no data yet, we don't wait for it unless we need the length.
+	 */
+	private static PlainMimeContentPart buffer(ReadableContainer<ByteBuffer> content, int threshold, boolean lengthRequired, List<Header> headers) throws IOException {
+		ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+		byte [] bytes = new byte[8192];
+		ByteBuffer transfer = IOUtils.newByteBuffer(bytes.length, false);
+		boolean complete = false;
+		long lastData = System.currentTimeMillis();
+		try {
+			while (buffered.size() < threshold) {
+				long read = transfer(content, transfer, bytes, buffered);
+				if (read < 0) {
+					complete = true;
+					break;
+				}
+				else if (read == 0) {
+					if (!lengthRequired) {
+						break;
+					}
+					await(lastData);
+				}
+				else {
+					lastData = System.currentTimeMillis();
+				}
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			content.close();
+			throw e;
+		}
+		if (complete) {
+			content.close();
+			headers.add(new MimeHeader("Content-Length", Integer.toString(buffered.size())));
+			return new PlainMimeContentPart(null, IOUtils.wrap(buffered.toByteArray(), true), headers.toArray(new Header[0]));
+		}
+		else if (!lengthRequired) {
+			headers.add(new MimeHeader("Transfer-Encoding", "chunked"));
+			return new PlainMimeContentPart(null, IOUtils.chain(true, IOUtils.wrap(buffered.toByteArray(), true), content), headers.toArray(new Header[0]));
+		}
+		File file = File.createTempFile("http-content", ".tmp");
+		try {
+			try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+				buffered.writeTo(output);
+				// the data is on disk now, no need to keep it in memory
+				buffered = null;
+				ByteArrayOutputStream chunk = new ByteArrayOutputStream(bytes.length);
+				long read;
+				while ((read = transfer(content, transfer, bytes, chunk)) >= 0) {
+					if (read == 0) {
+						await(lastData);
+					}
+					else {
+						lastData = System.currentTimeMillis();
+					}
+					chunk.writeTo(output);
+					chunk.reset();
+				}
+			}
+			finally {
+				content.close();
+			}
+			headers.add(new MimeHeader("Content-Length", Long.toString(file.length())));
+			return new TemporaryFileContentPart(file, headers.toArray(new Header[0]));
+		}
+		catch (IOException | RuntimeException e) {
+			file.delete();
+			throw e;
+		}
+	}
+	
+	// copies one read from the content to the output, returns the amount that was read (0 if a non blocking source has no data yet) or -1 if there is no more data
+	private static long transfer(ReadableContainer<ByteBuffer> content, ByteBuffer transfer, byte [] bytes, ByteArrayOutputStream output) throws IOException {
+		long read = content.read(transfer);
+		int amount;
+		while ((amount = transfer.read(bytes)) > 0) {
+			output.write(bytes, 0, amount);
+		}
+		return read;
+	}
+	
+	private static void await(long lastData) throws IOException {
+		if (System.currentTimeMillis() - lastData > contentTimeout) {
+			throw new InterruptedIOException("No content was received in the last " + contentTimeout + "ms");
+		}
+		try {
+			Thread.sleep(1);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the content");
+		}
+	}
+	
+	public static long getContentTimeout() {
+		return contentTimeout;
+	}
+	
+	/**
+	 * When we need the length of content that comes from a non blocking source, we give up if it has no new data for this long (in ms)
+	 */
+	public static void setContentTimeout(long contentTimeout) {
+		HTTPUtils.contentTimeout = contentTimeout;
+	}
+	
 	public static URI getURI(HTTPRequest request, boolean secure) throws FormatException {
 		try {
 			if (request.getTarget().startsWith("https://") || request.getTarget().startsWith("http://")) {
 				return new URI(URIUtils.encodeURI(request.getTarget(), false));
 			}
 			else {
-				Header hostHeader = MimeUtils.getHeader("Host", request.getContent().getHeaders());
+				Header hostHeader = getHeader("Host", request.getContent().getHeaders());
 				String uri;
 				String target = request.getTarget();
 				if (!target.startsWith("/")) {
@@ -381,7 +595,7 @@ public class HTTPUtils {
 	
 	public static Header authenticateServer(HTTPResponse response, Principal principal, ClientAuthenticationHandler authenticationHandler) {
 		if (authenticationHandler != null) {
-			for (Header wwwAuthenticateHeader : MimeUtils.getHeaders(SERVER_AUTHENTICATE_REQUEST, response.getContent().getHeaders())) {
+			for (Header wwwAuthenticateHeader : getHeaders(SERVER_AUTHENTICATE_REQUEST, response.getContent().getHeaders())) {
 				if (wwwAuthenticateHeader != null) {
 					String handshake = authenticationHandler.authenticate(principal, wwwAuthenticateHeader.getValue());
 					if (handshake != null)
@@ -394,7 +608,7 @@ public class HTTPUtils {
 	
 	public static Header authenticateProxy(HTTPResponse response, Principal principal, ClientAuthenticationHandler authenticationHandler) {
 		if (authenticationHandler != null) {
-			for (Header proxyAuthenticateHeader : MimeUtils.getHeaders(PROXY_AUTHENTICATE_REQUEST, response.getContent().getHeaders())) {
+			for (Header proxyAuthenticateHeader : getHeaders(PROXY_AUTHENTICATE_REQUEST, response.getContent().getHeaders())) {
 				if (proxyAuthenticateHeader != null) {
 					String handshake = authenticationHandler.authenticate(principal, proxyAuthenticateHeader.getValue());
 					if (handshake != null)
@@ -406,7 +620,7 @@ public class HTTPUtils {
 	}
 	
 	public static boolean keepAlive(HTTPEntity entity) {
-		List<String> values = entity.getContent() != null ? MimeUtils.getValues("Connection", entity.getContent().getHeaders()) : null;
+		List<String> values = entity.getContent() != null ? getValues("Connection", entity.getContent().getHeaders()) : null;
 		if (values == null) {
 			return entity.getVersion() >= 1.1;
 		}
@@ -439,7 +653,7 @@ public class HTTPUtils {
 				part.removeHeader(header.getName());
 			}
 			else {
-				if (!header.isUserValueAllowed() && MimeUtils.getHeader(header.getName(), part.getHeaders()) != null) {
+				if (!header.isUserValueAllowed() && getHeader(header.getName(), part.getHeaders()) != null) {
 					throw new HTTPException(400, "Header not allowed: " + header.getName());
 				}
 				part.setHeader(new MimeHeader(header.getName(), value));
@@ -447,6 +661,22 @@ public class HTTPUtils {
 		}
 	}
 	
+	/**
+	 * Returns the headers that are present in "after" but were not in "before" (by instance), e.g. the headers added by an authenticator
+	 */
+	public static Header[] getAddedHeaders(Header[] before, Header[] after) {
+		List<Header> added = new ArrayList<Header>();
+		outer: for (Header header : after) {
+			for (Header original : before) {
+				if (original == header) {
+					continue outer;
+				}
+			}
+			added.add(header);
+		}
+		return added.toArray(new Header[added.size()]);
+	}
+	
 	public static AuthenticationHeader getAuthenticationHeader(Header...headers) {
 		for (Header header : headers) {
 			if (header instanceof AuthenticationHeader) {
@@ -492,12 +722,7 @@ public class HTTPUtils {
 	public static ModifiableHeader newSetCookieHeader(String key, String value, Date expires, String path, String domain, Boolean secure, Boolean httpOnly, SameSite sameSite) {
 		MimeHeader header = new MimeHeader("Set-Cookie", key + "=" + value);
 		if (expires != null) {
-			if (formatter.get() == null) {
-				SimpleDateFormat dateFormatter = new SimpleDateFormat("EEE, dd-MMM-yyyy HH:mm:ss 'GMT'", Locale.US);
-				dateFormatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-				formatter.set(dateFormatter);
-			}
-			header.addComment("Expires=" + formatter.get().format(expires));
+			header.addComment("Expires=" + HTTPDates.formatCookie(expires));
 		}
 		if (path != null) {
 			header.addComment("Path=" + path);
@@ -524,28 +749,11 @@ public class HTTPUtils {
 	}
 	
 	public static Map<String, List<String>> getCookies(Header...headers) {
-		Map<String, List<String>> result = new HashMap<String, List<String>>();
-		for (Header header : headers) {
-			if (header.getName().equalsIgnoreCase("Cookie")) {
-				List<String> cookies = new ArrayList<String>();
-				cookies.add(header.getValue());
-				cookies.addAll(Arrays.asList(header.getComments()));
-				for (String cookie : cookies) {
-					int index = cookie.indexOf('=');
-					if (index > 0) {
-						String name = cookie.substring(0, index).trim();
-						String value = cookie.substring(index + 1).trim();
-						if (!result.containsKey(name)) {
-							result.put(name, new ArrayList<String>());
-						}
-						if (!value.isEmpty()) {
-							result.get(name).add(value);
-						}
-					}
-				}
-			}
-		}
-		return result;
+		return HTTPCookies.of(headers).toMap();
+	}
+	
+	public static String getCookie(String name, Header...headers) {
+		return HTTPCookies.of(headers).getFirst(name);
 	}
 	
 	/**
@@ -581,57 +789,102 @@ public class HTTPUtils {
 	}
 	
 	public static Date getIfModifiedSince(Header...headers) throws ParseException {
-		Header header = MimeUtils.getHeader("If-Modified-Since", headers);
+		Header header = getHeader("If-Modified-Since", headers);
 		return header == null ? null : parseDate(header.getValue());
 	}
 	
 	public static Date parseDate(String value) throws ParseException {
-		return value == null ? null : getDateFormatter().parse(value);
+		return value == null ? null : HTTPDates.parse(value);
 	}
 	
 	public static String formatDate(Date date) {
-		return date == null ? null : getDateFormatter().format(date);
+		return date == null ? null : HTTPDates.format(date);
 	}
 	
-	private static ThreadLocal<SimpleDateFormat> dateParser = new ThreadLocal<SimpleDateFormat>();
-	
-	private static SimpleDateFormat getDateFormatter() {
-		if (dateParser.get() == null) {
-			SimpleDateFormat simpleDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
-			simpleDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-			dateParser.set(simpleDateFormat);
-		}
-		return dateParser.get();
+	public static void setContentEncoding(ModifiablePart part, Header...requestHeaders) throws HTTPException {
+		setContentEncoding(part, 0, requestHeaders);
 	}
 	
-	public static void setContentEncoding(ModifiablePart part, Header...requestHeaders) {
-		Long contentLength = MimeUtils.getContentLength(part.getHeaders());
-		if (MimeUtils.isDeflatable(MimeUtils.getContentType(part.getHeaders()))) {
-			// don't set any encoding headers if there is no data
-			if (contentLength != null && contentLength == 0) {
+	/**
+	 * Content with a known length below the minimum size is not encoded (see {@link ContentEncodingNegotiator#DEFAULT_MINIMUM_SIZE}), unless the client does not accept unencoded content.
+	 * If the client accepts neither unencoded content nor any of the encodings we support, a 406 is thrown.
+	 */
+	public static void setContentEncoding(ModifiablePart part, long minimumSize, Header...requestHeaders) throws HTTPException {
+		Header [] headers = part.getHeaders();
+		// already encoded (e.g. precompressed) or a partial response where the ranges apply to the unencoded content
+		if (getHeader("Content-Encoding", headers) != null || getHeader("Content-Range", headers) != null) {
+			return;
+		}
+		Long contentLength = MimeUtils.getContentLength(subset("Content-Length", headers));
+		// don't set any encoding headers if there is no data
+		if (contentLength != null && contentLength == 0) {
+			return;
+		}
+		boolean identityAcceptable = ContentEncodingNegotiator.isIdentityAcceptable(requestHeaders);
+		if (identityAcceptable) {
+			if (!MimeUtils.isDeflatable(MimeUtils.getContentType(subset("Content-Type", headers)))) {
 				return;
 			}
-			// TODO: we should also check if the readable is null... but that risks potentially opening a "heavy" resource
-			String contentEncoding = null;
-			List<String> acceptedEncodings = MimeUtils.getAcceptedEncodings(requestHeaders);
-			if (acceptedEncodings.contains("gzip")) {
-				contentEncoding = "gzip";
-			}
-			else if (acceptedEncodings.contains("deflate")) {
-				contentEncoding = "deflate";
-			}
-			// if we have gzip/deflate content encoding, we need to remove any mention of content length (as it changes due to zipping)
-			// additionally we need to make sure the transfer encoding is set to "chunked"
-			if (contentEncoding != null) {
-				part.setHeader(new MimeHeader("Content-Encoding", contentEncoding));
-				part.removeHeader("Content-Length");
-				part.removeHeader("Transfer-Encoding");
-				part.setHeader(new MimeHeader("Transfer-Encoding", "chunked"));
+			if (contentLength != null && contentLength < minimumSize) {
+				return;
 			}
 		}
+		// TODO: we should also check if the readable is null... but that risks potentially opening a "heavy" resource
+		String contentEncoding = ContentEncodingNegotiator.negotiate(requestHeaders);
+		// if we have gzip/deflate content encoding, we need to remove any mention of content length (as it changes due to zipping)
+		// additionally we need to make sure the transfer encoding is set to "chunked"
+		if (contentEncoding != null) {
+			part.setHeader(new MimeHeader("Content-Encoding", contentEncoding));
+			part.removeHeader("Content-Length");
+			part.removeHeader("Transfer-Encoding");
+			part.setHeader(new MimeHeader("Transfer-Encoding", "chunked"));
+			setVary(part, "Accept-Encoding");
+		}
+		else if (!identityAcceptable) {
+			throw new HTTPException(406, "None of the accepted content encodings is supported");
+		}
+	}
+	
+	static void setVary(ModifiablePart part, String name) {
+		Header vary = getHeader("Vary", part.getHeaders());
+		if (vary == null) {
+			part.setHeader(new MimeHeader("Vary", name));
+		}
+		else if (!MimeUtils.getValues("Vary", vary).contains(name)) {
+			part.setHeader(new MimeHeader("Vary", MimeUtils.getFullHeaderValue(vary) + ", " + name));
+		}
+	}
+
+	// the lookups below use the current header index if it was built for these headers, otherwise they scan the array
+	private static Header getHeader(String name, Header...headers) {
+		HeaderIndex index = HeaderIndex.get(headers);
+		return index == null ? MimeUtils.getHeader(name, headers) : index.getHeader(name);
+	}
+	
+	private static Header[] getHeaders(String name, Header...headers) {
+		HeaderIndex index = HeaderIndex.get(headers);
+		return index == null ? MimeUtils.getHeaders(name, headers) : index.getHeaders(name);
+	}
+	
+	private static List<String> getValues(String name, Header...headers) {
+		return MimeUtils.getValues(name, subset(name, headers));
+	}
+	
+	// only the headers with the given name, this allows us to use other MimeUtils methods on a smaller set
+	private static Header[] subset(String name, Header...headers) {
+		HeaderIndex index = HeaderIndex.get(headers);
+		return index == null ? headers : index.getHeaders(name);
 	}
 
 	public static HttpMessage toMessage(HTTPEntity entity) {
+		return toMessage(entity, -1);
+	}
+	
+	/**
+	 * If the budget is positive, at most that many bytes of the formatted message are kept, the rest is streamed through and only counted.
+	 * A budget of zero or less keeps the full message.
+	 */
+	public static HttpMessage toMessage(HTTPEntity entity, int budget) {
 		HttpMessage message = new HttpMessage();
 		String contentType = MimeUtils.getContentType(entity.getContent().getHeaders());
 		List<String> allowedContent = Arrays.asList("application/xml", "text/xml", "application/json", "text/html");
@@ -644,7 +897,8 @@ public class HTTPUtils {
 		
 		// only if we have a reopeneable content part can we inspect the content in trace mode
 		ModifiablePart content = entity.getContent();
-		if (!MimeUtils.isReopenable(content)) {
+		// spilled content is deleted once it is formatted
+		if (!MimeUtils.isReopenable(content) || content instanceof TemporaryFileContentPart) {
 //		if (!(content instanceof ContentPart) || !((ContentPart) content).isReopenable()) {
 //		if (!allowedContent.contains(contentType) && !isEmpty) {
 			if (entity instanceof HTTPRequest) {
@@ -658,22 +912,23 @@ public class HTTPUtils {
 //		}
 		
 		try {
-			ByteBuffer newByteBuffer = IOUtils.newByteBuffer();
+			WritableContainer<ByteBuffer> output = budget > 0 ? new LimitedCaptureContainer(budget) : IOUtils.newByteBuffer();
+			// we can't stream binary data in the trace mode, the trace formatter has content encoding disabled
 			if (entity instanceof HTTPRequest) {
-				HTTPFormatter httpFormatter = new HTTPFormatter();
-				// we can't stream binary data in the trace mode
-				// if you have for example gzip turned on, this will mess up
-				httpFormatter.getFormatter().setDisableContentEncoding(true);
-				httpFormatter.formatRequest((HTTPRequest) entity, newByteBuffer);
+				HTTPFormatterConfiguration.TRACE.getFormatter().formatRequest((HTTPRequest) entity, output);
 			}
 			else if (entity instanceof HTTPResponse) {
-				HTTPFormatter httpFormatter = new HTTPFormatter();
-				// we can't stream binary data in the trace mode
-				// if you have for example gzip turned on, this will mess up most trace modes
-				httpFormatter.getFormatter().setDisableContentEncoding(true);
-				httpFormatter.formatResponse((HTTPResponse) entity, newByteBuffer);
+				HTTPFormatterConfiguration.TRACE.getFormatter().formatResponse((HTTPResponse) entity, output);
+			}
+			if (output instanceof LimitedCaptureContainer) {
+				LimitedCaptureContainer capture = (LimitedCaptureContainer) output;
+				message.setMessage(new String(capture.getCaptured(), 0, capture.getCompleteSize(), Charset.forName("UTF-8")));
+				message.setTruncated(capture.isTruncated());
+				message.setOriginalSize(capture.getTotalSize());
+			}
+			else {
+				message.setMessage(new String(IOUtils.toBytes((ByteBuffer) output), Charset.forName("UTF-8")));
 			}
-			message.setMessage(new String(IOUtils.toBytes(newByteBuffer), Charset.forName("UTF-8")));
 		}
 		catch (Exception e) {
 			Writer writer = new StringWriter();
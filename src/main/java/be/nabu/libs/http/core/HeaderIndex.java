@@ -0,0 +1,162 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import be.nabu.libs.http.api.HTTPEntity;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.ModifiablePart;
+import be.nabu.utils.mime.api.Part;
+
+/**
+ * A case insensitive hash index on the headers of a part.
+ *
+ * The parser builds the index for every request it parses, it is remembered with the headers of that request (see {@link HeaderViews}).
+ * The HTTPUtils helpers automatically use it when they are given the same headers, instead of scanning the array for every lookup.
+ * If the part is modified afterwards (headers added, removed or replaced), the headers no longer match and the index is simply not used until it is rebuilt.
+ */
+public class HeaderIndex {
+
+	private static final Header [] EMPTY = new Header[0];
+
+	// the headers at the time of indexing, the index itself only holds their positions
+	private Reference<Header> [] headers;
+	private Map<String, int[]> index = new HashMap<String, int[]>();
+
+	private HeaderIndex(Header [] headers) {
+		this.headers = HeaderViews.refer(headers);
+		for (int i = 0; i < headers.length; i++) {
+			String name = getKey(headers[i].getName());
+			int [] existing = index.get(name);
+			if (existing == null) {
+				index.put(name, new int [] { i });
+			}
+			else {
+				existing = Arrays.copyOf(existing, existing.length + 1);
+				existing[existing.length - 1] = i;
+				index.put(name, existing);
+			}
+		}
+	}
+
+	public static HeaderIndex index(HTTPEntity entity) {
+		return entity == null ? null : index(entity.getContent());
+	}
+
+	/**
+	 * Indexes the headers of the part and remembers the index with them, if the same headers were already indexed, the existing index is reused
+	 */
+	public static HeaderIndex index(Part part) {
+		if (part == null) {
+			return null;
+		}
+		Header [] headers = part.getHeaders();
+		if (headers == null || headers.length == 0) {
+			return new HeaderIndex(EMPTY);
+		}
+		HeaderViews views = HeaderViews.get(headers[0]);
+		HeaderIndex index = views.index;
+		if (index == null || !index.isFor(headers)) {
+			index = new HeaderIndex(headers);
+			views.index = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Used by the parser: the internal headers a client is not allowed to send are removed and the injected headers are set on the part (replacing any value with the same name).
+	 * The resulting headers are indexed.
+	 */
+	static HeaderIndex index(ModifiablePart part, boolean stripInternalHeaders, Header...injected) {
+		if (stripInternalHeaders) {
+			Header [] headers = part.getHeaders();
+			List<String> stripped = null;
+			for (Header header : headers == null ? EMPTY : headers) {
+				ServerHeader serverHeader = ServerHeader.fromName(header.getName());
+				if (serverHeader != null && !serverHeader.isClientValueAllowed()) {
+					if (stripped == null) {
+						stripped = new ArrayList<String>();
+					}
+					stripped.add(header.getName());
+				}
+			}
+			if (stripped != null) {
+				part.removeHeader(stripped.toArray(new String[stripped.size()]));
+			}
+		}
+		if (injected.length > 0) {
+			part.setHeader(injected);
+		}
+		return index(part);
+	}
+
+	/**
+	 * Returns the index that was remembered for the given headers, if any
+	 */
+	public static HeaderIndex get(Header...headers) {
+		if (headers == null || headers.length == 0) {
+			return null;
+		}
+		HeaderViews views = HeaderViews.peek(headers[0]);
+		HeaderIndex index = views == null ? null : views.index;
+		return index != null && index.isFor(headers) ? index : null;
+	}
+
+	// checks that these are the exact same header instances we indexed
+	private boolean isFor(Header...headers) {
+		if (headers.length != this.headers.length) {
+			return false;
+		}
+		for (int i = 0; i < headers.length; i++) {
+			if (headers[i] != this.headers[i].get()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// well known headers are keyed by their canonical name, we only need to lowercase the others
+	private static String getKey(String name) {
+		String canonical = HeaderNames.getCanonical(name);
+		return canonical == null ? name.toLowerCase(Locale.ROOT) : canonical;
+	}
+
+	public Header getHeader(String name) {
+		int [] positions = index.get(getKey(name));
+		return positions == null ? null : headers[positions[0]].get();
+	}
+
+	public Header [] getHeaders(String name) {
+		int [] positions = index.get(getKey(name));
+		if (positions == null) {
+			return EMPTY;
+		}
+		Header [] result = new Header[positions.length];
+		for (int i = 0; i < positions.length; i++) {
+			result[i] = headers[positions[i]].get();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,52 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+/**
+ * The canonical spelling of well known header names (the standard ones and our server headers).
+ * Because the canonical names are interned constants, they can be compared by reference and used as keys without lowercasing.
+ */
+public class HeaderNames {
+
+	private static final String [] STANDARD = new String [] {
+		"Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges", "Age", "Allow", "Authorization",
+		"Cache-Control", "Connection", "Content-Disposition", "Content-Encoding", "Content-Language", "Content-Length", "Content-Location",
+		"Content-Range", "Content-Type", "Cookie", "Date", "Device-Id", "ETag", "Expect", "Expires", "Forwarded", "Host", "If-Match",
+		"If-Modified-Since", "If-None-Match", "If-Range", "If-Unmodified-Since", "Keep-Alive", "Last-Modified", "Location", "Origin",
+		"Pragma", "Proxy-Authenticate", "Proxy-Authorization", "Range", "Referer", "Retry-After", "Server", "Set-Cookie", "TE", "Trailer",
+		"Transfer-Encoding", "Upgrade", "User-Agent", "Vary", "Via", "WWW-Authenticate", "X-Forwarded-For", "X-Forwarded-Host", "X-Forwarded-Proto"
+	};
+
+	private static final HeaderTable<String> names = new HeaderTable<String>(STANDARD.length + ServerHeader.values().length);
+
+	static {
+		for (String name : STANDARD) {
+			names.put(name, name);
+		}
+		for (ServerHeader header : ServerHeader.values()) {
+			names.put(header.getName(), header.getName());
+		}
+	}
+
+	/**
+	 * Returns the canonical name if it is a well known header, null otherwise
+	 */
+	public static String getCanonical(String name) {
+		return names.get(name);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+/**
+ * A fixed, case insensitive lookup table for header names.
+ * The hash is calculated on the fly with ascii lowercasing so lookups don't allocate, the table is at most half full so probing is short.
+ */
+public class HeaderTable<T> {
+
+	private String [] names;
+	private Object [] values;
+	private int mask;
+
+	public HeaderTable(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 4) * 2);
+		if (size < capacity * 2) {
+			size <<= 1;
+		}
+		this.names = new String[size];
+		this.values = new Object[size];
+		this.mask = size - 1;
+	}
+
+	public HeaderTable<T> put(String name, T value) {
+		int index = hash(name) & mask;
+		int probes = 0;
+		while (names[index] != null && !names[index].equalsIgnoreCase(name)) {
+			if (++probes > mask) {
+				throw new IllegalStateException("The header table is full");
+			}
+			index = (index + 1) & mask;
+		}
+		names[index] = name;
+		values[index] = value;
+		return this;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(String name) {
+		if (name == null) {
+			return null;
+		}
+		int index = hash(name) & mask;
+		while (names[index] != null) {
+			if (names[index].length() == name.length() && names[index].regionMatches(true, 0, name, 0, name.length())) {
+				return (T) values[index];
+			}
+			index = (index + 1) & mask;
+		}
+		return null;
+	}
+
+	private static int hash(String name) {
+		int hash = 0;
+		for (int i = 0; i < name.length(); i++) {
+			char character = name.charAt(i);
+			if (character >= 'A' && character <= 'Z') {
+				character += 'a' - 'A';
+			}
+			hash = (hash * 31) + character;
+		}
+		// spread the higher bits as we only use the lower ones
+		return hash ^ (hash >>> 16);
+	}
+}
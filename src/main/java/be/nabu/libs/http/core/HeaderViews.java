@@ -0,0 +1,67 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.http.core;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import be.nabu.utils.mime.api.Header;
+
+/**
+ * Remembers the parsed views on the headers of a request, so repeated lookups while handling that request only parse once.
+ * The views are attached to the header instances they were built from (the first relevant one), not to a thread: a request can be handled by any thread and a thread can handle several requests.
+ * Each view is only reused as long as the headers it was built from are the same instances.
+ *
+ * The views only refer weakly to the headers, once the request (and so its headers) is no longer in use, the views are dropped with it.
+ */
+class HeaderViews {
+
+	private static Map<Header, HeaderViews> views = Collections.synchronizedMap(new WeakHashMap<Header, HeaderViews>());
+
+	volatile HTTPCookies cookies;
+	volatile HTTPForwarded forwarded;
+	volatile HeaderIndex index;
+
+	static HeaderViews get(Header anchor) {
+		synchronized(views) {
+			HeaderViews current = views.get(anchor);
+			if (current == null) {
+				current = new HeaderViews();
+				views.put(anchor, current);
+			}
+			return current;
+		}
+	}
+
+	// does not create the views if there are none yet
+	static HeaderViews peek(Header anchor) {
+		return views.get(anchor);
+	}
+
+	// the views may only refer weakly to their headers, the anchor would otherwise keep its own entry in the map alive
+	@SuppressWarnings("unchecked")
+	static Reference<Header> [] refer(Header...headers) {
+		Reference<Header> [] references = new Reference[headers.length];
+		for (int i = 0; i < headers.length; i++) {
+			references[i] = new WeakReference<Header>(headers[i]);
+		}
+		return references;
+	}
+}
@@ -22,7 +22,8 @@ import javax.xml.bind.annotation.XmlRootElement;
 @XmlRootElement
 public class HttpMessage {
 	private String message;
-	private boolean partial;
+	private boolean partial, truncated;
+	private Long originalSize;
 
 	public String getMessage() {
 		return message;
@@ -36,4 +37,22 @@ public class HttpMessage {
 	public void setPartial(boolean partial) {
 		this.partial = partial;
 	}
+	/**
+	 * Whether the message was cut off because it exceeded the capture budget
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+	public void setTruncated(boolean truncated) {
+		this.truncated = truncated;
+	}
+	/**
+	 * The size in bytes of the formatted message before truncation
+	 */
+	public Long getOriginalSize() {
+		return originalSize;
+	}
+	public void setOriginalSize(Long originalSize) {
+		this.originalSize = originalSize;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,472 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * A per-connection parser that can be fed whatever bytes are available (e.g. after a selector wakeup).
+ * It remembers where it left off in the request line, headers or body so the framing of a message is never scanned twice.
+ * This class only frames messages: once a request is complete, the buffered headers and body are handed to the HTTPParser which parses them (again) with the mime parser to build the actual request.
+ * The size of the headers and the body are bounded, a message that exceeds them is rejected with a ParseException.
+ *
+ * This class is not thread safe, you need one instance per connection.
+ */
+public class IncrementalHTTPParser {
+
+	public enum State {
+		REQUEST_LINE,
+		HEADERS,
+		BODY,
+		CHUNK_SIZE,
+		CHUNK_DATA,
+		CHUNK_END,
+		CHUNK_TRAILER,
+		COMPLETE
+	}
+
+	private HTTPParser parser;
+	private String protocol;
+	private State state = State.REQUEST_LINE;
+
+	// the buffered data, the start of the current message, the scan position within the current message and the end of the valid data
+	private byte [] data = new byte[4096];
+	private int start, position, limit;
+
+	private HTTPRequestLine requestLine;
+	private int headersStart, trailerStart;
+	private long contentLength, remaining;
+	private boolean chunked;
+
+	private int maxHeaderSize = 65536;
+	private long maxBodySize = 10 * 1024 * 1024;
+	private long bodySize;
+	private ByteBuffer readBuffer;
+
+	public IncrementalHTTPParser(HTTPParser parser) {
+		this(parser, "HTTP");
+	}
+
+	public IncrementalHTTPParser(HTTPParser parser, String protocol) {
+		this.parser = parser;
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Reads whatever is currently available in the container, returns the amount of bytes read or -1 if the container is closed
+	 */
+	public long read(ReadableContainer<ByteBuffer> container) throws IOException {
+		if (readBuffer == null) {
+			readBuffer = IOUtils.newByteBuffer(4096, false);
+		}
+		long total = 0;
+		long read;
+		while ((read = container.read(readBuffer)) > 0) {
+			ensureCapacity((int) read);
+			limit += readBuffer.read(data, limit, (int) read);
+			total += read;
+		}
+		return total == 0 && read < 0 ? -1 : total;
+	}
+
+	public void push(byte [] bytes, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, data, limit, length);
+		limit += length;
+	}
+
+	/**
+	 * Advances the state machine over the bytes that have not been scanned yet.
+	 * Returns the request if it is complete or null if more data is needed.
+	 */
+	public HTTPRequest next() throws ParseException, IOException {
+		if (!frame()) {
+			return null;
+		}
+		// the message is copied because the buffer is reused for the next one while the request content can be read later on
+		HTTPRequest request = parse(requestLine, IOUtils.wrap(Arrays.copyOfRange(data, headersStart, position), true));
+		reset();
+		return request;
+	}
+
+	/**
+	 * Parses all the complete requests that are currently buffered, in the order they were received.
+	 * This is intended for pipelining clients that send multiple requests at once, any trailing partial request is kept for the next read.
+	 * All the messages are framed first so they can share a single copy of the buffer instead of one copy per request.
+	 */
+	public List<HTTPRequest> nextAll() throws ParseException, IOException {
+		List<Framed> framed = new ArrayList<Framed>();
+		while (frame()) {
+			framed.add(new Framed(requestLine, headersStart, position));
+			reset();
+		}
+		List<HTTPRequest> requests = new ArrayList<HTTPRequest>(framed.size());
+		if (!framed.isEmpty()) {
+			int offset = framed.get(0).start;
+			byte [] batch = Arrays.copyOfRange(data, offset, framed.get(framed.size() - 1).end);
+			for (Framed message : framed) {
+				requests.add(parse(message.requestLine, IOUtils.wrap(new ByteArrayInputStream(batch, message.start - offset, message.end - message.start))));
+			}
+		}
+		return requests;
+	}
+
+	private HTTPRequest parse(HTTPRequestLine requestLine, ReadableContainer<ByteBuffer> message) throws ParseException, IOException {
+		return parser.parseRequest(requestLine.getMethod(), requestLine.getTarget(), requestLine.getVersion(), message, null, protocol);
+	}
+
+	private void reset() {
+		start = position;
+		requestLine = null;
+		state = State.REQUEST_LINE;
+	}
+
+	// returns true if a complete message has been framed, it runs from the headers start to the position
+	private boolean frame() throws ParseException {
+		while (true) {
+			switch (state) {
+				case REQUEST_LINE:
+					int lineEnd = indexOfLinefeed();
+					if (lineEnd < 0) {
+						checkHeaderSize();
+						return false;
+					}
+					requestLine = HTTPRequestLine.parse(data, position, lineEnd - position, protocol);
+					position = lineEnd + 1;
+					// leftover linefeeds from a previous request, skip them
+					if (requestLine == null) {
+						start = position;
+					}
+					else {
+						headersStart = position;
+						contentLength = -1;
+						bodySize = 0;
+						chunked = false;
+						state = State.HEADERS;
+					}
+				break;
+				case HEADERS:
+					lineEnd = indexOfLinefeed();
+					if (lineEnd < 0) {
+						checkHeaderSize();
+						return false;
+					}
+					if (isEmptyLine(position, lineEnd)) {
+						position = lineEnd + 1;
+						if (chunked) {
+							state = State.CHUNK_SIZE;
+						}
+						else if (contentLength > 0) {
+							if (contentLength > maxBodySize) {
+								throw new ParseException("The request body exceeds the maximum size of " + maxBodySize + " bytes", position - start);
+							}
+							remaining = contentLength;
+							state = State.BODY;
+						}
+						else {
+							state = State.COMPLETE;
+						}
+					}
+					else {
+						parseHeader(position, lineEnd);
+						position = lineEnd + 1;
+						if (position - start > maxHeaderSize) {
+							throw new ParseException("The request headers exceed the maximum size of " + maxHeaderSize + " bytes", maxHeaderSize);
+						}
+					}
+				break;
+				case BODY:
+				case CHUNK_DATA:
+					int available = (int) Math.min(remaining, limit - position);
+					position += available;
+					remaining -= available;
+					if (remaining > 0) {
+						return false;
+					}
+					state = state == State.BODY ? State.COMPLETE : State.CHUNK_END;
+				break;
+				case CHUNK_END:
+					// the chunk data must be followed by a line feed (optionally preceded by a carriage return), anything else breaks the framing
+					if (position >= limit) {
+						return false;
+					}
+					if (data[position] == '\r') {
+						if (position + 1 >= limit) {
+							return false;
+						}
+						if (data[position + 1] != '\n') {
+							throw new ParseException("The chunk is not followed by a line feed", position + 1 - start);
+						}
+						position += 2;
+					}
+					else if (data[position] == '\n') {
+						position++;
+					}
+					else {
+						throw new ParseException("The chunk is not followed by a line feed", position - start);
+					}
+					state = State.CHUNK_SIZE;
+				break;
+				case CHUNK_SIZE:
+					lineEnd = indexOfLinefeed();
+					// the same bound as a header line
+					if (lineEnd < 0) {
+						checkLineSize(limit);
+						return false;
+					}
+					checkLineSize(lineEnd);
+					long chunkSize = parseChunkSize(position, lineEnd);
+					position = lineEnd + 1;
+					if (chunkSize == 0) {
+						trailerStart = position;
+						state = State.CHUNK_TRAILER;
+					}
+					else {
+						if (chunkSize > maxBodySize - bodySize) {
+							throw new ParseException("The request body exceeds the maximum size of " + maxBodySize + " bytes", position - start);
+						}
+						bodySize += chunkSize;
+						remaining = chunkSize;
+						state = State.CHUNK_DATA;
+					}
+				break;
+				case CHUNK_TRAILER:
+					lineEnd = indexOfLinefeed();
+					// the trailer is bounded like the headers
+					if ((lineEnd < 0 ? limit : lineEnd) - trailerStart > maxHeaderSize) {
+						throw new ParseException("The request trailer exceeds the maximum size of " + maxHeaderSize + " bytes", maxHeaderSize);
+					}
+					if (lineEnd < 0) {
+						return false;
+					}
+					boolean last = isEmptyLine(position, lineEnd);
+					position = lineEnd + 1;
+					if (last) {
+						state = State.COMPLETE;
+					}
+				break;
+				case COMPLETE:
+					return true;
+			}
+		}
+	}
+
+	/**
+	 * Buffers the bytes and parses all the requests that are complete
+	 */
+	public List<HTTPRequest> parseAll(byte [] bytes, int offset, int length) throws ParseException, IOException {
+		push(bytes, offset, length);
+		return nextAll();
+	}
+	
+	/**
+	 * Reads whatever is available and parses all the requests that are complete
+	 */
+	public List<HTTPRequest> parseAll(ReadableContainer<ByteBuffer> container) throws ParseException, IOException {
+		read(container);
+		return nextAll();
+	}
+
+	private static class Framed {
+		private HTTPRequestLine requestLine;
+		private int start, end;
+
+		public Framed(HTTPRequestLine requestLine, int start, int end) {
+			this.requestLine = requestLine;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	private int indexOfLinefeed() {
+		for (int i = position; i < limit; i++) {
+			if (data[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean isEmptyLine(int from, int lineEnd) {
+		return lineEnd == from || (lineEnd == from + 1 && data[from] == '\r');
+	}
+
+	private void checkHeaderSize() throws ParseException {
+		if (limit - start > maxHeaderSize) {
+			throw new ParseException("The request headers exceed the maximum size of " + maxHeaderSize + " bytes", maxHeaderSize);
+		}
+	}
+
+	private void checkLineSize(int end) throws ParseException {
+		if (end - position > maxHeaderSize) {
+			throw new ParseException("The chunk size line exceeds the maximum size of " + maxHeaderSize + " bytes", maxHeaderSize);
+		}
+	}
+
+	// we are only interested in the headers that determine the size of the message, the rest is left to the mime parser
+	private void parseHeader(int from, int lineEnd) throws ParseException {
+		int colon = -1;
+		for (int i = from; i < lineEnd; i++) {
+			if (data[i] == ':') {
+				colon = i;
+				break;
+			}
+		}
+		if (colon < 0) {
+			return;
+		}
+		if (matches(from, colon, "Content-Length")) {
+			long length = 0;
+			boolean found = false;
+			for (int i = colon + 1; i < lineEnd; i++) {
+				if (data[i] >= '0' && data[i] <= '9') {
+					if (length > (Long.MAX_VALUE - 9) / 10) {
+						throw new ParseException("Invalid content length", i - start);
+					}
+					length = (length * 10) + (data[i] - '0');
+					found = true;
+				}
+				else if (data[i] != ' ' && data[i] != '\t' && data[i] != '\r') {
+					throw new ParseException("Invalid content length", i - start);
+				}
+			}
+			if (!found) {
+				throw new ParseException("Invalid content length", colon - start);
+			}
+			// multiple differing lengths make the framing ambiguous
+			if (contentLength >= 0 && contentLength != length) {
+				throw new ParseException("Conflicting content lengths", colon - start);
+			}
+			contentLength = length;
+		}
+		else if (matches(from, colon, "Transfer-Encoding")) {
+			chunked = containsIgnoreCase(colon + 1, lineEnd, "chunked");
+		}
+	}
+
+	private boolean matches(int from, int to, String name) {
+		while (to > from && (data[to - 1] == ' ' || data[to - 1] == '\t')) {
+			to--;
+		}
+		if (to - from != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (Character.toLowerCase((char) (data[from + i] & 0xff)) != Character.toLowerCase(name.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean containsIgnoreCase(int from, int to, String value) {
+		outer: for (int i = from; i <= to - value.length(); i++) {
+			for (int j = 0; j < value.length(); j++) {
+				if (Character.toLowerCase((char) (data[i + j] & 0xff)) != value.charAt(j)) {
+					continue outer;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private long parseChunkSize(int from, int lineEnd) throws ParseException {
+		long size = 0;
+		boolean found = false;
+		for (int i = from; i < lineEnd; i++) {
+			int digit = Character.digit(data[i], 16);
+			if (digit >= 0) {
+				// no sane chunk is that big and it would overflow the size
+				if (size > (Long.MAX_VALUE >> 4) - 1) {
+					throw new ParseException("Chunk size too large", i - start);
+				}
+				size = (size * 16) + digit;
+				found = true;
+			}
+			// chunk extensions are ignored
+			else if (data[i] == ';' || data[i] == '\r') {
+				break;
+			}
+			else if (data[i] != ' ' && data[i] != '\t') {
+				throw new ParseException("Invalid chunk size", i - start);
+			}
+		}
+		if (!found) {
+			throw new ParseException("Missing chunk size", from - start);
+		}
+		return size;
+	}
+
+	private void ensureCapacity(int length) {
+		if (limit + length > data.length) {
+			// first try to reclaim the space taken up by previous requests
+			if (start > 0) {
+				System.arraycopy(data, start, data, 0, limit - start);
+				position -= start;
+				headersStart -= start;
+				trailerStart -= start;
+				limit -= start;
+				start = 0;
+			}
+			if (limit + length > data.length) {
+				data = Arrays.copyOf(data, Math.max(data.length * 2, limit + length));
+			}
+		}
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * The amount of bytes that have been received but not yet consumed by a complete request
+	 */
+	public int getBuffered() {
+		return limit - start;
+	}
+
+	public int getMaxHeaderSize() {
+		return maxHeaderSize;
+	}
+
+	public void setMaxHeaderSize(int maxHeaderSize) {
+		this.maxHeaderSize = maxHeaderSize;
+	}
+
+	public long getMaxBodySize() {
+		return maxBodySize;
+	}
+
+	/**
+	 * The body is buffered in memory until the request is complete, this limits the size of a single body (for chunked messages the sum of the chunks)
+	 */
+	public void setMaxBodySize(long maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
+}
@@ -0,0 +1,101 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.IOException;
+
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.WritableContainer;
+
+/**
+ * Keeps the first bytes that are written to it (up to a fixed budget) and only counts the rest.
+ * It always accepts all the data so the formatter can stream the entire message through it without blocking.
+ */
+public class LimitedCaptureContainer implements WritableContainer<ByteBuffer> {
+
+	private byte [] captured;
+	private int capturedSize;
+	private long totalSize;
+	private byte [] chunk = new byte[4096];
+
+	public LimitedCaptureContainer(int budget) {
+		this.captured = new byte[budget];
+	}
+
+	@Override
+	public long write(ByteBuffer source) throws IOException {
+		long total = 0;
+		int read;
+		while ((read = source.read(chunk)) > 0) {
+			int amount = Math.min(read, captured.length - capturedSize);
+			if (amount > 0) {
+				System.arraycopy(chunk, 0, captured, capturedSize, amount);
+				capturedSize += amount;
+			}
+			total += read;
+		}
+		totalSize += total;
+		return total;
+	}
+
+	@Override
+	public void flush() {
+		// do nothing
+	}
+
+	@Override
+	public void close() {
+		// do nothing
+	}
+
+	public byte [] getCaptured() {
+		return captured;
+	}
+
+	public int getCapturedSize() {
+		return capturedSize;
+	}
+
+	/**
+	 * The captured size without a utf-8 character that was cut in half by the budget
+	 */
+	public int getCompleteSize() {
+		if (!isTruncated()) {
+			return capturedSize;
+		}
+		// find the start of the last character, continuation bytes look like 10xxxxxx
+		int start = capturedSize - 1;
+		while (start > 0 && start > capturedSize - 4 && (captured[start] & 0xC0) == 0x80) {
+			start--;
+		}
+		if (start < 0) {
+			return capturedSize;
+		}
+		int lead = captured[start] & 0xff;
+		int length = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+		return start + length > capturedSize ? start : capturedSize;
+	}
+
+	public long getTotalSize() {
+		return totalSize;
+	}
+
+	public boolean isTruncated() {
+		return totalSize > capturedSize;
+	}
+}
@@ -28,12 +28,12 @@ public enum ServerHeader implements CustomHeader {
 	REMOTE_IS_LOCAL("X-Remote-Is-Local", false),
 	REQUEST_PROTOCOL("X-Request-Protocol", false),
 	REQUEST_URI("X-Request-URI", false),
-	RESOURCE_URI("X-Resource-URI", true), // set to true because it is injected by the parser _before_ it is processed and such headers are removed. the parser makes sure we have no user values here
+	RESOURCE_URI("X-Resource-URI", true), // set to true because it is injected by the parser _before_ it is processed and such headers are removed. the parser removes user values when it strips internal headers
 	REQUEST_SECURITY("X-Request-Security", false),
 	AUTHENTICATION_SCHEME("X-Authentication-Scheme", false),
 	LOCAL_PORT("X-Local-Port", false),
 	REQUEST_RELATIVE_URI("X-Request-Relative-URI", false),
-	REQUEST_RECEIVED("X-Request-Received", true), // set to true because it is injected by the parser _before_ it is processed and such headers are removed. the parser makes sure we have no user values here
+	REQUEST_RECEIVED("X-Request-Received", true), // set to true because it is injected by the parser _before_ it is processed and such headers are removed. the parser removes user values when it strips internal headers
 	// possible values: ssr (stands for server side rendering)
 	REQUEST_TYPE("X-Request-Type", false),
 	// correlation id is always local, conversation id can be global
@@ -61,6 +61,14 @@ public enum ServerHeader implements CustomHeader {
 	public static final String NAME_CORRELATION_ID = "X-Correlation-Id";
 	public static final String NAME_CONVERSATION_ID = "X-Conversation-Id";
 	
+	private static final HeaderTable<ServerHeader> headers = new HeaderTable<ServerHeader>(values().length);
+	
+	static {
+		for (ServerHeader header : values()) {
+			headers.put(header.getName(), header);
+		}
+	}
+	
 	private String name;
 	private boolean isUserValueAllowed;
 
@@ -77,4 +85,22 @@ public enum ServerHeader implements CustomHeader {
 	public boolean isUserValueAllowed() {
 		return isUserValueAllowed;
 	}
+	
+	/**
+	 * Case insensitive lookup of the server header with the given name, returns null if it is not a server header
+	 */
+	public static ServerHeader fromName(String name) {
+		return headers.get(name);
+	}
+	
+	/**
+	 * Whether a value sent by the client can be kept, the headers that are injected while parsing never come from the client
+	 */
+	boolean isClientValueAllowed() {
+		return isUserValueAllowed && this != RESOURCE_URI && this != REQUEST_RECEIVED;
+	}
+	
+	public static boolean isInternal(String name) {
+		return headers.get(name) != null;
+	}
 }
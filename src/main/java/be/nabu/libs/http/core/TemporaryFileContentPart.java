@@ -0,0 +1,131 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.Header;
+
+/**
+ * Content that was spilled to a temporary file, it can be read as often as needed (like content that is kept in memory).
+ * The file is not tied to a single read, it is deleted as soon as the HTTPFormatter has sent the response it belongs to.
+ * If the response is never sent, the file is deleted once the part (and every readable of it) is garbage collected or when the vm shuts down.
+ */
+class TemporaryFileContentPart extends FileContentPart {
+
+	private static final ReferenceQueue<TemporaryFileContentPart> collected = new ReferenceQueue<TemporaryFileContentPart>();
+	private static final Map<Reference<?>, File> files = new ConcurrentHashMap<Reference<?>, File>();
+
+	// static so the scheduled task does not keep anything alive
+	private static final Evictor.Eviction<ReferenceQueue<TemporaryFileContentPart>> EVICTION = new Evictor.Eviction<ReferenceQueue<TemporaryFileContentPart>>() {
+		@Override
+		public void evict(ReferenceQueue<TemporaryFileContentPart> queue) {
+			deleteCollected();
+		}
+	};
+
+	static {
+		Evictor.schedule(collected, EVICTION, 60000);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (File file : files.values()) {
+					file.delete();
+				}
+			}
+		}, "http-core-temporary-files"));
+	}
+
+	private Reference<TemporaryFileContentPart> reference;
+	private volatile boolean released;
+
+	public TemporaryFileContentPart(File file, Header...headers) {
+		super(null, null, file, 0, file.length(), headers);
+		deleteCollected();
+		reference = new PhantomReference<TemporaryFileContentPart>(this, collected);
+		files.put(reference, file);
+	}
+
+	/**
+	 * Deletes the file right away, the content can no longer be read afterwards
+	 */
+	void release() {
+		released = true;
+		if (files.remove(reference) != null) {
+			getFile().delete();
+		}
+	}
+
+	static void deleteCollected() {
+		Reference<?> reference;
+		while ((reference = collected.poll()) != null) {
+			File file = files.remove(reference);
+			if (file != null) {
+				file.delete();
+			}
+		}
+	}
+
+	@Override
+	public ReadableContainer<ByteBuffer> getReadable() {
+		return new FileContainer();
+	}
+
+	@Override
+	public boolean isReopenable() {
+		return !released;
+	}
+
+	// the file is only opened when it is read, the readable keeps the part (and with it the file) alive
+	private class FileContainer implements ReadableContainer<ByteBuffer> {
+		private ReadableContainer<ByteBuffer> readable;
+		private boolean closed;
+
+		@Override
+		public long read(ByteBuffer target) throws IOException {
+			if (closed) {
+				throw new IOException("The readable is closed");
+			}
+			else if (released) {
+				throw new IOException("The content has already been sent");
+			}
+			if (readable == null) {
+				readable = IOUtils.wrap(new FileInputStream(getFile()));
+			}
+			return readable.read(target);
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			if (readable != null) {
+				readable.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,30 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An output that can expose the channel it eventually writes to (e.g. a socket).
+ * The formatter flushes the output before it writes to the channel directly.
+ * The channel must be blocking: a direct transfer can not be resumed later on, the formatter fails if the channel is non blocking or does not accept data.
+ * If the output can only offer a non blocking channel, it should return null so the content is written through the output itself.
+ */
+public interface WritableChannelProvider {
+	public WritableByteChannel getWritableChannel();
+}
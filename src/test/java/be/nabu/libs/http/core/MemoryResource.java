@@ -0,0 +1,140 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.LocatableResource;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.TimestampedResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * An in memory resource for the tests, it counts how often it is opened
+ */
+public class MemoryResource implements ReadableResource, FiniteResource, TimestampedResource, LocatableResource {
+
+	private String name, contentType;
+	private byte [] content;
+	private Date lastModified;
+	private Directory parent;
+	private AtomicInteger opened = new AtomicInteger();
+
+	public MemoryResource(String name, String contentType, byte [] content, Date lastModified) {
+		this.name = name;
+		this.contentType = contentType;
+		this.content = content;
+		this.lastModified = lastModified;
+	}
+
+	@Override
+	public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+		opened.incrementAndGet();
+		return IOUtils.wrap(content, true);
+	}
+
+	@Override
+	public long getSize() {
+		return content.length;
+	}
+
+	@Override
+	public Date getLastModified() {
+		return lastModified;
+	}
+
+	public void setContent(byte [] content, Date lastModified) {
+		this.content = content;
+		this.lastModified = lastModified;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public URI getUri() {
+		return URI.create("memory:/" + name);
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public ResourceContainer<?> getParent() {
+		return parent;
+	}
+
+	public int getOpened() {
+		return opened.get();
+	}
+
+	public static class Directory implements ResourceContainer<MemoryResource> {
+		private List<MemoryResource> children = new ArrayList<MemoryResource>();
+
+		public Directory(MemoryResource...children) {
+			for (MemoryResource child : children) {
+				child.parent = this;
+				this.children.add(child);
+			}
+		}
+
+		@Override
+		public MemoryResource getChild(String name) {
+			for (MemoryResource child : children) {
+				if (child.getName().equals(name)) {
+					return child;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public Iterator<MemoryResource> iterator() {
+			return children.iterator();
+		}
+
+		@Override
+		public String getName() {
+			return "memory";
+		}
+
+		@Override
+		public String getContentType() {
+			return "application/directory";
+		}
+
+		@Override
+		public ResourceContainer<?> getParent() {
+			return null;
+		}
+	}
+}
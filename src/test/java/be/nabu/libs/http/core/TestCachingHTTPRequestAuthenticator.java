@@ -0,0 +1,198 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPRequestAuthenticator;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+import junit.framework.TestCase;
+
+public class TestCachingHTTPRequestAuthenticator extends TestCase {
+
+	public void testCache() {
+		Counting counting = new Counting();
+		CachingHTTPRequestAuthenticator caching = new CachingHTTPRequestAuthenticator(counting, 60000, 60000, 100);
+		HTTPRequest first = newRequest("GET", "/test", "Basic YWxpY2U6c2VjcmV0");
+		assertTrue(caching.authenticate(first, "realm", null, false));
+		assertEquals("alice", MimeUtils.getHeader("X-User", first.getContent().getHeaders()).getValue());
+		HTTPRequest second = newRequest("GET", "/test", "Basic YWxpY2U6c2VjcmV0");
+		assertTrue(caching.authenticate(second, "realm", null, false));
+		assertEquals(1, counting.calls.get());
+		// the added headers are replayed on a hit
+		assertEquals("alice", MimeUtils.getHeader("X-User", second.getContent().getHeaders()).getValue());
+		// other credentials are checked separately
+		assertFalse(caching.authenticate(newRequest("GET", "/test", null), "realm", null, false));
+		assertEquals(2, counting.calls.get());
+		// a refresh always goes to the authenticator
+		assertTrue(caching.authenticate(newRequest("GET", "/test", "Basic YWxpY2U6c2VjcmV0"), "realm", null, true));
+		assertEquals(3, counting.calls.get());
+	}
+
+	public void testKeyIncludesRequest() {
+		Counting counting = new Counting();
+		CachingHTTPRequestAuthenticator caching = new CachingHTTPRequestAuthenticator(counting, 60000, 60000, 100);
+		assertTrue(caching.authenticate(newRequest("GET", "/public", "Basic YWxpY2U6c2VjcmV0"), "realm", null, false));
+		assertTrue(caching.authenticate(newRequest("GET", "/admin", "Basic YWxpY2U6c2VjcmV0"), "realm", null, false));
+		assertTrue(caching.authenticate(newRequest("DELETE", "/admin", "Basic YWxpY2U6c2VjcmV0"), "realm", null, false));
+		assertEquals(3, counting.calls.get());
+		assertTrue(caching.authenticate(newRequest("GET", "/admin", "Basic YWxpY2U6c2VjcmV0"), "realm", null, false));
+		assertEquals(3, counting.calls.get());
+	}
+
+	// the decision is based on a header that is not a well known credential header
+	public void testOtherCredentialHeader() {
+		final AtomicInteger calls = new AtomicInteger();
+		HTTPRequestAuthenticator apiKey = new HTTPRequestAuthenticator() {
+			@Override
+			public boolean authenticate(HTTPRequest request, String context, HTTPResponse trigger, boolean refresh) {
+				calls.incrementAndGet();
+				Header header = MimeUtils.getHeader("X-API-Key", request.getContent().getHeaders());
+				return header != null && header.getValue().equals("secret");
+			}
+		};
+		CachingHTTPRequestAuthenticator caching = new CachingHTTPRequestAuthenticator(apiKey, 60000, 60000, 100);
+		assertTrue(caching.authenticate(newRequest("GET", "/test", null, "secret"), "realm", null, false));
+		assertFalse(caching.authenticate(newRequest("GET", "/test", null, "guess"), "realm", null, false));
+		assertEquals(2, calls.get());
+		assertTrue(caching.authenticate(newRequest("GET", "/test", null, "secret"), "realm", null, false));
+		assertEquals(2, calls.get());
+
+		// when limited, the header must be listed
+		caching = new CachingHTTPRequestAuthenticator(apiKey, 60000, 60000, 100, "Host", "X-API-Key");
+		assertTrue(caching.authenticate(newRequest("GET", "/test", null, "secret"), "realm", null, false));
+		assertFalse(caching.authenticate(newRequest("GET", "/test", null, "guess"), "realm", null, false));
+		assertEquals(4, calls.get());
+		// other headers are not part of the key
+		HTTPRequest request = newRequest("GET", "/test", null, "secret");
+		request.getContent().setHeader(new MimeHeader("User-Agent", "test"));
+		assertTrue(caching.authenticate(request, "realm", null, false));
+		assertEquals(4, calls.get());
+	}
+
+	public void testSingleFlight() throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Counting counting = new Counting() {
+			@Override
+			public boolean authenticate(HTTPRequest request, String context, HTTPResponse trigger, boolean refresh) {
+				started.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.authenticate(request, context, trigger, refresh);
+			}
+		};
+		final CachingHTTPRequestAuthenticator caching = new CachingHTTPRequestAuthenticator(counting, 60000, 60000, 100);
+		final AtomicInteger authenticated = new AtomicInteger();
+		Thread [] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					if (caching.authenticate(newRequest("GET", "/test", "Basic YWxpY2U6c2VjcmV0"), "realm", null, false)) {
+						authenticated.incrementAndGet();
+					}
+				}
+			});
+			threads[i].start();
+			if (i == 0) {
+				assertTrue(started.await(5, TimeUnit.SECONDS));
+			}
+		}
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+		assertEquals(threads.length, authenticated.get());
+		assertEquals(1, counting.calls.get());
+	}
+
+	// an authenticator that checks the same request again must not wait for itself
+	public void testReentrant() throws InterruptedException {
+		final CachingHTTPRequestAuthenticator [] caching = new CachingHTTPRequestAuthenticator[1];
+		final Counting counting = new Counting() {
+			private boolean nested;
+			@Override
+			public boolean authenticate(HTTPRequest request, String context, HTTPResponse trigger, boolean refresh) {
+				if (!nested) {
+					nested = true;
+					if (!caching[0].authenticate(request, context, trigger, refresh)) {
+						return false;
+					}
+				}
+				return super.authenticate(request, context, trigger, refresh);
+			}
+		};
+		caching[0] = new CachingHTTPRequestAuthenticator(counting, 60000, 60000, 100);
+		final AtomicInteger authenticated = new AtomicInteger();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				if (caching[0].authenticate(newRequest("GET", "/test", "Basic YWxpY2U6c2VjcmV0"), "realm", null, false)) {
+					authenticated.incrementAndGet();
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+		assertEquals(1, authenticated.get());
+	}
+
+	private static HTTPRequest newRequest(String method, String target, String authorization) {
+		return newRequest(method, target, authorization, null);
+	}
+
+	private static HTTPRequest newRequest(String method, String target, String authorization, String apiKey) {
+		PlainMimeEmptyPart content = new PlainMimeEmptyPart(null, new MimeHeader("Host", "example.com"));
+		if (authorization != null) {
+			content.setHeader(new MimeHeader("Authorization", authorization));
+		}
+		if (apiKey != null) {
+			content.setHeader(new MimeHeader("X-API-Key", apiKey));
+		}
+		return new DefaultHTTPRequest(method, target, content);
+	}
+
+	// accepts any request with an authorization header and adds the user it belongs to
+	private static class Counting implements HTTPRequestAuthenticator {
+		protected AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public boolean authenticate(HTTPRequest request, String context, HTTPResponse trigger, boolean refresh) {
+			calls.incrementAndGet();
+			if (MimeUtils.getHeader("Authorization", request.getContent().getHeaders()) == null) {
+				return false;
+			}
+			request.getContent().setHeader(new MimeHeader("X-User", "alice"));
+			return true;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPRequestAuthenticator;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.ModifiableHeader;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+import junit.framework.TestCase;
+
+public class TestCompositeHTTPRequestAuthenticator extends TestCase {
+
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() {
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@Override
+	protected void tearDown() {
+		executor.shutdownNow();
+	}
+
+	public void testSequential() {
+		AtomicInteger calls = new AtomicInteger();
+		CompositeHTTPRequestAuthenticator composite = new CompositeHTTPRequestAuthenticator(Arrays.<HTTPRequestAuthenticator>asList(
+			new Fixed(false, calls), new Fixed(true, calls), new Fixed(true, calls)));
+		assertTrue(composite.authenticate(newRequest(), null, null, false));
+		assertEquals(2, calls.get());
+	}
+
+	// the first one in order wins, even if a later one is faster
+	public void testPriority() {
+		CompositeHTTPRequestAuthenticator composite = new CompositeHTTPRequestAuthenticator(Arrays.<HTTPRequestAuthenticator>asList(
+			new Adding("first", 200), new Adding("second", 0)), executor, 5000);
+		HTTPRequest request = newRequest();
+		assertTrue(composite.authenticate(request, null, null, false));
+		assertEquals("first", MimeUtils.getHeader("X-User", request.getContent().getHeaders()).getValue());
+	}
+
+	public void testDeadline() {
+		CompositeHTTPRequestAuthenticator composite = new CompositeHTTPRequestAuthenticator(Arrays.<HTTPRequestAuthenticator>asList(
+			new Adding("slow", 2000), new Adding("fast", 0)), executor, 100);
+		HTTPRequest request = newRequest();
+		assertTrue(composite.authenticate(request, null, null, false));
+		assertEquals("fast", MimeUtils.getHeader("X-User", request.getContent().getHeaders()).getValue());
+	}
+
+	public void testNoTimeout() {
+		CompositeHTTPRequestAuthenticator composite = new CompositeHTTPRequestAuthenticator(Arrays.<HTTPRequestAuthenticator>asList(
+			new Adding("first", 50), new Adding("second", 0)), executor, 0);
+		HTTPRequest request = newRequest();
+		assertTrue(composite.authenticate(request, null, null, false));
+		assertEquals("first", MimeUtils.getHeader("X-User", request.getContent().getHeaders()).getValue());
+	}
+
+	// removed and changed headers of the winner are applied, changes of the others are not
+	public void testHeaderChanges() {
+		HTTPRequestAuthenticator changing = new HTTPRequestAuthenticator() {
+			@Override
+			public boolean authenticate(HTTPRequest request, String context, HTTPResponse trigger, boolean refresh) {
+				request.getContent().removeHeader("X-Remove");
+				((ModifiableHeader) MimeUtils.getHeader("X-Change", request.getContent().getHeaders())).addComment("changed");
+				return true;
+			}
+		};
+		HTTPRequestAuthenticator failing = new HTTPRequestAuthenticator() {
+			@Override
+			public boolean authenticate(HTTPRequest request, String context, HTTPResponse trigger, boolean refresh) {
+				((ModifiableHeader) MimeUtils.getHeader("X-Change", request.getContent().getHeaders())).addComment("failed");
+				return false;
+			}
+		};
+		CompositeHTTPRequestAuthenticator composite = new CompositeHTTPRequestAuthenticator(Arrays.<HTTPRequestAuthenticator>asList(failing, changing), executor, 5000);
+		HTTPRequest request = newRequest();
+		assertTrue(composite.authenticate(request, null, null, false));
+		Header [] headers = request.getContent().getHeaders();
+		assertNull(MimeUtils.getHeader("X-Remove", headers));
+		assertEquals(Arrays.asList("changed"), Arrays.asList(MimeUtils.getHeader("X-Change", headers).getComments()));
+		assertNotNull(MimeUtils.getHeader("Host", headers));
+	}
+
+	// when the executor is full the started authenticators are still used and the rest runs sequentially
+	public void testRejected() {
+		// one thread and one queued task, the first authenticator keeps the thread busy so the third is rejected
+		ThreadPoolExecutor bounded = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1));
+		try {
+			AtomicInteger calls = new AtomicInteger();
+			CompositeHTTPRequestAuthenticator composite = new CompositeHTTPRequestAuthenticator(Arrays.<HTTPRequestAuthenticator>asList(
+				new Fixed(false, calls, 200), new Adding("second", 0), new Fixed(true, calls, 0)), bounded, 5000);
+			HTTPRequest request = newRequest();
+			assertTrue(composite.authenticate(request, null, null, false));
+			assertEquals("second", MimeUtils.getHeader("X-User", request.getContent().getHeaders()).getValue());
+			assertEquals(1, calls.get());
+
+			calls.set(0);
+			composite = new CompositeHTTPRequestAuthenticator(Arrays.<HTTPRequestAuthenticator>asList(
+				new Fixed(false, calls, 200), new Fixed(false, calls, 0), new Fixed(true, calls, 0)), bounded, 5000);
+			request = newRequest();
+			assertTrue(composite.authenticate(request, null, null, false));
+			assertEquals(3, calls.get());
+		}
+		finally {
+			bounded.shutdownNow();
+		}
+	}
+
+	private static HTTPRequest newRequest() {
+		return new DefaultHTTPRequest("GET", "/", new PlainMimeEmptyPart(null,
+			new MimeHeader("Host", "example.com"),
+			new MimeHeader("X-Remove", "true"),
+			new MimeHeader("X-Change", "value")));
+	}
+
+	private static class Fixed implements HTTPRequestAuthenticator {
+		private boolean result;
+		private AtomicInteger calls;
+		private long delay;
+
+		public Fixed(boolean result, AtomicInteger calls) {
+			this(result, calls, 0);
+		}
+
+		public Fixed(boolean result, AtomicInteger calls, long delay) {
+			this.result = result;
+			this.calls = calls;
+			this.delay = delay;
+		}
+
+		@Override
+		public boolean authenticate(HTTPRequest request, String context, HTTPResponse trigger, boolean refresh) {
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				}
+				catch (InterruptedException e) {
+					return false;
+				}
+			}
+			calls.incrementAndGet();
+			return result;
+		}
+	}
+
+	private static class Adding implements HTTPRequestAuthenticator {
+		private String user;
+		private long delay;
+
+		public Adding(String user, long delay) {
+			this.user = user;
+			this.delay = delay;
+		}
+
+		@Override
+		public boolean authenticate(HTTPRequest request, String context, HTTPResponse trigger, boolean refresh) {
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				}
+				catch (InterruptedException e) {
+					return false;
+				}
+			}
+			request.getContent().setHeader(new MimeHeader("X-User", user));
+			return true;
+		}
+	}
+}
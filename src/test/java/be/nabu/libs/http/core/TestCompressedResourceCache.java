@@ -0,0 +1,205 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import junit.framework.TestCase;
+
+public class TestCompressedResourceCache extends TestCase {
+
+	private static final Header [] GZIP = new Header [] { new MimeHeader("Accept-Encoding", "gzip") };
+
+	public void testCache() throws IOException {
+		byte [] content = newContent("first");
+		MemoryResource resource = new MemoryResource("page.html", "text/html", content, new Date(1000));
+		CompressedResourceCache cache = new CompressedResourceCache(1024 * 1024);
+		EncodedContentPart part = cache.getContent(resource, GZIP);
+		Header [] headers = part.getHeaders();
+		assertEquals("gzip", MimeUtils.getHeader("Content-Encoding", headers).getValue());
+		assertEquals("text/html", MimeUtils.getHeader("Content-Type", headers).getValue());
+		byte [] compressed = IOUtils.toBytes(part.getReadable());
+		assertEquals(Long.toString(compressed.length), MimeUtils.getHeader("Content-Length", headers).getValue());
+		assertTrue(compressed.length < content.length);
+		assertEquals(new String(content, "ASCII"), new String(gunzip(compressed), "ASCII"));
+
+		// the second time it comes from the cache
+		part = cache.getContent(resource, GZIP);
+		assertEquals(new String(content, "ASCII"), new String(gunzip(IOUtils.toBytes(part.getReadable())), "ASCII"));
+		assertEquals(1, resource.getOpened());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(compressed.length, cache.getSize());
+
+		// a new version is compressed again
+		byte [] changed = newContent("second");
+		resource.setContent(changed, new Date(2000));
+		part = cache.getContent(resource, GZIP);
+		assertEquals(new String(changed, "ASCII"), new String(gunzip(IOUtils.toBytes(part.getReadable())), "ASCII"));
+		assertEquals(2, resource.getOpened());
+
+		// a change within the same timestamp is noticed through the size
+		byte [] longer = newContent("second, but longer");
+		resource.setContent(longer, new Date(2000));
+		part = cache.getContent(resource, GZIP);
+		assertEquals(new String(longer, "ASCII"), new String(gunzip(IOUtils.toBytes(part.getReadable())), "ASCII"));
+		assertEquals(3, resource.getOpened());
+
+		// or through the etag
+		part = cache.getContent(resource, GZIP, new MimeHeader("ETag", "\"v1\""));
+		assertEquals(4, resource.getOpened());
+		part = cache.getContent(resource, GZIP, new MimeHeader("ETag", "\"v1\""));
+		assertEquals(4, resource.getOpened());
+		part = cache.getContent(resource, GZIP, new MimeHeader("ETag", "\"v2\""));
+		assertEquals(5, resource.getOpened());
+	}
+
+	public void testNotCached() throws IOException {
+		CompressedResourceCache cache = new CompressedResourceCache(1024 * 1024);
+		// without a last modified we can't tell whether the resource changed
+		assertNull(cache.getContent(new MemoryResource("page.html", "text/html", newContent("first"), null), GZIP));
+		assertNull(cache.getContent(new MemoryResource("page.html", "text/html", newContent("first"), null), GZIP, new MimeHeader("ETag", "W/\"v1\"")));
+		// too small
+		assertNull(cache.getContent(new MemoryResource("small.html", "text/html", new byte[10], new Date()), GZIP));
+		// not compressible
+		assertNull(cache.getContent(new MemoryResource("image.png", "image/png", new byte[4096], new Date()), GZIP));
+		// the client does not want it
+		assertNull(cache.getContent(new MemoryResource("page.html", "text/html", newContent("first"), new Date()), new Header[0]));
+		assertEquals(0, cache.getSize());
+		// a strong etag is enough
+		assertNotNull(cache.getContent(new MemoryResource("page.html", "text/html", newContent("first"), null), GZIP, new MimeHeader("ETag", "\"v1\"")));
+	}
+
+	public void testVary() throws IOException {
+		CompressedResourceCache cache = new CompressedResourceCache(1024 * 1024);
+		MemoryResource resource = new MemoryResource("page.html", "text/html", newContent("first"), new Date(1000));
+		Header [] headers = cache.getContent(resource, GZIP, new MimeHeader("Vary", "Origin")).getHeaders();
+		assertEquals(1, MimeUtils.getHeaders("Vary", headers).length);
+		assertEquals("Origin, Accept-Encoding", MimeUtils.getHeader("Vary", headers).getValue());
+		headers = cache.getContent(resource, GZIP, new MimeHeader("Vary", "Accept-Encoding")).getHeaders();
+		assertEquals(1, MimeUtils.getHeaders("Vary", headers).length);
+		assertEquals("Accept-Encoding", MimeUtils.getHeader("Vary", headers).getValue());
+	}
+
+	public void testBudget() throws IOException {
+		// random content barely compresses, only one entry fits
+		CompressedResourceCache cache = new CompressedResourceCache(6000, true);
+		Random random = new Random(42);
+		MemoryResource [] resources = new MemoryResource[3];
+		for (int i = 0; i < resources.length; i++) {
+			byte [] content = new byte[4096];
+			random.nextBytes(content);
+			resources[i] = new MemoryResource("page" + i + ".html", "text/html", content, new Date(1000));
+			EncodedContentPart part = cache.getContent(resources[i], GZIP);
+			assertTrue(Arrays.equals(content, gunzip(IOUtils.toBytes(part.getReadable()))));
+			assertTrue(cache.getSize() <= cache.getBudget());
+		}
+		// the last one is still there, the first one was evicted
+		cache.getContent(resources[2], GZIP);
+		assertEquals(1, cache.getHits());
+		cache.getContent(resources[0], GZIP);
+		assertEquals(1, cache.getHits());
+		assertEquals(2, resources[0].getOpened());
+	}
+
+	// concurrent misses for the same resource only compress it once
+	public void testSingleFlight() throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final MemoryResource resource = new MemoryResource("page.html", "text/html", newContent("first"), new Date(1000)) {
+			@Override
+			public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+				started.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return super.getReadable();
+			}
+		};
+		final CompressedResourceCache cache = new CompressedResourceCache(1024 * 1024);
+		final byte [][] results = new byte[4][];
+		Thread [] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						results[index] = IOUtils.toBytes(cache.getContent(resource, GZIP).getReadable());
+					}
+					catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			threads[i].start();
+			if (i == 0) {
+				assertTrue(started.await(5, TimeUnit.SECONDS));
+			}
+		}
+		// give the others the time to find the compression in progress
+		Thread.sleep(100);
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+		assertEquals(1, resource.getOpened());
+		for (byte [] result : results) {
+			assertNotNull(result);
+			assertEquals(results[0].length, result.length);
+		}
+	}
+
+	private static byte [] newContent(String text) {
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < 4096) {
+			builder.append("<p>").append(text).append("</p>\n");
+		}
+		return builder.toString().getBytes();
+	}
+
+	private static byte [] gunzip(byte [] bytes) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+			byte [] buffer = new byte[4096];
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				output.write(buffer, 0, read);
+			}
+		}
+		return output.toByteArray();
+	}
+}
@@ -0,0 +1,136 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import junit.framework.TestCase;
+
+public class TestCompressionPool extends TestCase {
+
+	public void testRoundTrip() throws IOException {
+		CompressionPool pool = new CompressionPool(4, 0);
+		for (byte [] bytes : new byte [][] { new byte[0], "hello".getBytes("ASCII"), newContent(100000) }) {
+			for (String encoding : new String [] { "gzip", "x-gzip", "deflate" }) {
+				// twice to reuse the pooled instances
+				assertTrue(Arrays.equals(bytes, decode(pool, pool.compress(bytes, encoding), encoding)));
+				assertTrue(Arrays.equals(bytes, decode(pool, pool.compress(bytes, encoding), encoding)));
+			}
+		}
+	}
+
+	public void testInterop() throws IOException {
+		CompressionPool pool = new CompressionPool(4, 0);
+		byte [] bytes = newContent(50000);
+		// our gzip and deflate can be read by the jdk
+		assertTrue(Arrays.equals(bytes, read(new GZIPInputStream(new ByteArrayInputStream(pool.compress(bytes, "gzip"))))));
+		assertTrue(Arrays.equals(bytes, read(new InflaterInputStream(new ByteArrayInputStream(pool.compress(bytes, "deflate"))))));
+		// and we can read the jdk gzip, including the optional header fields
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		GZIPOutputStream output = new GZIPOutputStream(gzipped);
+		output.write(bytes);
+		output.close();
+		assertTrue(Arrays.equals(bytes, decode(pool, gzipped.toByteArray(), "gzip")));
+		byte [] named = gzipped.toByteArray();
+		byte [] withName = new byte[named.length + 5];
+		System.arraycopy(named, 0, withName, 0, 10);
+		// FNAME
+		withName[3] = 8;
+		System.arraycopy("test\0".getBytes("ASCII"), 0, withName, 10, 5);
+		System.arraycopy(named, 10, withName, 15, named.length - 10);
+		assertTrue(Arrays.equals(bytes, decode(pool, withName, "gzip")));
+	}
+
+	public void testCorruptTrailer() throws IOException {
+		CompressionPool pool = new CompressionPool(4, 0);
+		byte [] compressed = pool.compress(newContent(1000), "gzip");
+		compressed[compressed.length - 8] ^= 1;
+		try {
+			decode(pool, compressed, "gzip");
+			fail("The crc does not match");
+		}
+		catch (ZipException e) {
+			// expected
+		}
+	}
+
+	public void testCorruptHeaderReleasesInflater() throws IOException {
+		CompressionPool pool = new CompressionPool(4, 0);
+		Inflater inflater = pool.borrowInflater(true);
+		pool.release(inflater, true);
+		try {
+			pool.decode(new ByteArrayInputStream("not gzip".getBytes("ASCII")), "gzip");
+			fail("The header is not valid");
+		}
+		catch (ZipException e) {
+			// expected
+		}
+		// the stream borrowed the pooled inflater and has to return it
+		assertSame(inflater, pool.borrowInflater(true));
+	}
+
+	public void testUnsupported() throws IOException {
+		CompressionPool pool = new CompressionPool(4, 0);
+		try {
+			pool.encode(new ByteArrayOutputStream(), "br");
+			fail("Brotli is not supported");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static byte [] decode(CompressionPool pool, byte [] bytes, String encoding) throws IOException {
+		return read(pool.decode(new ByteArrayInputStream(bytes), encoding));
+	}
+
+	private static byte [] read(InputStream input) throws IOException {
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte [] buffer = new byte[1024];
+			int read;
+			while ((read = input.read(buffer)) >= 0) {
+				output.write(buffer, 0, read);
+			}
+			return output.toByteArray();
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	// somewhat compressible content
+	static byte [] newContent(int size) {
+		Random random = new Random(size);
+		byte [] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = (byte) ('a' + random.nextInt(8));
+		}
+		return bytes;
+	}
+}
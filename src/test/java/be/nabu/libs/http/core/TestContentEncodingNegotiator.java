@@ -0,0 +1,138 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.IOException;
+import java.util.Date;
+
+import be.nabu.libs.http.HTTPException;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+import junit.framework.TestCase;
+
+public class TestContentEncodingNegotiator extends TestCase {
+
+	public void testNegotiate() {
+		assertNull(ContentEncodingNegotiator.negotiate());
+		assertEquals("gzip", negotiate("gzip, deflate"));
+		assertEquals("deflate", negotiate("deflate"));
+		assertEquals("deflate", negotiate("gzip;q=0.5, deflate"));
+		assertEquals("gzip", negotiate("x-gzip"));
+		// same weight, our preference decides
+		assertEquals("gzip", negotiate("deflate, gzip"));
+		assertNull(negotiate("gzip;q=0"));
+		assertNull(negotiate("br"));
+		assertEquals("gzip", negotiate("*"));
+		assertNull(negotiate("*;q=0"));
+		assertEquals("deflate", negotiate("gzip;q=0, *"));
+		// identity is only used if it is explicitly preferred
+		assertNull(negotiate("identity;q=1, gzip;q=0.5"));
+		assertEquals("gzip", negotiate("identity;q=0.5, gzip"));
+		// invalid weights count as 0
+		assertNull(negotiate("gzip;q=abc"));
+		// multiple headers are combined
+		assertEquals("deflate", ContentEncodingNegotiator.negotiate(new MimeHeader("Accept-Encoding", "gzip;q=0.1"), new MimeHeader("Accept-Encoding", "deflate")));
+	}
+
+	public void testMinimumSize() {
+		PlainMimeEmptyPart small = new PlainMimeEmptyPart(null, new MimeHeader("Content-Type", "text/html"), new MimeHeader("Content-Length", "100"));
+		HTTPUtils.setContentEncoding(small, ContentEncodingNegotiator.DEFAULT_MINIMUM_SIZE, new MimeHeader("Accept-Encoding", "gzip"));
+		assertNull(MimeUtils.getHeader("Content-Encoding", small.getHeaders()));
+		assertEquals("100", MimeUtils.getHeader("Content-Length", small.getHeaders()).getValue());
+		// without a minimum size, all content is encoded (as before)
+		HTTPUtils.setContentEncoding(small, new MimeHeader("Accept-Encoding", "gzip"));
+		assertEquals("gzip", MimeUtils.getHeader("Content-Encoding", small.getHeaders()).getValue());
+
+		PlainMimeEmptyPart large = new PlainMimeEmptyPart(null, new MimeHeader("Content-Type", "text/html"), new MimeHeader("Content-Length", "100000"), new MimeHeader("Vary", "Origin"));
+		HTTPUtils.setContentEncoding(large, ContentEncodingNegotiator.DEFAULT_MINIMUM_SIZE, new MimeHeader("Accept-Encoding", "gzip"));
+		assertEquals("gzip", MimeUtils.getHeader("Content-Encoding", large.getHeaders()).getValue());
+		assertNull(MimeUtils.getHeader("Content-Length", large.getHeaders()));
+		assertEquals("chunked", MimeUtils.getHeader("Transfer-Encoding", large.getHeaders()).getValue());
+		assertEquals("Origin, Accept-Encoding", MimeUtils.getHeader("Vary", large.getHeaders()).getValue());
+
+		// binary content is not compressed
+		PlainMimeEmptyPart binary = new PlainMimeEmptyPart(null, new MimeHeader("Content-Type", "image/png"), new MimeHeader("Content-Length", "100000"));
+		HTTPUtils.setContentEncoding(binary, new MimeHeader("Accept-Encoding", "gzip"));
+		assertNull(MimeUtils.getHeader("Content-Encoding", binary.getHeaders()));
+	}
+
+	public void testIdentityNotAcceptable() {
+		assertTrue(ContentEncodingNegotiator.isIdentityAcceptable());
+		assertTrue(ContentEncodingNegotiator.isIdentityAcceptable(new MimeHeader("Accept-Encoding", "gzip")));
+		assertFalse(ContentEncodingNegotiator.isIdentityAcceptable(new MimeHeader("Accept-Encoding", "gzip, identity;q=0")));
+		assertFalse(ContentEncodingNegotiator.isIdentityAcceptable(new MimeHeader("Accept-Encoding", "gzip, *;q=0")));
+		assertTrue(ContentEncodingNegotiator.isIdentityAcceptable(new MimeHeader("Accept-Encoding", "*;q=0, identity")));
+
+		// the minimum size does not apply if the client requires an encoding
+		PlainMimeEmptyPart small = new PlainMimeEmptyPart(null, new MimeHeader("Content-Type", "text/html"), new MimeHeader("Content-Length", "100"));
+		HTTPUtils.setContentEncoding(small, ContentEncodingNegotiator.DEFAULT_MINIMUM_SIZE, new MimeHeader("Accept-Encoding", "deflate, identity;q=0"));
+		assertEquals("deflate", MimeUtils.getHeader("Content-Encoding", small.getHeaders()).getValue());
+
+		// nothing acceptable
+		PlainMimeEmptyPart other = new PlainMimeEmptyPart(null, new MimeHeader("Content-Type", "text/html"), new MimeHeader("Content-Length", "100"));
+		try {
+			HTTPUtils.setContentEncoding(other, new MimeHeader("Accept-Encoding", "br, *;q=0"));
+			fail("Expected a 406");
+		}
+		catch (HTTPException e) {
+			assertEquals(406, e.getCode());
+		}
+		assertNull(MimeUtils.getHeader("Content-Encoding", other.getHeaders()));
+	}
+
+	public void testPrecompressed() throws IOException {
+		Date now = new Date();
+		MemoryResource script = new MemoryResource("app.js", "application/javascript", new byte[4096], now);
+		MemoryResource compressed = new MemoryResource("app.js.gz", "application/gzip", new byte[100], now);
+		new MemoryResource.Directory(script, compressed);
+		assertSame(compressed, ContentEncodingNegotiator.getPrecompressed(script, new MimeHeader("Accept-Encoding", "gzip, deflate")));
+		assertNull(ContentEncodingNegotiator.getPrecompressed(script, new MimeHeader("Accept-Encoding", "deflate")));
+		assertNull(ContentEncodingNegotiator.getPrecompressed(script));
+		// there is no sibling for the sibling
+		assertNull(ContentEncodingNegotiator.getPrecompressed(compressed, new MimeHeader("Accept-Encoding", "gzip")));
+
+		HTTPResponse response = HTTPUtils.newResponse(newRequest("gzip"), script, new MimeHeader("Vary", "Accept-Encoding, Origin"));
+		Header [] headers = response.getContent().getHeaders();
+		assertTrue(response.getContent() instanceof EncodedContentPart);
+		assertEquals("gzip", MimeUtils.getHeader("Content-Encoding", headers).getValue());
+		assertEquals("100", MimeUtils.getHeader("Content-Length", headers).getValue());
+		assertEquals("application/javascript", MimeUtils.getHeader("Content-Type", headers).getValue());
+		// the caller already varies on the encoding
+		assertEquals(1, MimeUtils.getHeaders("Vary", headers).length);
+		assertEquals("Accept-Encoding, Origin", MimeUtils.getHeader("Vary", headers).getValue());
+
+		// a sibling that is older than the resource is stale
+		script.setContent(new byte[4096], new Date(now.getTime() + 60000));
+		assertNull(ContentEncodingNegotiator.getPrecompressed(script, new MimeHeader("Accept-Encoding", "gzip")));
+		response = HTTPUtils.newResponse(newRequest("gzip"), script);
+		assertFalse(response.getContent() instanceof EncodedContentPart);
+		assertEquals("4096", MimeUtils.getHeader("Content-Length", response.getContent().getHeaders()).getValue());
+	}
+
+	private static HTTPRequest newRequest(String acceptEncoding) {
+		return new DefaultHTTPRequest("GET", "/app.js", new PlainMimeEmptyPart(null, new MimeHeader("Host", "localhost"), new MimeHeader("Accept-Encoding", acceptEncoding)));
+	}
+
+	private static String negotiate(String acceptEncoding) {
+		return ContentEncodingNegotiator.negotiate(new MimeHeader("Accept-Encoding", acceptEncoding));
+	}
+}
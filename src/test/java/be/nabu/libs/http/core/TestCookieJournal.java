@@ -0,0 +1,145 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestCookieJournal extends TestCase {
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("cookie-journal").toFile();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	public void testRoundTrip() throws URISyntaxException, IOException {
+		File file = new File(directory, "cookies.journal");
+		CookieJournal journal = new CookieJournal(file);
+		CustomCookieStore store = new CustomCookieStore(journal, 50, 0);
+		HttpCookie cookie = new HttpCookie("session", "abc");
+		cookie.setDomain("example.com");
+		cookie.setPath("/");
+		cookie.setSecure(true);
+		cookie.setMaxAge(3600);
+		store.add(new URI("https://example.com/"), cookie);
+		HttpCookie other = new HttpCookie("theme", "dark");
+		other.setDomain("example.com");
+		other.setPath("/");
+		store.add(new URI("https://example.com/"), other);
+		journal.close();
+
+		CustomCookieStore restored = new CustomCookieStore(new CookieJournal(file), 50, 0);
+		List<HttpCookie> cookies = restored.get(new URI("https://example.com/"));
+		assertEquals(2, cookies.size());
+		HttpCookie session = find(cookies, "session");
+		assertEquals("abc", session.getValue());
+		assertTrue(session.getSecure());
+		assertTrue(session.getMaxAge() > 3500 && session.getMaxAge() <= 3600);
+	}
+
+	public void testNewVersionReplaces() throws URISyntaxException, IOException {
+		File file = new File(directory, "cookies.journal");
+		CookieJournal journal = new CookieJournal(file);
+		HttpCookie first = new HttpCookie("session", "abc");
+		first.setDomain("example.com");
+		first.setPath("/");
+		journal.add(new URI("https://example.com/a"), first, System.currentTimeMillis());
+		HttpCookie second = new HttpCookie("session", "def");
+		second.setDomain("example.com");
+		second.setPath("/");
+		journal.add(new URI("https://example.com/b"), second, System.currentTimeMillis());
+		journal.close();
+		List<CookieJournal.JournalEntry> entries = new ArrayList<CookieJournal.JournalEntry>(new CookieJournal(file).load());
+		assertEquals(1, entries.size());
+		assertEquals("def", entries.get(0).getCookie().getValue());
+		assertEquals(new URI("https://example.com/b"), entries.get(0).getUri());
+	}
+
+	// the cookie was set from one uri and removed from another, after a restart it must stay removed
+	public void testRemoveFromOtherUri() throws URISyntaxException, IOException {
+		File file = new File(directory, "cookies.journal");
+		CookieJournal journal = new CookieJournal(file);
+		CustomCookieStore store = new CustomCookieStore(journal, 50, 0);
+		HttpCookie cookie = new HttpCookie("session", "abc");
+		cookie.setDomain("example.com");
+		cookie.setPath("/");
+		store.add(new URI("https://example.com/login"), cookie);
+		assertTrue(store.remove(new URI("https://example.com/logout"), cookie));
+		journal.close();
+
+		assertTrue(new CookieJournal(file).load().isEmpty());
+		CustomCookieStore restored = new CustomCookieStore(new CookieJournal(file), 50, 0);
+		assertTrue(restored.get(new URI("https://example.com/")).isEmpty());
+	}
+
+	public void testOwnerOnly() throws URISyntaxException, IOException {
+		File file = new File(directory, "cookies.journal");
+		CookieJournal journal = new CookieJournal(file);
+		journal.add(new URI("https://example.com/"), new HttpCookie("session", "abc"), System.currentTimeMillis());
+		journal.close();
+		if (file.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+		}
+	}
+
+	// loading twice must not count the records twice
+	public void testReloadCount() throws URISyntaxException, IOException {
+		File file = new File(directory, "cookies.journal");
+		CookieJournal journal = new CookieJournal(file);
+		journal.setCompactionThreshold(2);
+		for (int i = 0; i < 3; i++) {
+			journal.add(new URI("https://example.com/"), new HttpCookie("cookie" + i, "value"), System.currentTimeMillis());
+		}
+		journal.close();
+		CookieJournal reloaded = new CookieJournal(file);
+		reloaded.setCompactionThreshold(2);
+		reloaded.load();
+		assertFalse(reloaded.isCompactionNeeded(2));
+		reloaded.load();
+		assertFalse(reloaded.isCompactionNeeded(2));
+	}
+
+	private static HttpCookie find(List<HttpCookie> cookies, String name) {
+		for (HttpCookie cookie : cookies) {
+			if (cookie.getName().equals(name)) {
+				return cookie;
+			}
+		}
+		fail("Cookie " + name + " not found");
+		return null;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class TestCustomCookieStore extends TestCase {
+
+	public void testLocalhost() throws URISyntaxException, IOException {
+		CustomCookieStore store = new CustomCookieStore(50, 0);
+		CookieManager manager = new CookieManager(store, CookiePolicy.ACCEPT_ALL);
+		URI uri = new URI("http://localhost/test");
+		Map<String, List<String>> responseHeaders = new HashMap<String, List<String>>();
+		responseHeaders.put("Set-Cookie", Arrays.asList("session=abc"));
+		manager.put(uri, responseHeaders);
+		assertEquals(1, store.get(uri).size());
+		Map<String, List<String>> requestHeaders = manager.get(new URI("http://localhost/other"), new HashMap<String, List<String>>());
+		assertEquals(Arrays.asList("session=abc"), requestHeaders.get("Cookie"));
+		// a different single label host does not get the cookie
+		assertTrue(store.get(new URI("http://service/test")).isEmpty());
+	}
+
+	public void testDomains() throws URISyntaxException {
+		CustomCookieStore store = new CustomCookieStore(50, 0);
+		HttpCookie cookie = new HttpCookie("a", "1");
+		cookie.setDomain(".example.com");
+		store.add(new URI("https://www.example.com/"), cookie);
+		assertEquals(1, store.get(new URI("https://api.example.com/")).size());
+		assertTrue(store.get(new URI("https://example.org/")).isEmpty());
+		assertEquals(1, store.getDomainCount());
+		// an empty domain is removed from the index
+		assertTrue(store.remove(new URI("https://api.example.com/"), cookie));
+		assertEquals(0, store.getDomainCount());
+		assertTrue(store.getCookies().isEmpty());
+	}
+
+	public void testMaxCookiesPerDomain() throws URISyntaxException {
+		CustomCookieStore store = new CustomCookieStore(2, 0);
+		URI uri = new URI("http://example.com/");
+		for (int i = 0; i < 3; i++) {
+			store.add(uri, new HttpCookie("cookie" + i, "value"));
+		}
+		List<HttpCookie> cookies = store.get(uri);
+		assertEquals(2, cookies.size());
+		// the oldest one is dropped
+		assertEquals("cookie1", cookies.get(0).getName());
+	}
+
+	public void testExpiredCookieRemoves() throws URISyntaxException {
+		CustomCookieStore store = new CustomCookieStore(50, 0);
+		URI uri = new URI("http://example.com/");
+		store.add(uri, new HttpCookie("a", "1"));
+		HttpCookie logout = new HttpCookie("a", "");
+		logout.setMaxAge(0);
+		store.add(uri, logout);
+		assertTrue(store.get(uri).isEmpty());
+		assertEquals(0, store.getDomainCount());
+	}
+}
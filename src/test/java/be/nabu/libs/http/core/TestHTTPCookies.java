@@ -0,0 +1,53 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import junit.framework.TestCase;
+
+public class TestHTTPCookies extends TestCase {
+
+	public void testParse() {
+		HTTPCookies cookies = HTTPCookies.of(new MimeHeader("Host", "localhost"), new MimeHeader("Cookie", "a=1", "b=", "Device-Test=2"), new MimeHeader("Cookie", "a=3"));
+		assertEquals(4, cookies.size());
+		assertEquals("1", cookies.getFirst("a"));
+		// empty values are skipped but the name is known
+		assertNull(cookies.getFirst("b"));
+		assertTrue(cookies.contains("b"));
+		assertEquals("2", cookies.getFirstWithPrefix("device-"));
+		assertEquals(2, cookies.toMap().get("a").size());
+		assertTrue(cookies.toMap().get("b").isEmpty());
+	}
+
+	public void testReuse() {
+		Header [] headers = new Header [] { new MimeHeader("Cookie", "a=1") };
+		HTTPCookies cookies = HTTPCookies.of(headers);
+		// the same header instances reuse the parsed view, even in a different array
+		assertSame(cookies, HTTPCookies.of(headers));
+		assertSame(cookies, HTTPCookies.of(new MimeHeader("Host", "localhost"), headers[0]));
+		// a different cookie header is parsed again
+		headers[0] = new MimeHeader("Cookie", "a=2");
+		HTTPCookies changed = HTTPCookies.of(headers);
+		assertNotSame(cookies, changed);
+		assertEquals("2", changed.getFirst("a"));
+		// the view stays with its headers, other headers in between do not replace it
+		HTTPCookies.of(new MimeHeader("Cookie", "a=3"));
+		assertSame(changed, HTTPCookies.of(headers));
+	}
+}
@@ -0,0 +1,64 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.text.ParseException;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+public class TestHTTPDates extends TestCase {
+
+	// Sun, 06 Nov 1994 08:49:37 GMT
+	private static final long EXAMPLE = 784111777000l;
+
+	public void testFormat() {
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HTTPDates.format(new Date(EXAMPLE)));
+		// same second, cached value
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HTTPDates.format(new Date(EXAMPLE + 500)));
+		assertEquals("Sun, 06 Nov 1994 08:49:38 GMT", HTTPDates.format(new Date(EXAMPLE + 1000)));
+		assertEquals("Sun, 06-Nov-1994 08:49:37 GMT", HTTPDates.formatCookie(new Date(EXAMPLE)));
+	}
+
+	public void testParse() throws ParseException {
+		assertEquals(EXAMPLE, HTTPDates.parse("Sun, 06 Nov 1994 08:49:37 GMT").getTime());
+		assertEquals(EXAMPLE, HTTPDates.parse("Sunday, 06-Nov-94 08:49:37 GMT").getTime());
+		assertEquals(EXAMPLE, HTTPDates.parse("Sun Nov  6 08:49:37 1994").getTime());
+		assertEquals(EXAMPLE, HTTPDates.parse("Sun, 06 Nov 1994 08:49:37 UTC").getTime());
+		assertEquals(EXAMPLE, HTTPDates.parse("Sun, 06 Nov 1994 09:49:37 +0100").getTime());
+		assertEquals(EXAMPLE, HTTPDates.parse("Sun, 06-Nov-1994 08:49:37 GMT").getTime());
+	}
+
+	public void testParseInvalid() {
+		String [] invalid = new String [] { "", "Sun, 06 Nov 1994", "Sun, 32 Nov 1994 08:49:37 GMT", "Sun, 06 Foo 1994 08:49:37 GMT", "Sun, 06 Nov 1994 08:49:37 GMT trailing" };
+		for (String value : invalid) {
+			try {
+				HTTPDates.parse(value);
+				fail("Should not parse: " + value);
+			}
+			catch (ParseException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testRoundTrip() throws ParseException {
+		Date date = new Date((System.currentTimeMillis() / 1000) * 1000);
+		assertEquals(date, HTTPUtils.parseDate(HTTPUtils.formatDate(date)));
+	}
+}
@@ -0,0 +1,411 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.resources.URIUtils;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.WritableContainer;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.ModifiablePart;
+import be.nabu.utils.mime.impl.FormatException;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+import junit.framework.TestCase;
+
+public class TestHTTPFormatter extends TestCase {
+
+	public void testStatusLine() throws IOException, FormatException {
+		HTTPFormatter formatter = new HTTPFormatter();
+		int [] codes = new int [] { 200, 404, 500 };
+		double [] versions = new double [] { 1.0, 1.1 };
+		for (int code : codes) {
+			for (double version : versions) {
+				HTTPResponse response = new DefaultHTTPResponse(code, "Message " + code, null, version);
+				// the cached status line must be the same as the one we used to build every time
+				String expected = response.getProtocol() + "/" + response.getVersion() + " " + response.getCode() + " " + response.getMessage() + "\r\n\r\n";
+				// format twice to hit the cache
+				assertEquals(expected, formatResponse(formatter, response));
+				assertEquals(expected, formatResponse(formatter, response));
+			}
+		}
+		// custom messages replace the cached line of their code, the next standard response is still correct
+		for (int i = 0; i < 300; i++) {
+			assertEquals("HTTP/1.1 200 Custom " + i + "\r\n\r\n", formatResponse(formatter, new DefaultHTTPResponse(200, "Custom " + i, null)));
+		}
+		assertEquals("HTTP/1.1 200 OK\r\n\r\n", formatResponse(formatter, new DefaultHTTPResponse(200, "OK", null)));
+		assertEquals("HTTP/1.0 200 OK\r\n\r\n", formatResponse(formatter, new DefaultHTTPResponse(200, "OK", null, 1.0)));
+		assertEquals("HTTP/1.1 799 Odd\r\n\r\n", formatResponse(formatter, new DefaultHTTPResponse(799, "Odd", null)));
+	}
+
+	public void testRequestTarget() throws IOException, FormatException, URISyntaxException {
+		assertTrue(HTTPFormatter.isEncoded("/path/to/file.txt?query=a%20b&c=d"));
+		assertFalse(HTTPFormatter.isEncoded("/path with spaces"));
+		assertFalse(HTTPFormatter.isEncoded("/percent%2"));
+		assertFalse(HTTPFormatter.isEncoded("/percent%zz"));
+		assertFalse(HTTPFormatter.isEncoded("/caf\u00e9"));
+		assertFalse(HTTPFormatter.isEncoded("/fragment#top"));
+		HTTPFormatter formatter = new HTTPFormatter();
+		HTTPFormatter caching = new HTTPFormatter();
+		caching.setCacheEncodedTargets(true);
+		String [] targets = new String [] { "/path/to/file.txt?query=a%20b&c=d", "/path with spaces", "/caf\u00e9" };
+		for (String target : targets) {
+			// the fast path must produce the same request line as the full uri encoding
+			String expected = "GET " + new URI(URIUtils.encodeURI(target, false)).toASCIIString() + " HTTP/1.1\r\n\r\n";
+			HTTPRequest request = new DefaultHTTPRequest("GET", target, null);
+			assertEquals(expected, formatRequest(formatter, request));
+			assertEquals(expected, formatRequest(caching, request));
+			assertEquals(expected, formatRequest(caching, request));
+		}
+	}
+
+	public void testConfiguredFormatterIsLocked() {
+		HTTPFormatter formatter = HTTPFormatterConfiguration.DEFAULT.getFormatter();
+		assertTrue(formatter.isLocked());
+		assertSame(formatter, HTTPFormatterConfiguration.DEFAULT.getFormatter());
+		try {
+			formatter.setGatheringWrites(true);
+			fail("A shared formatter should not be modifiable");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			formatter.getFormatter();
+			fail("The mime formatter of a shared formatter should not be exposed");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		assertFalse(formatter.isGatheringWrites());
+		// a new formatter can be modified
+		HTTPFormatter modifiable = HTTPFormatterConfiguration.DEFAULT.newFormatter();
+		modifiable.setGatheringWrites(true);
+		assertTrue(modifiable.isGatheringWrites());
+	}
+
+	public void testGatheringWrites() throws IOException, FormatException {
+		HTTPFormatter formatter = new HTTPFormatter();
+		HTTPFormatter gathering = new HTTPFormatter();
+		gathering.setGatheringWrites(true);
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			large.append("large");
+		}
+		String [] contents = new String [] { null, "", "small content", large.toString() };
+		for (String content : contents) {
+			// the gathered output must be identical to the output written piece by piece
+			assertEquals(formatResponse(formatter, newResponse(content, true)), formatResponse(gathering, newResponse(content, true)));
+			assertEquals(formatResponse(formatter, newResponse(content, false)), formatResponse(gathering, newResponse(content, false)));
+		}
+	}
+
+	public void testInternalHeaders() throws IOException, FormatException {
+		HTTPResponse response = new DefaultHTTPResponse(200, "OK", new PlainMimeEmptyPart(null,
+			new MimeHeader("Content-Length", "0"),
+			new MimeHeader("X-Remote-User", "alice"),
+			new MimeHeader("x-correlation-id", "123")));
+		HTTPFormatter formatter = new HTTPFormatter();
+		formatter.setGatheringWrites(true);
+		assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n", formatResponse(formatter, response));
+		assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n", formatResponse(new HTTPFormatter(), response));
+		// formatting does not change the message itself
+		assertEquals(3, response.getContent().getHeaders().length);
+		assertEquals("alice", MimeUtils.getHeader("X-Remote-User", response.getContent().getHeaders()).getValue());
+		assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nX-Remote-User: alice\r\nx-correlation-id: 123\r\n\r\n", formatResponse(new HTTPFormatter(false), response));
+
+		HTTPRequest request = new DefaultHTTPRequest("GET", "/test", new PlainMimeEmptyPart(null, new MimeHeader("Host", "localhost"), new MimeHeader("X-Remote-Address", "127.0.0.1")));
+		assertEquals("GET /test HTTP/1.1\r\nHost: localhost\r\n\r\n", formatRequest(new HTTPFormatter(), request));
+		ByteBuffer output = IOUtils.newByteBuffer();
+		new HTTPFormatter().formatRequestHeaders(request, output);
+		assertEquals("GET /test HTTP/1.1\r\nHost: localhost\r\n\r\n", new String(IOUtils.toBytes(output), "ASCII"));
+		assertNotNull(MimeUtils.getHeader("X-Remote-Address", request.getContent().getHeaders()));
+
+		// nor the order of its headers
+		response = new DefaultHTTPResponse(200, "OK", new PlainMimeEmptyPart(null, new MimeHeader("X-Remote-User", "alice"), new MimeHeader("Content-Length", "0")));
+		Header [] before = response.getContent().getHeaders();
+		assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n", formatResponse(new HTTPFormatter(), response));
+		assertTrue(Arrays.equals(before, response.getContent().getHeaders()));
+	}
+
+	// describing a message must not change it
+	public void testToString() throws IOException, FormatException {
+		PlainMimeContentPart content = new PlainMimeContentPart(null, IOUtils.wrap("body".getBytes("ASCII"), true),
+			new MimeHeader("Content-Length", "4"),
+			new MimeHeader("X-Remote-User", "alice"));
+		HTTPResponse response = new DefaultHTTPResponse(200, "OK", content);
+		Header [] before = content.getHeaders();
+		HeaderIndex index = HeaderIndex.index(content);
+		assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\n", response.toString());
+		assertTrue(Arrays.equals(before, content.getHeaders()));
+		assertSame(index, HeaderIndex.get(content.getHeaders()));
+		// the content can not be read again so it was left alone
+		assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nbody", formatResponse(new HTTPFormatter(), response));
+
+		content = new PlainMimeContentPart(null, IOUtils.wrap("body".getBytes("ASCII"), true), new MimeHeader("Content-Length", "4"));
+		HTTPRequest request = new DefaultHTTPRequest("POST", "/test", content);
+		assertEquals("POST /test HTTP/1.1\r\nContent-Length: 4\r\n\r\n", request.toString());
+		assertEquals("POST /test HTTP/1.1\r\nContent-Length: 4\r\n\r\nbody", formatRequest(new HTTPFormatter(), request));
+	}
+
+	public void testPooledCompression() throws IOException, FormatException {
+		HTTPFormatter formatter = new HTTPFormatter();
+		formatter.setPooledCompression(true);
+		byte [] content = TestCompressionPool.newContent(40000);
+		for (String encoding : new String [] { "gzip", "deflate" }) {
+			for (boolean chunked : new boolean [] { true, false }) {
+				HTTPResponse response = new DefaultHTTPResponse(200, "OK", new PlainMimeContentPart(null, IOUtils.wrap(content, true),
+					new MimeHeader("Content-Type", "text/plain"),
+					new MimeHeader("Content-Encoding", encoding),
+					chunked ? new MimeHeader("Transfer-Encoding", "chunked") : new MimeHeader("Connection", "close")));
+				ByteBuffer output = IOUtils.newByteBuffer();
+				formatter.formatResponse(response, output);
+				byte [] bytes = IOUtils.toBytes(output);
+				String head = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Encoding: " + encoding + "\r\n"
+					+ (chunked ? "Transfer-Encoding: chunked" : "Connection: close") + "\r\n\r\n";
+				assertEquals(head, new String(bytes, 0, head.length(), "ASCII"));
+				byte [] body = Arrays.copyOfRange(bytes, head.length(), bytes.length);
+				if (chunked) {
+					body = dechunk(body);
+				}
+				InputStream input = CompressionPool.getInstance().decode(new ByteArrayInputStream(body), encoding);
+				try {
+					assertTrue(Arrays.equals(content, IOUtils.toBytes(IOUtils.wrap(input))));
+				}
+				finally {
+					input.close();
+				}
+			}
+		}
+		// content with a known length is left to the mime formatter
+		assertEquals(formatResponse(new HTTPFormatter(), newEncodedResponse()), formatResponse(formatter, newEncodedResponse()));
+		assertFalse(HTTPFormatterConfiguration.builder().pooledCompression(true).disableContentEncoding(true).build().newFormatter().isPooledCompression());
+	}
+
+	public void testDirectFileTransfer() throws IOException, FormatException {
+		FileResource resource = new FileResource("application/octet-stream", TestCompressionPool.newContent(200000));
+		HTTPFormatter direct = new HTTPFormatter();
+		direct.setDirectFileTransfer(true);
+		byte [] expected = format(new HTTPFormatter(), HTTPUtils.newResponse(null, resource), IOUtils.newByteBuffer());
+		assertTrue(HTTPUtils.newResponse(null, resource).getContent() instanceof FileContentPart);
+		// copied through a buffer
+		assertTrue(Arrays.equals(expected, format(direct, HTTPUtils.newResponse(null, resource), IOUtils.newByteBuffer())));
+		// transferred to the channel
+		assertTrue(Arrays.equals(expected, format(direct, HTTPUtils.newResponse(null, resource), new ChannelOutput(true))));
+		// a channel that does not take anything can not be used, a partial transfer can not be resumed
+		try {
+			format(direct, HTTPUtils.newResponse(null, resource), new ChannelOutput(false));
+			fail("Expected the transfer to fail");
+		}
+		catch (IOException e) {
+			// expected
+		}
+		// a region of the file
+		for (WritableContainer<ByteBuffer> output : Arrays.<WritableContainer<ByteBuffer>>asList(IOUtils.newByteBuffer(), new ChannelOutput(true))) {
+			assertTrue(Arrays.equals(format(new HTTPFormatter(), newRegion(resource), IOUtils.newByteBuffer()), format(direct, newRegion(resource), output)));
+		}
+	}
+
+	private static HTTPResponse newRegion(FileResource resource) throws IOException {
+		return new DefaultHTTPResponse(206, "Partial Content", new FileContentPart(null, HTTPRanges.open(resource, resource.getFile(), 1000, 50000), resource.getFile(), 1000, 50000,
+			new MimeHeader("Content-Length", "50000")));
+	}
+
+	private static byte [] format(HTTPFormatter formatter, HTTPResponse response, WritableContainer<ByteBuffer> output) throws IOException, FormatException {
+		formatter.formatResponse(response, output);
+		return output instanceof ChannelOutput ? ((ChannelOutput) output).toByteArray() : IOUtils.toBytes((ByteBuffer) output);
+	}
+
+	public void testNonBlockingChannel() throws IOException {
+		FileResource resource = new FileResource("application/octet-stream", TestCompressionPool.newContent(1000));
+		HTTPFormatter direct = new HTTPFormatter();
+		direct.setDirectFileTransfer(true);
+		Pipe pipe = Pipe.open();
+		try {
+			pipe.sink().configureBlocking(false);
+			direct.formatResponse(HTTPUtils.newResponse(null, resource), new NonBlockingOutput(new ChannelOutput(true), pipe.sink()));
+			fail("A non blocking channel must be refused");
+		}
+		catch (IOException e) {
+			// expected
+		}
+		catch (FormatException e) {
+			fail(e.getMessage());
+		}
+		finally {
+			pipe.sink().close();
+			pipe.source().close();
+		}
+	}
+
+	// writes to the wrapped output but exposes another channel
+	private static class NonBlockingOutput implements WritableContainer<ByteBuffer>, WritableChannelProvider {
+		private WritableContainer<ByteBuffer> output;
+		private WritableByteChannel channel;
+
+		public NonBlockingOutput(WritableContainer<ByteBuffer> output, WritableByteChannel channel) {
+			this.output = output;
+			this.channel = channel;
+		}
+
+		@Override
+		public long write(ByteBuffer source) throws IOException {
+			return output.write(source);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			output.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			output.close();
+		}
+
+		@Override
+		public WritableByteChannel getWritableChannel() {
+			return channel;
+		}
+	}
+
+	// an output that exposes its channel, optionally one that never accepts any data
+	private static class ChannelOutput implements WritableContainer<ByteBuffer>, WritableChannelProvider {
+		private ByteArrayOutputStream output = new ByteArrayOutputStream();
+		private boolean accepting;
+
+		public ChannelOutput(boolean accepting) {
+			this.accepting = accepting;
+		}
+
+		@Override
+		public long write(ByteBuffer source) throws IOException {
+			byte [] bytes = IOUtils.toBytes(source);
+			output.write(bytes);
+			return bytes.length;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// nothing is buffered
+		}
+
+		@Override
+		public void close() throws IOException {
+			// nothing to close
+		}
+
+		@Override
+		public WritableByteChannel getWritableChannel() {
+			if (accepting) {
+				return Channels.newChannel(output);
+			}
+			return new WritableByteChannel() {
+				@Override
+				public boolean isOpen() {
+					return true;
+				}
+				@Override
+				public void close() throws IOException {
+					// nothing to close
+				}
+				@Override
+				public int write(java.nio.ByteBuffer source) throws IOException {
+					return 0;
+				}
+			};
+		}
+
+		public byte [] toByteArray() {
+			return output.toByteArray();
+		}
+	}
+
+	private static HTTPResponse newEncodedResponse() throws IOException {
+		return new DefaultHTTPResponse(200, "OK", new PlainMimeContentPart(null, IOUtils.wrap("plain".getBytes("ASCII"), true),
+			new MimeHeader("Content-Encoding", "gzip"),
+			new MimeHeader("Content-Length", "5")));
+	}
+
+	// the chunks must be well formed and end with an empty chunk
+	private static byte [] dechunk(byte [] bytes) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		int position = 0;
+		while (true) {
+			int end = position;
+			while (bytes[end] != '\r') {
+				end++;
+			}
+			assertEquals('\n', bytes[end + 1]);
+			int size = Integer.parseInt(new String(bytes, position, end - position, "ASCII"), 16);
+			position = end + 2;
+			if (size == 0) {
+				assertEquals(bytes.length, position + 2);
+				assertEquals('\r', bytes[position]);
+				assertEquals('\n', bytes[position + 1]);
+				return output.toByteArray();
+			}
+			output.write(bytes, position, size);
+			position += size;
+			assertEquals('\r', bytes[position]);
+			assertEquals('\n', bytes[position + 1]);
+			position += 2;
+		}
+	}
+
+	private static HTTPResponse newResponse(String content, boolean knownLength) throws IOException {
+		ModifiablePart part;
+		if (content == null) {
+			part = new PlainMimeEmptyPart(null, new MimeHeader("Content-Length", "0"));
+		}
+		else {
+			byte [] bytes = content.getBytes("ASCII");
+			part = new PlainMimeContentPart(null, IOUtils.wrap(bytes, true),
+				new MimeHeader("Content-Type", "text/plain"),
+				knownLength ? new MimeHeader("Content-Length", Integer.toString(bytes.length)) : new MimeHeader("Transfer-Encoding", "chunked"));
+		}
+		return new DefaultHTTPResponse(200, "OK", part);
+	}
+
+	private static String formatRequest(HTTPFormatter formatter, HTTPRequest request) throws IOException, FormatException {
+		ByteBuffer output = IOUtils.newByteBuffer();
+		formatter.formatRequest(request, output);
+		return new String(IOUtils.toBytes(output), "ASCII");
+	}
+
+	private static String formatResponse(HTTPFormatter formatter, HTTPResponse response) throws IOException, FormatException {
+		ByteBuffer output = IOUtils.newByteBuffer();
+		formatter.formatResponse(response, output);
+		return new String(IOUtils.toBytes(output), "ASCII");
+	}
+}
@@ -0,0 +1,82 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import junit.framework.TestCase;
+
+public class TestHTTPForwarded extends TestCase {
+
+	@Override
+	protected void tearDown() {
+		HTTPForwarded.setTrustedProxies();
+	}
+
+	public void testForwarded() {
+		HTTPForwarded forwarded = HTTPForwarded.of(new MimeHeader("Forwarded", "for=192.0.2.60;proto=http;by=203.0.113.43, for=\"[2001:db8:cafe::17]:4711\""));
+		assertEquals(2, forwarded.getHops().size());
+		assertEquals("192.0.2.60", forwarded.getClientAddress());
+		assertEquals("http", forwarded.getHops().get(0).getProto());
+		assertEquals("2001:db8:cafe::17", forwarded.getHops().get(1).getAddress());
+		assertEquals(Integer.valueOf(4711), forwarded.getHops().get(1).getPort());
+	}
+
+	public void testForwardedFor() {
+		HTTPForwarded forwarded = HTTPForwarded.of(new MimeHeader("X-Forwarded-For", "1.2.3.4:8080, 2001:db8::1, unknown"));
+		assertEquals(3, forwarded.getHops().size());
+		assertEquals("1.2.3.4", forwarded.getClientAddress());
+		assertEquals(Integer.valueOf(8080), forwarded.getClientPort());
+		assertEquals("2001:db8::1", forwarded.getHops().get(1).getAddress());
+		assertNull(forwarded.getHops().get(2).getAddress());
+	}
+
+	public void testTrustedProxies() {
+		HTTPForwarded.setTrustedProxies("10.0.0.0/8", "2001:db8::/32", "192.0.2.1");
+		assertEquals(Arrays.asList("10.0.0.0/8", "2001:db8::/32", "192.0.2.1"), HTTPForwarded.getTrustedProxies());
+		assertEquals("1.2.3.4", HTTPForwarded.of(new MimeHeader("X-Forwarded-For", "6.6.6.6, 1.2.3.4, 10.1.2.3, 2001:db8::5, 192.0.2.1")).getClientAddress());
+		// an ipv4 mapped address is matched against the ipv4 ranges
+		assertEquals("1.2.3.4", HTTPForwarded.of(new MimeHeader("X-Forwarded-For", "1.2.3.4, ::ffff:10.0.0.1")).getClientAddress());
+		// a name is never trusted through a range
+		assertEquals("proxy.internal", HTTPForwarded.of(new MimeHeader("X-Forwarded-For", "1.2.3.4, proxy.internal")).getClientAddress());
+	}
+
+	public void testLiteralAddresses() throws UnknownHostException {
+		for (String address : new String [] { "0.0.0.0", "192.168.1.255", "::", "::1", "1::", "2001:db8:cafe::17", "1:2:3:4:5:6:7:8", "fe80::1:2", "::ffff:10.0.0.1", "64:ff9b::192.0.2.33", "1:2:3:4:5:6:1.2.3.4", "ABCD:ef01::" }) {
+			assertTrue(address, Arrays.equals(InetAddress.getByName(address).getAddress(), HTTPForwarded.toBytes(address)));
+		}
+		// none of these are literals, they must be rejected without trying to resolve them
+		for (String address : new String [] { "", "example.com", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1.2.3.-4", "1:2:3:4:5:6:7:8:9", "1::2::3", ":1", "1:", "12345::1",
+				"g::1", "fe80::1%eth0", "example.com:80:1", "::1.2.3", "1.2.3.4::", "\u0661.2.3.4", "\uff11::1" }) {
+			assertNull(address, HTTPForwarded.toBytes(address));
+		}
+	}
+
+	public void testReuse() {
+		Header [] headers = new Header [] { new MimeHeader("Host", "example.com"), new MimeHeader("X-Forwarded-For", "1.2.3.4") };
+		HTTPForwarded forwarded = HTTPForwarded.of(headers);
+		assertSame(forwarded, HTTPForwarded.of(headers));
+		assertNotSame(forwarded, HTTPForwarded.of(new MimeHeader("X-Forwarded-For", "1.2.3.4")));
+		// other headers in between do not replace the view
+		assertSame(forwarded, HTTPForwarded.of(headers));
+	}
+}
@@ -22,17 +22,23 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
 
+import be.nabu.libs.http.HTTPException;
 import be.nabu.libs.http.api.HTTPResponse;
 import be.nabu.libs.resources.ResourceFactory;
 import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.Header;
 import be.nabu.utils.mime.api.MultiPart;
 import be.nabu.utils.mime.api.Part;
 import be.nabu.utils.mime.impl.FormatException;
 import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
 import be.nabu.utils.mime.impl.PlainMimeContentPart;
 import be.nabu.utils.mime.impl.PlainMimeMultiPart;
 import be.nabu.libs.http.api.HTTPRequest;
@@ -78,4 +84,261 @@ public class TestHTTPParser extends TestCase {
 		String formatted = new String(IOUtils.toBytes(output), "UTF-8");
 		System.out.println(formatted);
 	}
+	
+	public void testParseRequestLine() throws ParseException {
+		byte[] bytes = "GET //test//this HTTP/1.1\r".getBytes();
+		HTTPRequestLine line = HTTPRequestLine.parse(bytes, 0, bytes.length, "HTTP");
+		assertSame("GET", line.getMethod());
+		assertEquals("/test//this", line.getTarget());
+		assertEquals(1.1, line.getVersion(), 0);
+		
+		bytes = "  PROPFIND /dav HTTP/1.0 ".getBytes();
+		line = HTTPRequestLine.parse(bytes, 0, bytes.length, "HTTP");
+		assertEquals("PROPFIND", line.getMethod());
+		assertEquals("/dav", line.getTarget());
+		assertEquals(1.0, line.getVersion(), 0);
+		
+		bytes = "\r".getBytes();
+		assertNull(HTTPRequestLine.parse(bytes, 0, bytes.length, "HTTP"));
+	}
+	
+	public void testParseByteLevelRequestLine() throws ParseException, IOException {
+		HTTPParser parser = new HTTPParser(new DefaultDynamicResourceProvider(), true);
+		parser.setByteLevelRequestLine(true);
+		// the headers that follow the request line are left for the mime parser
+		byte[] bytes = "\r\nGET /test HTTP/1.1\r\nHost: localhost\r\nContent-Length: 0\r\n\r\n".getBytes("ASCII");
+		HTTPRequest request = parser.parseRequest(IOUtils.wrap(bytes, true), null);
+		assertEquals("GET", request.getMethod());
+		assertEquals("/test", request.getTarget());
+		assertEquals("localhost", MimeUtils.getHeader("Host", request.getContent().getHeaders()).getValue());
+	}
+	
+	public void testKeepAliveRequestLine() throws ParseException, IOException {
+		HTTPParser parser = new HTTPParser(new DefaultDynamicResourceProvider(), true);
+		parser.setByteLevelRequestLine(true);
+		// nothing of the next request may be read along with the current one
+		ReadableContainer<ByteBuffer> container = IOUtils.wrap("GET /first HTTP/1.1\r\nHost: first\r\n\r\nGET /second HTTP/1.1\r\nHost: second\r\n\r\n".getBytes("ASCII"), true);
+		HTTPRequest request = parser.parseRequest(container, null);
+		assertEquals("/first", request.getTarget());
+		assertEquals("first", MimeUtils.getHeader("Host", request.getContent().getHeaders()).getValue());
+		request = parser.parseRequest(container, null);
+		assertEquals("/second", request.getTarget());
+		assertEquals("second", MimeUtils.getHeader("Host", request.getContent().getHeaders()).getValue());
+	}
+	
+	public void testPartialRequestLine() throws ParseException, IOException {
+		HTTPParser parser = new HTTPParser(new DefaultDynamicResourceProvider(), false);
+		parser.setByteLevelRequestLine(true);
+		final byte [][] reads = new byte [][] { "GET /te".getBytes("ASCII"), new byte[0], "st HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ASCII") };
+		// a non blocking source that has no data for a while
+		ReadableContainer<ByteBuffer> container = new ReadableContainer<ByteBuffer>() {
+			private int index;
+			private ByteBuffer current = IOUtils.wrap(reads[0], true);
+			@Override
+			public long read(ByteBuffer target) throws IOException {
+				if (current.remainingData() == 0) {
+					if (++index >= reads.length) {
+						return -1;
+					}
+					current = IOUtils.wrap(reads[index], true);
+					return 0;
+				}
+				return current.read(target);
+			}
+			@Override
+			public void close() throws IOException {
+				// nothing to close
+			}
+		};
+		assertNull(parser.parseRequest(container, null));
+		assertNull(parser.parseRequest(container, null));
+		HTTPRequest request = parser.parseRequest(container, null);
+		assertEquals("/test", request.getTarget());
+		assertEquals("localhost", MimeUtils.getHeader("Host", request.getContent().getHeaders()).getValue());
+	}
+	
+	public void testStripInternalHeaders() throws ParseException, IOException {
+		byte[] bytes = ("GET /test HTTP/1.1\r\nHost: localhost\r\nX-Remote-User: admin\r\nx-request-received: 2015-01-01\r\n"
+			+ "X-Resource-URI: file:/etc/passwd\r\nX-Conversation-Id: abc\r\nContent-Length: 0\r\n\r\n").getBytes("ASCII");
+		HTTPParser parser = new HTTPParser(new DefaultDynamicResourceProvider(), true);
+		parser.setByteLevelRequestLine(true);
+		parser.setStripInternalHeaders(true);
+		Header [] headers = parser.parseRequest(IOUtils.wrap(bytes, true), null).getContent().getHeaders();
+		assertNull(MimeUtils.getHeader("X-Remote-User", headers));
+		assertNull(MimeUtils.getHeader("X-Request-Received", headers));
+		assertNull(MimeUtils.getHeader("X-Resource-URI", headers));
+		// the conversation can be continued from the outside
+		assertEquals("abc", MimeUtils.getHeader("X-Conversation-Id", headers).getValue());
+		assertEquals("localhost", MimeUtils.getHeader("Host", headers).getValue());
+
+		parser.setStripInternalHeaders(false);
+		headers = parser.parseRequest(IOUtils.wrap(bytes, true), null).getContent().getHeaders();
+		assertEquals("admin", MimeUtils.getHeader("X-Remote-User", headers).getValue());
+	}
+	
+	public void testRequestLineTooLong() throws ParseException, IOException {
+		HTTPParser parser = new HTTPParser(new DefaultDynamicResourceProvider(), true);
+		parser.setByteLevelRequestLine(true);
+		parser.setMaxRequestLineLength(64);
+		StringBuilder target = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			target.append("a");
+		}
+		byte[] bytes = ("GET /" + target + " HTTP/1.1\r\n\r\n").getBytes("ASCII");
+		try {
+			parser.parseRequest(IOUtils.wrap(bytes, true), null);
+			fail("The request line should be rejected");
+		}
+		catch (HTTPException e) {
+			assertEquals(414, e.getCode());
+		}
+	}
+	
+	public void testIncrementalParse() throws ParseException, IOException {
+		IncrementalHTTPParser parser = new IncrementalHTTPParser(new HTTPParser(new DefaultDynamicResourceProvider(), false));
+		byte[] bytes = "POST /test HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n4\r\ntest\r\n0\r\n\r\n".getBytes("ASCII");
+		// feed it one byte at a time
+		for (int i = 0; i < bytes.length - 1; i++) {
+			parser.push(bytes, i, 1);
+			assertNull(parser.next());
+		}
+		assertEquals(IncrementalHTTPParser.State.CHUNK_TRAILER, parser.getState());
+		parser.push(bytes, bytes.length - 1, 1);
+		HTTPRequest request = parser.next();
+		assertNotNull(request);
+		assertEquals("POST", request.getMethod());
+		assertEquals("/test", request.getTarget());
+		assertEquals(IncrementalHTTPParser.State.REQUEST_LINE, parser.getState());
+		assertEquals(0, parser.getBuffered());
+	}
+	
+	public void testPipelinedParse() throws ParseException, IOException {
+		IncrementalHTTPParser parser = new IncrementalHTTPParser(new HTTPParser(new DefaultDynamicResourceProvider(), false));
+		byte[] bytes = "GET /a HTTP/1.1\r\nHost: localhost\r\n\r\nPOST /b HTTP/1.1\r\nContent-Length: 3\r\n\r\nabcGET /c HTTP/1.1\r\n".getBytes("ASCII");
+		List<HTTPRequest> requests = parser.parseAll(bytes, 0, bytes.length);
+		assertEquals(2, requests.size());
+		assertEquals("/a", requests.get(0).getTarget());
+		assertEquals("/b", requests.get(1).getTarget());
+		// the requests share one copy of the buffer, each only sees its own content
+		assertEquals("abc", new String(IOUtils.toBytes(((ContentPart) requests.get(1).getContent()).getReadable()), "ASCII"));
+		assertEquals("localhost", MimeUtils.getHeader("Host", requests.get(0).getContent().getHeaders()).getValue());
+		assertEquals(0, IOUtils.toBytes(((ContentPart) requests.get(0).getContent()).getReadable()).length);
+		// the partial third request is retained
+		assertEquals(IncrementalHTTPParser.State.HEADERS, parser.getState());
+		bytes = "\r\n".getBytes("ASCII");
+		requests = parser.parseAll(bytes, 0, bytes.length);
+		assertEquals(1, requests.size());
+		assertEquals("/c", requests.get(0).getTarget());
+	}
+	
+	public void testInvalidChunkSize() throws IOException {
+		String [] invalid = new String [] { "8000000000000000", "fffffffffffffffff", "-1", "xyz", "" };
+		for (String size : invalid) {
+			IncrementalHTTPParser parser = new IncrementalHTTPParser(new HTTPParser(new DefaultDynamicResourceProvider(), false));
+			byte[] bytes = ("POST /test HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" + size + "\r\ntest\r\n0\r\n\r\n").getBytes("ASCII");
+			try {
+				parser.parseAll(bytes, 0, bytes.length);
+				fail("Chunk size should be rejected: " + size);
+			}
+			catch (ParseException e) {
+				// expected
+			}
+		}
+	}
+	
+	public void testInvalidChunkEnd() throws IOException, ParseException {
+		String [] invalid = new String [] { "4\r\ntestXX0\r\n\r\n", "4\r\ntest\rX0\r\n\r\n", "4\r\ntestGET /smuggled HTTP/1.1\r\n\r\n" };
+		for (String body : invalid) {
+			IncrementalHTTPParser parser = new IncrementalHTTPParser(new HTTPParser(new DefaultDynamicResourceProvider(), false));
+			byte[] bytes = ("POST /test HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" + body).getBytes("ASCII");
+			try {
+				parser.parseAll(bytes, 0, bytes.length);
+				fail("Chunk end should be rejected: " + body);
+			}
+			catch (ParseException e) {
+				// expected
+			}
+		}
+		// a bare line feed is accepted, like for the other lines
+		IncrementalHTTPParser parser = new IncrementalHTTPParser(new HTTPParser(new DefaultDynamicResourceProvider(), false));
+		byte[] bytes = "POST /test HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n4\r\ntest\n0\r\n\r\n".getBytes("ASCII");
+		assertEquals(1, parser.parseAll(bytes, 0, bytes.length).size());
+	}
+	
+	public void testChunkLineSize() throws IOException, ParseException {
+		byte [] filler = new byte[1000];
+		Arrays.fill(filler, (byte) 'a');
+		String [] prefixes = new String [] { "4;", "4\r\ntest\r\n0\r\nX-Trailer: " };
+		for (String prefix : prefixes) {
+			IncrementalHTTPParser parser = new IncrementalHTTPParser(new HTTPParser(new DefaultDynamicResourceProvider(), false));
+			parser.setMaxHeaderSize(4096);
+			byte[] bytes = ("POST /test HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" + prefix).getBytes("ASCII");
+			assertTrue(parser.parseAll(bytes, 0, bytes.length).isEmpty());
+			try {
+				// a line without an end can not grow the buffer forever
+				for (int i = 0; i < 10; i++) {
+					parser.parseAll(filler, 0, filler.length);
+				}
+				fail("The line should exceed the maximum size: " + prefix);
+			}
+			catch (ParseException e) {
+				// expected
+			}
+		}
+		// neither can an endless amount of trailer lines
+		IncrementalHTTPParser parser = new IncrementalHTTPParser(new HTTPParser(new DefaultDynamicResourceProvider(), false));
+		parser.setMaxHeaderSize(4096);
+		byte[] bytes = "POST /test HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n".getBytes("ASCII");
+		parser.parseAll(bytes, 0, bytes.length);
+		try {
+			bytes = "X-Trailer: value\r\n".getBytes("ASCII");
+			for (int i = 0; i < 1000; i++) {
+				parser.parseAll(bytes, 0, bytes.length);
+			}
+			fail("The trailer should exceed the maximum size");
+		}
+		catch (ParseException e) {
+			// expected
+		}
+	}
+	
+	public void testInvalidContentLength() throws IOException {
+		String [] invalid = new String [] { "Content-Length: 99999999999999999999", "Content-Length: -5", "Content-Length: 3\r\nContent-Length: 4", "Content-Length: " };
+		for (String header : invalid) {
+			IncrementalHTTPParser parser = new IncrementalHTTPParser(new HTTPParser(new DefaultDynamicResourceProvider(), false));
+			byte[] bytes = ("POST /test HTTP/1.1\r\n" + header + "\r\n\r\nabcGET /smuggled HTTP/1.1\r\n\r\n").getBytes("ASCII");
+			try {
+				parser.parseAll(bytes, 0, bytes.length);
+				fail("Content length should be rejected: " + header);
+			}
+			catch (ParseException e) {
+				// expected
+			}
+		}
+	}
+	
+	public void testMaxBodySize() throws IOException, ParseException {
+		IncrementalHTTPParser parser = new IncrementalHTTPParser(new HTTPParser(new DefaultDynamicResourceProvider(), false));
+		parser.setMaxBodySize(6);
+		byte[] bytes = "POST /test HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n4\r\ntest\r\n".getBytes("ASCII");
+		assertTrue(parser.parseAll(bytes, 0, bytes.length).isEmpty());
+		try {
+			bytes = "4\r\ntest\r\n0\r\n\r\n".getBytes("ASCII");
+			parser.parseAll(bytes, 0, bytes.length);
+			fail("The body should exceed the maximum size");
+		}
+		catch (ParseException e) {
+			// expected
+		}
+		parser = new IncrementalHTTPParser(new HTTPParser(new DefaultDynamicResourceProvider(), false));
+		parser.setMaxBodySize(6);
+		bytes = "POST /test HTTP/1.1\r\nContent-Length: 7\r\n\r\n".getBytes("ASCII");
+		try {
+			parser.parseAll(bytes, 0, bytes.length);
+			fail("The body should exceed the maximum size");
+		}
+		catch (ParseException e) {
+			// expected
+		}
+	}
 }
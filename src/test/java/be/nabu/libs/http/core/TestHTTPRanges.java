@@ -0,0 +1,171 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+import junit.framework.TestCase;
+
+public class TestHTTPRanges extends TestCase {
+
+	public void testSingle() {
+		assertRanges("bytes=0-499", 1000, 0, 499);
+		assertRanges("bytes=500-", 1000, 500, 999);
+		assertRanges("bytes=-200", 1000, 800, 999);
+		// the end is clamped to the size
+		assertRanges("bytes=900-2000", 1000, 900, 999);
+		assertRanges("bytes=-2000", 1000, 0, 999);
+	}
+
+	public void testMultiple() {
+		assertRanges("bytes=0-9, 20-29,-5", 100, 0, 9, 20, 29, 95, 99);
+		// unsatisfiable ranges are dropped as long as one remains
+		assertRanges("bytes=0-9,200-300", 100, 0, 9);
+	}
+
+	public void testMerged() {
+		assertRanges("bytes=0-,0-,0-", 100, 0, 99);
+		assertRanges("bytes=0-9,10-19", 100, 0, 19);
+		assertRanges("bytes=50-59,0-9,5-55", 100, 0, 59);
+		// the order of the request is kept for the ranges that are not merged
+		assertRanges("bytes=20-29,0-9", 100, 20, 29, 0, 9);
+		assertRanges("bytes=20-29,0-9,40-49,8-21", 100, 0, 29, 40, 49);
+	}
+
+	public void testUnsatisfiable() {
+		assertTrue(HTTPRanges.parse("bytes=1000-", 1000).isEmpty());
+		assertTrue(HTTPRanges.parse("bytes=-0", 1000).isEmpty());
+		assertTrue(HTTPRanges.parse("bytes=0-", 0).isEmpty());
+	}
+
+	public void testIgnored() {
+		String [] ignored = new String [] { "items=0-5", "bytes=", "bytes=5-2", "bytes=a-b", "bytes=5", "bytes=0-1,2-3,4-5,6-7,8-9,10-11,12-13,14-15,16-17,18-19,20-21,22-23,24-25,26-27,28-29,30-31,32-33" };
+		for (String value : ignored) {
+			assertNull(value, HTTPRanges.parse(value, 1000));
+		}
+	}
+
+	public void testPartialResponse() throws IOException {
+		byte [] content = TestCompressionPool.newContent(1000);
+		MemoryResource memory = new MemoryResource("test.bin", "application/octet-stream", content, new Date());
+		// nothing is opened until the content is read
+		HTTPUtils.newResponse(newRequest(new MimeHeader("Range", "bytes=10-19")), memory);
+		assertEquals(0, memory.getOpened());
+		for (ReadableResource resource : Arrays.<ReadableResource>asList(memory, new FileResource("application/octet-stream", content))) {
+			HTTPResponse response = HTTPUtils.newResponse(newRequest(new MimeHeader("Range", "bytes=10-19")), resource);
+			assertEquals(206, response.getCode());
+			assertEquals("bytes 10-19/1000", getHeader(response, "Content-Range"));
+			assertEquals("10", getHeader(response, "Content-Length"));
+			assertTrue(Arrays.equals(Arrays.copyOfRange(content, 10, 20), read(response)));
+			// overlapping ranges become a single range
+			response = HTTPUtils.newResponse(newRequest(new MimeHeader("Range", "bytes=0-,0-,0-")), resource);
+			assertEquals(206, response.getCode());
+			assertEquals("bytes 0-999/1000", getHeader(response, "Content-Range"));
+			assertTrue(Arrays.equals(content, read(response)));
+		}
+	}
+
+	public void testUnsatisfiableResponse() throws IOException {
+		MemoryResource resource = new MemoryResource("test.bin", "application/octet-stream", new byte[1000], new Date());
+		HTTPResponse response = HTTPUtils.newResponse(newRequest(new MimeHeader("Range", "bytes=2000-")), resource);
+		assertEquals(416, response.getCode());
+		assertEquals("bytes */1000", getHeader(response, "Content-Range"));
+		assertEquals(0, resource.getOpened());
+	}
+
+	public void testIfRange() throws IOException {
+		Date lastModified = new Date(1500000000000L);
+		MemoryResource resource = new MemoryResource("test.bin", "application/octet-stream", new byte[1000], lastModified);
+		Header etag = new MimeHeader("ETag", "\"v1\"");
+		assertEquals(206, HTTPUtils.newResponse(newRequest(new MimeHeader("Range", "bytes=0-9"), new MimeHeader("If-Range", "\"v1\"")), resource, etag).getCode());
+		assertEquals(200, HTTPUtils.newResponse(newRequest(new MimeHeader("Range", "bytes=0-9"), new MimeHeader("If-Range", "\"v2\"")), resource, etag).getCode());
+		// weak entity tags can not be used
+		assertEquals(200, HTTPUtils.newResponse(newRequest(new MimeHeader("Range", "bytes=0-9"), new MimeHeader("If-Range", "W/\"v1\"")), resource, new MimeHeader("ETag", "W/\"v1\"")).getCode());
+		assertEquals(206, HTTPUtils.newResponse(newRequest(new MimeHeader("Range", "bytes=0-9"), new MimeHeader("If-Range", HTTPDates.format(lastModified))), resource).getCode());
+		assertEquals(200, HTTPUtils.newResponse(newRequest(new MimeHeader("Range", "bytes=0-9"), new MimeHeader("If-Range", HTTPDates.format(new Date(1600000000000L)))), resource).getCode());
+		assertEquals(200, HTTPUtils.newResponse(newRequest(new MimeHeader("Range", "bytes=0-9"), new MimeHeader("If-Range", "not a date")), resource).getCode());
+	}
+
+	public void testMultipart() throws IOException {
+		byte [] content = TestCompressionPool.newContent(1000);
+		MemoryResource memory = new MemoryResource("test.bin", "text/plain", content, new Date());
+		for (ReadableResource resource : Arrays.<ReadableResource>asList(memory, new FileResource("text/plain", content))) {
+			for (String value : new String [] { "bytes=0-9,100-199,-10", "bytes=100-199,0-9" }) {
+				HTTPResponse response = HTTPUtils.newResponse(newRequest(new MimeHeader("Range", value)), resource);
+				assertEquals(206, response.getCode());
+				String contentType = getHeader(response, "Content-Type");
+				assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+				String boundary = contentType.substring("multipart/byteranges; boundary=".length());
+				StringBuilder expected = new StringBuilder();
+				for (HTTPRanges.Range range : HTTPRanges.parse(value, content.length)) {
+					expected.append(expected.length() == 0 ? "" : "\r\n").append("--").append(boundary).append("\r\nContent-Type: text/plain\r\nContent-Range: ")
+						.append(range.toContentRange(content.length)).append("\r\n\r\n")
+						.append(new String(content, (int) range.getStart(), (int) range.getLength(), "ASCII"));
+				}
+				expected.append("\r\n--").append(boundary).append("--\r\n");
+				byte [] body = read(response);
+				assertEquals(expected.toString(), new String(body, "ASCII"));
+				assertEquals(Integer.toString(body.length), getHeader(response, "Content-Length"));
+			}
+		}
+		// ascending ranges are read from a single stream, a range before the current position opens the resource again
+		assertEquals(3, memory.getOpened());
+	}
+
+	private static HTTPRequest newRequest(Header...headers) {
+		return new DefaultHTTPRequest("GET", "/test.bin", new PlainMimeEmptyPart(null, headers));
+	}
+
+	private static String getHeader(HTTPResponse response, String name) {
+		Header header = MimeUtils.getHeader(name, response.getContent().getHeaders());
+		return header == null ? null : MimeUtils.getFullHeaderValue(header);
+	}
+
+	private static byte [] read(HTTPResponse response) throws IOException {
+		ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+		try {
+			return IOUtils.toBytes(readable);
+		}
+		finally {
+			readable.close();
+		}
+	}
+
+	private void assertRanges(String value, long size, long...expected) {
+		List<HTTPRanges.Range> ranges = HTTPRanges.parse(value, size);
+		assertEquals(expected.length / 2, ranges.size());
+		for (int i = 0; i < ranges.size(); i++) {
+			assertEquals(expected[i * 2], ranges.get(i).getStart());
+			assertEquals(expected[i * 2 + 1], ranges.get(i).getEnd());
+		}
+	}
+}
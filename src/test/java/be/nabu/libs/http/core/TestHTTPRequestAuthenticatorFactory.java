@@ -0,0 +1,56 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPRequestAuthenticator;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+import junit.framework.TestCase;
+
+public class TestHTTPRequestAuthenticatorFactory extends TestCase {
+
+	public void testUnnamed() {
+		HTTPRequestAuthenticatorFactory factory = new HTTPRequestAuthenticatorFactory();
+		HTTPRequest request = new DefaultHTTPRequest("GET", "/", new PlainMimeEmptyPart(null));
+		HTTPRequestAuthenticator authenticator = factory.getAuthenticator(null);
+		assertFalse(authenticator.authenticate(request, null, null, false));
+		// the composite is cached, also for the unnamed authenticator
+		assertSame(authenticator, factory.getAuthenticator(null));
+		Runnable unregister = factory.register(null, new Fixed(true));
+		assertNotSame(authenticator, factory.getAuthenticator(null));
+		assertTrue(factory.getAuthenticator(null).authenticate(request, null, null, false));
+		// a named one is not affected
+		assertFalse(factory.getAuthenticator("other").authenticate(request, null, null, false));
+		unregister.run();
+		assertFalse(factory.getAuthenticator(null).authenticate(request, null, null, false));
+	}
+
+	private static class Fixed implements HTTPRequestAuthenticator {
+		private boolean result;
+
+		public Fixed(boolean result) {
+			this.result = result;
+		}
+
+		@Override
+		public boolean authenticate(HTTPRequest request, String context, HTTPResponse trigger, boolean refresh) {
+			return result;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+import junit.framework.TestCase;
+
+public class TestHTTPTracer extends TestCase {
+
+	private BlockingQueue<HttpMessage> messages = new LinkedBlockingQueue<HttpMessage>();
+	private HTTPTracer tracer = new HTTPTracer(new Consumer<HttpMessage>() {
+		@Override
+		public void accept(HttpMessage message) {
+			messages.add(message);
+		}
+	}, 16);
+
+	@Override
+	protected void setUp() {
+		tracer.start();
+	}
+
+	@Override
+	protected void tearDown() {
+		tracer.stop();
+	}
+
+	public void testHeaderSnapshot() throws InterruptedException {
+		PlainMimeEmptyPart part = new PlainMimeEmptyPart(null, new MimeHeader("X-Test", "before"));
+		HTTPResponse response = new DefaultHTTPResponse(200, "OK", part);
+		// the tracer is parked, make sure a trace wakes it up
+		Thread.sleep(50);
+		assertTrue(tracer.trace(response));
+		// modifying the headers after the trace should not affect the traced message
+		part.setHeader(new MimeHeader("X-Test", "after"));
+		HttpMessage message = messages.poll(5, TimeUnit.SECONDS);
+		assertNotNull(message);
+		assertTrue(message.getMessage(), message.getMessage().contains("X-Test: before"));
+	}
+
+	public void testSampling() throws InterruptedException {
+		tracer.setSampleRate(0);
+		tracer.setStatusCodes(new HashSet<Integer>(Arrays.asList(500)));
+		assertFalse(tracer.trace(new DefaultHTTPResponse(200, "OK", new PlainMimeEmptyPart(null))));
+		// the configured status codes are always traced
+		assertTrue(tracer.trace(new DefaultHTTPResponse(500, "Internal Server Error", new PlainMimeEmptyPart(null))));
+		assertNotNull(messages.poll(5, TimeUnit.SECONDS));
+		tracer.setSampleRate(1);
+		tracer.setRoutes(Arrays.asList("/api"));
+		assertFalse(tracer.trace(new DefaultHTTPRequest("GET", "/other", new PlainMimeEmptyPart(null))));
+		assertTrue(tracer.trace(new DefaultHTTPRequest("GET", "/api/test", new PlainMimeEmptyPart(null))));
+		assertNotNull(messages.poll(5, TimeUnit.SECONDS));
+	}
+
+	public void testRestart() throws InterruptedException {
+		tracer.stop();
+		tracer.start();
+		assertEquals(1, countTracerThreads());
+		for (int i = 0; i < 100; i++) {
+			assertTrue(tracer.trace(new DefaultHTTPResponse(200, "OK", new PlainMimeEmptyPart(null))));
+			assertNotNull(messages.poll(5, TimeUnit.SECONDS));
+		}
+		tracer.stop();
+		assertEquals(0, countTracerThreads());
+		assertFalse(tracer.trace(new DefaultHTTPResponse(200, "OK", new PlainMimeEmptyPart(null))));
+	}
+
+	public void testFailures() throws InterruptedException {
+		final BlockingQueue<Exception> failures = new LinkedBlockingQueue<Exception>();
+		HTTPTracer failing = new HTTPTracer(new Consumer<HttpMessage>() {
+			@Override
+			public void accept(HttpMessage message) {
+				throw new IllegalStateException("The sink is down");
+			}
+		}, 16);
+		failing.setErrorHandler(new Consumer<Exception>() {
+			@Override
+			public void accept(Exception exception) {
+				failures.add(exception);
+			}
+		});
+		failing.start();
+		try {
+			for (int i = 0; i < 10; i++) {
+				assertTrue(failing.trace(new DefaultHTTPResponse(200, "OK", new PlainMimeEmptyPart(null))));
+				Exception failure = failures.poll(5, TimeUnit.SECONDS);
+				assertTrue(failure instanceof IllegalStateException);
+			}
+			assertEquals(10, failing.getFailed());
+		}
+		finally {
+			failing.stop();
+		}
+	}
+
+	private static int countTracerThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("http-tracer") && thread.isAlive()) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
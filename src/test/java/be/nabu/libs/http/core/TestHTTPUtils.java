@@ -0,0 +1,165 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.impl.FormatException;
+import be.nabu.utils.mime.impl.MimeUtils;
+import junit.framework.TestCase;
+
+public class TestHTTPUtils extends TestCase {
+
+	public void testBuffered() throws IOException {
+		byte [] content = TestCompressionPool.newContent(1000);
+		HTTPResponse response = HTTPUtils.newStreamingResponse(null, "text/plain", new Source(content, false), 4096);
+		assertEquals(Long.valueOf(content.length), MimeUtils.getContentLength(response.getContent().getHeaders()));
+		assertEquals("text/plain", MimeUtils.getContentType(response.getContent().getHeaders()));
+		assertTrue(Arrays.equals(content, read(response)));
+	}
+
+	public void testChunked() throws IOException {
+		byte [] content = TestCompressionPool.newContent(10000);
+		HTTPResponse response = HTTPUtils.newStreamingResponse(new DefaultHTTPRequest("GET", "/", null, 1.1), "text/plain", new Source(content, false), 4096);
+		assertNull(MimeUtils.getContentLength(response.getContent().getHeaders()));
+		assertEquals("chunked", MimeUtils.getHeader("Transfer-Encoding", response.getContent().getHeaders()).getValue());
+		assertTrue(Arrays.equals(content, read(response)));
+	}
+
+	public void testSpilled() throws IOException {
+		byte [] content = TestCompressionPool.newContent(10000);
+		HTTPResponse response = HTTPUtils.newStreamingResponse(new DefaultHTTPRequest("GET", "/", null, 1.0), "text/plain", new Source(content, false), 4096);
+		assertEquals(Long.valueOf(content.length), MimeUtils.getContentLength(response.getContent().getHeaders()));
+		assertTrue(response.getContent() instanceof FileContentPart);
+		File file = ((FileContentPart) response.getContent()).getFile();
+		// the spilled content can be read more than once, like buffered content
+		assertTrue(MimeUtils.isReopenable(response.getContent()));
+		assertTrue(Arrays.equals(content, read(response)));
+		assertTrue(Arrays.equals(content, read(response)));
+		assertTrue(file.exists());
+		// once the response is gone, so is the file
+		response = null;
+		for (int i = 0; i < 100 && file.exists(); i++) {
+			System.gc();
+			Thread.yield();
+			TemporaryFileContentPart.deleteCollected();
+		}
+		assertFalse(file.exists());
+	}
+
+	public void testNonBlocking() throws IOException {
+		byte [] content = TestCompressionPool.newContent(10000);
+		// reads that return nothing are not the end of the content
+		assertTrue(Arrays.equals(content, read(HTTPUtils.newStreamingResponse(new DefaultHTTPRequest("GET", "/", null, 1.0), "text/plain", new Source(content, true), 4096))));
+		assertTrue(Arrays.equals(content, read(HTTPUtils.newResponse(null, "text/plain", new Source(content, true)))));
+		// if we don't need the length, we don't wait for the data
+		HTTPResponse response = HTTPUtils.newStreamingResponse(new DefaultHTTPRequest("GET", "/", null, 1.1), "text/plain", new Source(content, true), 65536);
+		assertEquals("chunked", MimeUtils.getHeader("Transfer-Encoding", response.getContent().getHeaders()).getValue());
+	}
+
+	// a source that never has data does not keep us waiting forever
+	public void testContentTimeout() throws IOException {
+		long timeout = HTTPUtils.getContentTimeout();
+		HTTPUtils.setContentTimeout(50);
+		try {
+			HTTPUtils.newResponse(null, "text/plain", new ReadableContainer<ByteBuffer>() {
+				@Override
+				public long read(ByteBuffer target) {
+					return 0;
+				}
+				@Override
+				public void close() {
+					// nothing to close
+				}
+			});
+			fail("Expected a timeout");
+		}
+		catch (InterruptedIOException e) {
+			// expected
+		}
+		finally {
+			HTTPUtils.setContentTimeout(timeout);
+		}
+	}
+
+	// the file is removed as soon as the response is sent
+	public void testSpilledSent() throws IOException, FormatException {
+		byte [] content = TestCompressionPool.newContent(10000);
+		HTTPResponse response = HTTPUtils.newStreamingResponse(new DefaultHTTPRequest("GET", "/", null, 1.0), "text/plain", new Source(content, false), 4096);
+		File file = ((FileContentPart) response.getContent()).getFile();
+		// describing it does not count as sending it
+		response.toString();
+		HTTPUtils.toMessage(response);
+		assertTrue(file.exists());
+		ByteBuffer output = IOUtils.newByteBuffer();
+		new HTTPFormatter().formatResponse(response, output);
+		assertFalse(file.exists());
+		byte [] formatted = IOUtils.toBytes(output);
+		assertTrue(Arrays.equals(content, Arrays.copyOfRange(formatted, formatted.length - content.length, formatted.length)));
+		assertFalse(MimeUtils.isReopenable(response.getContent()));
+	}
+
+	private static byte [] read(HTTPResponse response) throws IOException {
+		ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+		try {
+			return IOUtils.toBytes(readable);
+		}
+		finally {
+			readable.close();
+		}
+	}
+
+	// returns the content in small reads, optionally with empty reads in between like a non blocking source
+	private static class Source implements ReadableContainer<ByteBuffer> {
+		private byte [] content;
+		private int position;
+		private boolean nonBlocking, empty;
+
+		public Source(byte [] content, boolean nonBlocking) {
+			this.content = content;
+			this.nonBlocking = nonBlocking;
+		}
+
+		@Override
+		public long read(ByteBuffer target) throws IOException {
+			if (nonBlocking && (empty = !empty)) {
+				return 0;
+			}
+			if (position >= content.length) {
+				return -1;
+			}
+			int amount = (int) Math.min(1000, Math.min(content.length - position, target.remainingSpace()));
+			int written = target.write(content, position, amount);
+			position += written;
+			return written;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// nothing to close
+		}
+	}
+}
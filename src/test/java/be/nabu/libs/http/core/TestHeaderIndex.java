@@ -0,0 +1,107 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.IOException;
+import java.text.ParseException;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+import junit.framework.TestCase;
+
+public class TestHeaderIndex extends TestCase {
+
+	public void testLookup() {
+		PlainMimeEmptyPart part = new PlainMimeEmptyPart(null,
+			new MimeHeader("Host", "example.com"),
+			new MimeHeader("Accept", "text/html"),
+			new MimeHeader("X-Custom", "first"),
+			new MimeHeader("x-custom", "second"));
+		HeaderIndex index = HeaderIndex.index(part);
+		assertSame(index, HeaderIndex.get(part.getHeaders()));
+		assertEquals("example.com", index.getHeader("HOST").getValue());
+		assertEquals("text/html", index.getHeader("accept").getValue());
+		assertEquals(2, index.getHeaders("X-CUSTOM").length);
+		assertEquals("first", index.getHeaders("X-Custom")[0].getValue());
+		assertNull(index.getHeader("Cookie"));
+		assertEquals(0, index.getHeaders("Cookie").length);
+		// the same headers reuse the index
+		assertSame(index, HeaderIndex.index(part));
+	}
+
+	public void testChanges() {
+		PlainMimeEmptyPart part = new PlainMimeEmptyPart(null, new MimeHeader("Host", "example.com"), new MimeHeader("Accept", "text/html"));
+		Header [] headers = part.getHeaders();
+		HeaderIndex.index(part);
+		assertNotNull(HeaderIndex.get(headers));
+		// an array that is changed in place no longer matches
+		headers[1] = new MimeHeader("Accept", "application/json");
+		assertNull(HeaderIndex.get(headers));
+		assertNotNull(HeaderIndex.get(part.getHeaders()));
+		// nor does a modified part
+		part.setHeader(new MimeHeader("Accept", "application/json"));
+		assertNull(HeaderIndex.get(part.getHeaders()));
+		HeaderIndex rebuilt = HeaderIndex.index(part);
+		assertSame(rebuilt, HeaderIndex.get(part.getHeaders()));
+		assertEquals("application/json", rebuilt.getHeader("Accept").getValue());
+	}
+
+	public void testStripAndInject() {
+		PlainMimeEmptyPart part = new PlainMimeEmptyPart(null,
+			new MimeHeader("Host", "example.com"),
+			new MimeHeader("X-Remote-User", "admin"),
+			new MimeHeader("X-Resource-URI", "file:/etc/passwd"));
+		HeaderIndex index = HeaderIndex.index(part, true, new MimeHeader("X-Resource-URI", "file:/tmp/request"));
+		assertSame(index, HeaderIndex.get(part.getHeaders()));
+		assertNull(index.getHeader("X-Remote-User"));
+		assertEquals(1, index.getHeaders("X-Resource-URI").length);
+		assertEquals("file:/tmp/request", index.getHeader("x-resource-uri").getValue());
+		assertEquals(2, part.getHeaders().length);
+	}
+
+	public void testParsedRequest() throws ParseException, IOException {
+		HTTPParser parser = new HTTPParser(new DefaultDynamicResourceProvider(), true);
+		parser.setByteLevelRequestLine(true);
+		HTTPRequest request = parser.parseRequest(IOUtils.wrap("GET /test HTTP/1.1\r\nHost: localhost\r\nContent-Length: 0\r\n\r\n".getBytes("ASCII"), true), null);
+		HeaderIndex index = HeaderIndex.get(request.getContent().getHeaders());
+		assertNotNull(index);
+		assertEquals("localhost", index.getHeader("host").getValue());
+		// the index belongs to the request, not to the thread: parsing another request does not replace it
+		HTTPRequest other = parser.parseRequest(IOUtils.wrap("GET /other HTTP/1.1\r\nHost: example.com\r\nContent-Length: 0\r\n\r\n".getBytes("ASCII"), true), null);
+		assertSame(index, HeaderIndex.get(request.getContent().getHeaders()));
+		assertEquals("example.com", HeaderIndex.get(other.getContent().getHeaders()).getHeader("host").getValue());
+	}
+
+	public void testOtherThread() throws InterruptedException {
+		final PlainMimeEmptyPart part = new PlainMimeEmptyPart(null, new MimeHeader("Host", "example.com"));
+		final HeaderIndex index = HeaderIndex.index(part);
+		final HeaderIndex [] found = new HeaderIndex[1];
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				found[0] = HeaderIndex.get(part.getHeaders());
+			}
+		});
+		thread.start();
+		thread.join();
+		assertSame(index, found[0]);
+	}
+}
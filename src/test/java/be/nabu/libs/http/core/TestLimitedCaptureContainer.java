@@ -0,0 +1,60 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.core;
+
+import java.io.IOException;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+import junit.framework.TestCase;
+
+public class TestLimitedCaptureContainer extends TestCase {
+
+	public void testCapture() throws IOException {
+		LimitedCaptureContainer container = new LimitedCaptureContainer(4);
+		container.write(IOUtils.wrap("abcdefgh".getBytes("ASCII"), true));
+		assertEquals("abcd", new String(container.getCaptured(), 0, container.getCapturedSize(), "ASCII"));
+		assertEquals(8, container.getTotalSize());
+		assertTrue(container.isTruncated());
+		assertEquals(4, container.getCompleteSize());
+	}
+
+	public void testCharacterBoundary() throws IOException {
+		// "a" followed by a two byte and a three byte character
+		byte [] bytes = "a\u00e9\u20ac".getBytes("UTF-8");
+		for (int budget = 1; budget < bytes.length; budget++) {
+			LimitedCaptureContainer container = new LimitedCaptureContainer(budget);
+			container.write(IOUtils.wrap(bytes, true));
+			String captured = new String(container.getCaptured(), 0, container.getCompleteSize(), "UTF-8");
+			assertTrue(captured, "a\u00e9\u20ac".startsWith(captured));
+		}
+		LimitedCaptureContainer container = new LimitedCaptureContainer(2);
+		container.write(IOUtils.wrap(bytes, true));
+		assertEquals(1, container.getCompleteSize());
+	}
+
+	public void testZeroBudgetKeepsEverything() {
+		HttpMessage message = HTTPUtils.toMessage(new DefaultHTTPResponse(200, "OK", new PlainMimeEmptyPart(null, new MimeHeader("Content-Length", "0"))), 0);
+		assertFalse(message.isTruncated());
+		assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n", message.getMessage());
+		message = HTTPUtils.toMessage(new DefaultHTTPResponse(200, "OK", new PlainMimeEmptyPart(null, new MimeHeader("Content-Length", "0"))), 8);
+		assertTrue(message.isTruncated());
+		assertEquals("HTTP/1.1", message.getMessage());
+	}
+}